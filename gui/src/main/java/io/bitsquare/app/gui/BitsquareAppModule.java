@@ -26,6 +26,8 @@ import io.bitsquare.msg.MessageModule;
 import io.bitsquare.msg.tomp2p.TomP2PMessageModule;
 import io.bitsquare.offer.OfferModule;
 import io.bitsquare.offer.tomp2p.TomP2POfferModule;
+import io.bitsquare.persistence.Codec;
+import io.bitsquare.persistence.DomainCodec;
 import io.bitsquare.persistence.Persistence;
 import io.bitsquare.settings.Preferences;
 import io.bitsquare.trade.TradeModule;
@@ -59,6 +61,11 @@ class BitsquareAppModule extends BitsquareModule {
         File persistenceDir = new File(env.getRequiredProperty(Persistence.DIR_KEY));
         bind(File.class).annotatedWith(named(Persistence.DIR_KEY)).toInstance(persistenceDir);
         bindConstant().annotatedWith(named(Persistence.PREFIX_KEY)).to(env.getRequiredProperty(Persistence.PREFIX_KEY));
+        bindConstant().annotatedWith(named(Persistence.FLUSH_INTERVAL_KEY)).to(
+                env.getProperty(Persistence.FLUSH_INTERVAL_KEY, long.class, Persistence.DEFAULT_FLUSH_INTERVAL));
+        bindConstant().annotatedWith(named(Persistence.BACKEND_KEY)).to(
+                env.getProperty(Persistence.BACKEND_KEY, Persistence.DEFAULT_BACKEND));
+        bind(Codec.class).to(DomainCodec.class).asEagerSingleton();
         bind(Persistence.class).asEagerSingleton();
 
         bind(Environment.class).toInstance(env);
@@ -98,5 +105,6 @@ class BitsquareAppModule extends BitsquareModule {
 
     @Override
     protected void doClose(Injector injector) {
+        injector.getInstance(Persistence.class).close();
     }
 }
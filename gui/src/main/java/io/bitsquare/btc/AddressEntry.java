@@ -52,6 +52,14 @@ public class AddressEntry implements Serializable {
         pubKeyHash = key.getPubOnly().getPubKeyHash();
     }
 
+    // Used when restoring a persisted entry, the key gets applied from the wallet by setDeterministicKey
+    public AddressEntry(NetworkParameters params, AddressContext addressContext, String offerId, byte[] pubKeyHash) {
+        this.params = params;
+        this.addressContext = addressContext;
+        this.offerId = offerId;
+        this.pubKeyHash = pubKeyHash;
+    }
+
     public String getOfferId() {
         return offerId;
     }
@@ -84,6 +92,10 @@ public class AddressEntry implements Serializable {
         return pubKeyHash;
     }
 
+    public NetworkParameters getParams() {
+        return params;
+    }
+
     public static enum AddressContext {
         REGISTRATION_FEE,
         TRADE,
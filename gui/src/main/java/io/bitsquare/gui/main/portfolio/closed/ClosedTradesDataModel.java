@@ -19,61 +19,78 @@ package io.bitsquare.gui.main.portfolio.closed;
 
 import io.bitsquare.offer.Direction;
 import io.bitsquare.offer.Offer;
-import io.bitsquare.trade.Trade;
+import io.bitsquare.trade.TradeArchive;
 import io.bitsquare.trade.TradeManager;
 import io.bitsquare.user.User;
 
 import com.google.inject.Inject;
 
+import java.util.stream.Collectors;
+
 import viewfx.model.Activatable;
 import viewfx.model.DataModel;
 
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.value.ChangeListener;
 import javafx.collections.FXCollections;
-import javafx.collections.MapChangeListener;
 import javafx.collections.ObservableList;
 
+/**
+ * Shows the archived trades page by page, so only the trades of the current page are loaded.
+ */
 class ClosedTradesDataModel implements Activatable, DataModel {
+    static final int PAGE_SIZE = 50;
 
-    private final TradeManager tradeManager;
+    private final TradeArchive tradeArchive;
     private final User user;
 
     private final ObservableList<ClosedTradesListItem> list = FXCollections.observableArrayList();
-    private final MapChangeListener<String, Trade> mapChangeListener;
+    private final IntegerProperty pageCount = new SimpleIntegerProperty(1);
+    private final ChangeListener<Number> sizeListener;
+    private int pageIndex;
 
 
     @Inject
     public ClosedTradesDataModel(TradeManager tradeManager, User user) {
-        this.tradeManager = tradeManager;
+        this.tradeArchive = tradeManager.getTradeArchive();
         this.user = user;
 
-        this.mapChangeListener = change -> {
-            if (change.wasAdded())
-                list.add(new ClosedTradesListItem(change.getValueAdded()));
-            else if (change.wasRemoved())
-                list.removeIf(e -> e.getTrade().getId().equals(change.getValueRemoved().getId()));
-        };
+        this.sizeListener = (observable, oldValue, newValue) -> loadPage(pageIndex);
     }
 
     @Override
     public void activate() {
-        list.clear();
-        tradeManager.getClosedTrades().values().stream()
-                .forEach(e -> list.add(new ClosedTradesListItem(e)));
-        tradeManager.getClosedTrades().addListener(mapChangeListener);
-
-        // We sort by date, earliest first
-        list.sort((o1, o2) -> o2.getTrade().getDate().compareTo(o1.getTrade().getDate()));
+        loadPage(0);
+        tradeArchive.sizeProperty().addListener(sizeListener);
     }
 
     @Override
     public void deactivate() {
-        tradeManager.getClosedTrades().removeListener(mapChangeListener);
+        tradeArchive.sizeProperty().removeListener(sizeListener);
+    }
+
+    /**
+     * Loads the trades of the given page, the first page contains the newest trades.
+     */
+    public void loadPage(int pageIndex) {
+        int size = tradeArchive.size();
+        pageCount.set(Math.max(1, (size + PAGE_SIZE - 1) / PAGE_SIZE));
+        this.pageIndex = Math.min(pageIndex, pageCount.get() - 1);
+
+        list.setAll(tradeArchive.getTrades(this.pageIndex * PAGE_SIZE, PAGE_SIZE).stream()
+                .map(ClosedTradesListItem::new)
+                .collect(Collectors.toList()));
     }
 
     public ObservableList<ClosedTradesListItem> getList() {
         return list;
     }
 
+    public IntegerProperty pageCountProperty() {
+        return pageCount;
+    }
+
     public Direction getDirection(Offer offer) {
         return offer.getMessagePublicKey().equals(user.getMessagePublicKey()) ?
                 offer.getDirection() : offer.getMirroredDirection();
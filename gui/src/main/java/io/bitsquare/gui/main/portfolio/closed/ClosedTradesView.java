@@ -34,6 +34,7 @@ import javafx.util.Callback;
 public class ClosedTradesView extends ActivatableViewAndModel<GridPane, ClosedTradesViewModel> {
 
     @FXML TableView<ClosedTradesListItem> table;
+    @FXML Pagination pagination;
     @FXML TableColumn<ClosedTradesListItem, ClosedTradesListItem> priceColumn, amountColumn, volumeColumn,
             directionColumn, dateColumn, tradeIdColumn;
 
@@ -53,11 +54,16 @@ public class ClosedTradesView extends ActivatableViewAndModel<GridPane, ClosedTr
 
         table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
         table.setPlaceholder(new Label("No closed trades available"));
+
+        pagination.pageCountProperty().bind(model.pageCountProperty());
+        pagination.currentPageIndexProperty().addListener((observable, oldValue, newValue) ->
+                model.loadPage(newValue.intValue()));
     }
 
     @Override
     public void doActivate() {
         table.setItems(model.getList());
+        pagination.setCurrentPageIndex(0);
     }
 
     private void openOfferDetails(ClosedTradesListItem item) {
@@ -24,6 +24,7 @@ import com.google.inject.Inject;
 import viewfx.model.ViewModel;
 import viewfx.model.support.ActivatableWithDataModel;
 
+import javafx.beans.property.ReadOnlyIntegerProperty;
 import javafx.collections.ObservableList;
 
 class ClosedTradesViewModel extends ActivatableWithDataModel<ClosedTradesDataModel> implements ViewModel {
@@ -42,6 +43,14 @@ class ClosedTradesViewModel extends ActivatableWithDataModel<ClosedTradesDataMod
         return dataModel.getList();
     }
 
+    public ReadOnlyIntegerProperty pageCountProperty() {
+        return dataModel.pageCountProperty();
+    }
+
+    void loadPage(int pageIndex) {
+        dataModel.loadPage(pageIndex);
+    }
+
     String getTradeId(ClosedTradesListItem item) {
         return item.getTrade().getId();
     }
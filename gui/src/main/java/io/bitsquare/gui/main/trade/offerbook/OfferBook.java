@@ -20,20 +20,35 @@ package io.bitsquare.gui.main.trade.offerbook;
 import io.bitsquare.bank.BankAccount;
 import io.bitsquare.locale.Country;
 import io.bitsquare.locale.CurrencyUtil;
+import io.bitsquare.offer.Direction;
 import io.bitsquare.offer.Offer;
+import io.bitsquare.offer.OrderBook;
 import io.bitsquare.offer.RemoteOfferBook;
 import io.bitsquare.user.User;
 import io.bitsquare.util.Utilities;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import javax.inject.Inject;
 
 import javafx.animation.AnimationTimer;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.value.ChangeListener;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 
+import org.jetbrains.annotations.Nullable;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,7 +57,8 @@ import static com.google.common.base.Preconditions.checkArgument;
 /**
  * Holds and manages the unsorted and unfiltered offerbook list of both buy and sell offers.
  * It is handled as singleton by Guice and is used by 2 instances of OfferBookDataModel (one for Buy one for Sell).
- * As it is used only by the Buy and Sell UIs we treat it as local UI model.
+ * Only the offers of the direction shown by its clients are fetched, or of both directions if they show different
+ * ones. As it is used only by the Buy and Sell UIs we treat it as local UI model.
  * It also use OfferRepository.Listener as the lists items class and we don't want to get any dependency out of the
  * package for that.
  */
@@ -50,17 +66,27 @@ public class OfferBook {
 
     private static final Logger log = LoggerFactory.getLogger(OfferBook.class);
 
+    // Changes get pushed, we only check for missed changes in that interval
+    private static final int RECONCILIATION_INTERVAL = 60 * 1000;
+
     private final RemoteOfferBook remoteOfferBook;
     private final User user;
 
     private final ObservableList<OfferBookListItem> offerBookListItems = FXCollections.observableArrayList();
+    // Index of the offers of the list, it is updated before the list, so list listeners can query it
+    private final OrderBook orderBook = new OrderBook();
+    private final Map<String, OfferBookListItem> offerBookListItemsById = new HashMap<>();
+    // True while the list holds the cached offers of the last session
+    private final BooleanProperty stale = new SimpleBooleanProperty();
     private final RemoteOfferBook.Listener remoteOfferBookListener;
     private final ChangeListener<BankAccount> bankAccountChangeListener;
     private final ChangeListener<Number> invalidationListener;
+    // The direction of the offers shown by each client, null for both directions
+    private final List<Direction> clientDirections = new ArrayList<>();
     private String fiatCode;
-    private AnimationTimer pollingTimer;
+    private Direction direction;
+    private AnimationTimer reconciliationTimer;
     private Country country;
-    private int numClients = 0;
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -73,24 +99,36 @@ public class OfferBook {
         this.user = user;
 
         bankAccountChangeListener = (observableValue, oldValue, newValue) -> setBankAccount(newValue);
-        invalidationListener = (ov, oldValue, newValue) -> requestOffers();
+        // Other peers changed the offers, we only fetch the changes since our last sync
+        invalidationListener = (ov, oldValue, newValue) -> remoteOfferBook.requestOfferChanges(fiatCode);
 
         remoteOfferBookListener = new RemoteOfferBook.Listener() {
             @Override
             public void onOfferAdded(Offer offer) {
-                addOfferToOfferBookListItems(offer);
+                if (offer != null && (direction == null || offer.getDirection() == direction))
+                    addOfferToOfferBookListItems(offer);
+            }
+
+            @Override
+            public void onOffersReceived(String currencyCode, Direction direction, List<Offer> offers) {
+                // The offers of the previous currency might arrive after the bank account got changed
+                if (!currencyCode.equals(fiatCode) || direction != OfferBook.this.direction)
+                    return;
+                setOfferBookListItems(offers);
+                stale.set(false);
             }
 
             @Override
-            public void onOffersReceived(List<Offer> offers) {
-                //TODO use deltas instead replacing the whole list
-                offerBookListItems.clear();
-                offers.stream().forEach(e -> addOfferToOfferBookListItems(e));
+            public void onCachedOffersReceived(String currencyCode, Direction direction, List<Offer> offers) {
+                if (!currencyCode.equals(fiatCode) || direction != OfferBook.this.direction)
+                    return;
+                setOfferBookListItems(offers);
+                stale.set(true);
             }
 
             @Override
             public void onOfferRemoved(Offer offer) {
-                offerBookListItems.removeIf(item -> item.getOffer().getId().equals(offer.getId()));
+                removeOfferFromOfferBookListItems(offer);
             }
         };
     }
@@ -100,17 +138,23 @@ public class OfferBook {
     // Package scope
     ///////////////////////////////////////////////////////////////////////////////////////////
 
-    void addClient() {
-        numClients++;
-        if (numClients == 1)
-            startPolling();
+    /**
+     * @param direction the direction of the offers the client shows, null for both directions
+     */
+    void addClient(@Nullable Direction direction) {
+        clientDirections.add(direction);
+        if (clientDirections.size() == 1)
+            startObserving();
+        else
+            updateDirection();
     }
 
-    void removeClient() {
-        numClients--;
-        checkArgument(numClients >= 0);
-        if (numClients == 0)
-            stopPolling();
+    void removeClient(@Nullable Direction direction) {
+        checkArgument(clientDirections.remove(direction));
+        if (clientDirections.isEmpty())
+            stopObserving();
+        else
+            updateDirection();
     }
 
 
@@ -122,6 +166,18 @@ public class OfferBook {
         return offerBookListItems;
     }
 
+    OrderBook getOrderBook() {
+        return orderBook;
+    }
+
+    OfferBookListItem getOfferBookListItem(String offerId) {
+        return offerBookListItemsById.get(offerId);
+    }
+
+    ReadOnlyBooleanProperty staleProperty() {
+        return stale;
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Private
@@ -129,6 +185,7 @@ public class OfferBook {
 
     private void setBankAccount(BankAccount bankAccount) {
         log.debug("setBankAccount " + bankAccount);
+        String previousFiatCode = fiatCode;
         if (bankAccount != null) {
             country = bankAccount.getCountry();
             fiatCode = bankAccount.getCurrency().getCurrencyCode();
@@ -137,6 +194,12 @@ public class OfferBook {
         else {
             fiatCode = CurrencyUtil.getDefaultCurrency().getCurrencyCode();
         }
+
+        if (!clientDirections.isEmpty() && previousFiatCode != null && !previousFiatCode.equals(fiatCode)) {
+            remoteOfferBook.unsubscribe(previousFiatCode);
+            remoteOfferBook.subscribe(fiatCode);
+            requestOffers();
+        }
     }
 
     private void addListeners() {
@@ -154,34 +217,97 @@ public class OfferBook {
     }
 
     private void addOfferToOfferBookListItems(Offer offer) {
-        if (offer != null) {
-            offerBookListItems.add(new OfferBookListItem(offer, country));
+        // A fetched change might be in the list already
+        if (offer != null && !offerBookListItemsById.containsKey(offer.getId())) {
+            OfferBookListItem item = new OfferBookListItem(offer, country);
+            offerBookListItemsById.put(offer.getId(), item);
+            orderBook.add(offer);
+            offerBookListItems.add(item);
         }
     }
 
+    private void removeOfferFromOfferBookListItems(Offer offer) {
+        OfferBookListItem item = offerBookListItemsById.remove(offer.getId());
+        if (item != null) {
+            orderBook.remove(offer.getId());
+            offerBookListItems.remove(item);
+        }
+    }
+
+    // Applies only the difference to the current list, so the items of known offers are kept and the list
+    // listeners get one change for all removed and one for all added items
+    private void setOfferBookListItems(List<Offer> offers) {
+        final Map<String, Offer> offersById = new LinkedHashMap<>();
+        offers.stream().filter(Objects::nonNull).forEach(offer -> offersById.put(offer.getId(), offer));
+
+        final Set<OfferBookListItem> removedItems = new HashSet<>();
+        for (Iterator<OfferBookListItem> iterator = offerBookListItemsById.values().iterator(); iterator.hasNext(); ) {
+            OfferBookListItem item = iterator.next();
+            if (!offersById.containsKey(item.getOffer().getId())) {
+                iterator.remove();
+                orderBook.remove(item.getOffer().getId());
+                removedItems.add(item);
+            }
+        }
+
+        final List<OfferBookListItem> addedItems = new ArrayList<>();
+        for (Offer offer : offersById.values()) {
+            if (!offerBookListItemsById.containsKey(offer.getId())) {
+                OfferBookListItem item = new OfferBookListItem(offer, country);
+                offerBookListItemsById.put(offer.getId(), item);
+                orderBook.add(offer);
+                addedItems.add(item);
+            }
+        }
+
+        if (!removedItems.isEmpty())
+            offerBookListItems.removeAll(removedItems);
+        if (!addedItems.isEmpty())
+            offerBookListItems.addAll(addedItems);
+        log.trace("Offer book updated: " + addedItems.size() + " added, " + removedItems.size() + " removed.");
+    }
+
     private void requestOffers() {
-        remoteOfferBook.getOffers(fiatCode);
+        remoteOfferBook.getOffers(fiatCode, direction);
+    }
+
+    // Fetches the offers again if the clients show other directions now
+    private void updateDirection() {
+        Direction clientDirection = getClientDirection();
+        if (clientDirection != direction) {
+            direction = clientDirection;
+            requestOffers();
+        }
+    }
+
+    private Direction getClientDirection() {
+        Direction clientDirection = clientDirections.get(0);
+        return clientDirections.stream().allMatch(d -> d == clientDirection) ? clientDirection : null;
     }
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
-    // Polling
+    // Observing
     ///////////////////////////////////////////////////////////////////////////////////////////
 
-    // TODO Just temporary, will be removed later when we have a push solution
-    private void startPolling() {
+    private void startObserving() {
+        direction = getClientDirection();
         addListeners();
         setBankAccount(user.getCurrentBankAccount().get());
-        pollingTimer = Utilities.setInterval(3000, (animationTimer) -> {
+        remoteOfferBook.subscribe(fiatCode);
+        reconciliationTimer = Utilities.setInterval(RECONCILIATION_INTERVAL, (animationTimer) -> {
+            // Renews the subscription before it expires
+            remoteOfferBook.subscribe(fiatCode);
             remoteOfferBook.requestInvalidationTimeStampFromDHT(fiatCode);
             return null;
         });
 
-        remoteOfferBook.getOffers(fiatCode);
+        requestOffers();
     }
 
-    private void stopPolling() {
-        pollingTimer.stop();
+    private void stopObserving() {
+        reconciliationTimer.stop();
+        remoteOfferBook.unsubscribe(fiatCode);
         removeListeners();
     }
 
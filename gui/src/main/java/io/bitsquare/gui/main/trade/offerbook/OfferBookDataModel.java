@@ -23,6 +23,7 @@ import io.bitsquare.locale.Country;
 import io.bitsquare.locale.CurrencyUtil;
 import io.bitsquare.offer.Direction;
 import io.bitsquare.offer.Offer;
+import io.bitsquare.offer.OrderBook;
 import io.bitsquare.settings.Preferences;
 import io.bitsquare.trade.TradeManager;
 import io.bitsquare.user.User;
@@ -35,17 +36,27 @@ import org.bitcoinj.utils.Fiat;
 
 import com.google.inject.Inject;
 
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import viewfx.model.Activatable;
 import viewfx.model.DataModel;
 
+import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.beans.value.ChangeListener;
-import javafx.collections.transformation.FilteredList;
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
 import javafx.collections.transformation.SortedList;
 
 import org.slf4j.Logger;
@@ -64,10 +75,12 @@ class OfferBookDataModel implements Activatable, DataModel {
     private final BSFormatter formatter;
     private final TradeManager tradeManager;
 
-    private final FilteredList<OfferBookListItem> filteredItems;
+    // The offers of the offer book matching the filter, found by the price index of the offer book
+    private final ObservableList<OfferBookListItem> filteredItems = FXCollections.observableArrayList();
     private final SortedList<OfferBookListItem> sortedItems;
     // private OfferBookInfo offerBookInfo;
     private final ChangeListener<BankAccount> bankAccountChangeListener;
+    private final ListChangeListener<OfferBookListItem> offerBookListItemsChangeListener;
 
     private final ObjectProperty<Coin> amountAsCoin = new SimpleObjectProperty<>();
     private final ObjectProperty<Fiat> priceAsFiat = new SimpleObjectProperty<>();
@@ -78,7 +91,12 @@ class OfferBookDataModel implements Activatable, DataModel {
     final StringProperty btcCode = new SimpleStringProperty();
     final ObjectProperty<Country> bankAccountCountry = new SimpleObjectProperty<>();
     final ObjectProperty<Comparator<OfferBookListItem>> comparator = new SimpleObjectProperty<>();
+    // True while the offer book shows the cached offers of the last session
+    final BooleanProperty stale = new SimpleBooleanProperty();
     private Direction direction;
+    // The direction we registered at the offer book while we are active, null for both directions
+    private Direction clientDirection;
+    private boolean active;
 
 
     @Inject
@@ -90,9 +108,12 @@ class OfferBookDataModel implements Activatable, DataModel {
         this.preferences = preferences;
         this.formatter = formatter;
 
-        this.filteredItems = new FilteredList<>(offerBook.getOfferBookListItems());
         this.sortedItems = new SortedList<>(filteredItems);
-        this.bankAccountChangeListener = (observableValue, oldValue, newValue) -> setBankAccount(newValue);
+        this.bankAccountChangeListener = (observableValue, oldValue, newValue) -> {
+            setBankAccount(newValue);
+            applyFilter();
+        };
+        this.offerBookListItemsChangeListener = this::onOfferBookListItemsChanged;
     }
 
     @Override
@@ -101,9 +122,13 @@ class OfferBookDataModel implements Activatable, DataModel {
         priceAsFiat.set(null);
         volumeAsFiat.set(null);
 
-        offerBook.addClient();
+        active = true;
+        clientDirection = getShownDirection();
+        offerBook.addClient(clientDirection);
+        offerBook.getOfferBookListItems().addListener(offerBookListItemsChangeListener);
         user.currentBankAccountProperty().addListener(bankAccountChangeListener);
         btcCode.bind(preferences.btcDenominationProperty());
+        stale.bind(offerBook.staleProperty());
 
         setBankAccount(user.getCurrentBankAccount().get());
         applyFilter();
@@ -111,9 +136,12 @@ class OfferBookDataModel implements Activatable, DataModel {
 
     @Override
     public void deactivate() {
-        offerBook.removeClient();
+        active = false;
+        offerBook.removeClient(clientDirection);
+        offerBook.getOfferBookListItems().removeListener(offerBookListItemsChangeListener);
         user.currentBankAccountProperty().removeListener(bankAccountChangeListener);
         btcCode.unbind();
+        stale.unbind();
     }
 
     void removeOffer(Offer offer, ResultHandler resultHandler, FaultHandler faultHandler) {
@@ -189,6 +217,14 @@ class OfferBookDataModel implements Activatable, DataModel {
 
     void setDirection(Direction direction) {
         this.direction = direction;
+        // We add the new direction first, so the offer book keeps observing
+        if (active && getShownDirection() != clientDirection) {
+            Direction previousClientDirection = clientDirection;
+            clientDirection = getShownDirection();
+            offerBook.addClient(clientDirection);
+            offerBook.removeClient(previousClientDirection);
+            applyFilter();
+        }
     }
 
     void setAmount(Coin amount) {
@@ -259,26 +295,58 @@ class OfferBookDataModel implements Activatable, DataModel {
     }
 
     void applyFilter() {
-        filteredItems.setPredicate(offerBookListItem -> {
-            Offer offer = offerBookListItem.getOffer();
-
-            boolean directionResult = offer.getDirection() != direction;
-
-            boolean amountResult = true;
-            if (amountAsCoin.get() != null && amountAsCoin.get().isPositive())
-                amountResult = amountAsCoin.get().compareTo(offer.getAmount()) <= 0 &&
-                        amountAsCoin.get().compareTo(offer.getMinAmount()) >= 0;
-
-            boolean priceResult = true;
-            if (priceAsFiat.get() != null && priceAsFiat.get().isPositive()) {
-                if (offer.getDirection() == Direction.SELL)
-                    priceResult = priceAsFiat.get().compareTo(offer.getPrice()) >= 0;
-                else
-                    priceResult = priceAsFiat.get().compareTo(offer.getPrice()) <= 0;
+        final OrderBook orderBook = offerBook.getOrderBook();
+        final List<Offer> offers;
+        if (direction != null) {
+            offers = orderBook.getOffers(fiatCode.get(), getOfferDirection(), getLimitPrice(), amountAsCoin.get());
+        }
+        else {
+            offers = orderBook.getOffers(fiatCode.get(), Direction.BUY, getLimitPrice(), amountAsCoin.get());
+            offers.addAll(orderBook.getOffers(fiatCode.get(), Direction.SELL, getLimitPrice(), amountAsCoin.get()));
+        }
+        filteredItems.setAll(offers.stream()
+                .map(offer -> offerBook.getOfferBookListItem(offer.getId()))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList()));
+    }
+
+    // The offer book applies its changes in batches, so we do the same with the matching items
+    private void onOfferBookListItemsChanged(ListChangeListener.Change<? extends OfferBookListItem> change) {
+        final Set<OfferBookListItem> removedItems = new HashSet<>();
+        final List<OfferBookListItem> addedItems = new ArrayList<>();
+        while (change.next()) {
+            if (change.wasRemoved())
+                removedItems.addAll(change.getRemoved());
+            if (change.wasAdded()) {
+                change.getAddedSubList().stream()
+                        .filter(item -> isMatching(item.getOffer()))
+                        .forEach(addedItems::add);
             }
+        }
 
-            return directionResult && amountResult && priceResult;
-        });
+        if (!removedItems.isEmpty())
+            filteredItems.removeAll(removedItems);
+        if (!addedItems.isEmpty())
+            filteredItems.addAll(addedItems);
     }
 
+    private boolean isMatching(Offer offer) {
+        return (direction == null || offer.getDirection() == getOfferDirection()) &&
+                offer.getCurrency().getCurrencyCode().equals(fiatCode.get()) &&
+                OrderBook.matches(offer, getLimitPrice(), amountAsCoin.get());
+    }
+
+    // We show the offers of the other side, e.g. the sell offers at the buy screen
+    private Direction getOfferDirection() {
+        return direction == Direction.BUY ? Direction.SELL : Direction.BUY;
+    }
+
+    // Without direction we show the offers of both directions
+    private Direction getShownDirection() {
+        return direction != null ? getOfferDirection() : null;
+    }
+
+    private long getLimitPrice() {
+        return priceAsFiat.get() != null && priceAsFiat.get().isPositive() ? priceAsFiat.get().value : 0;
+    }
 }
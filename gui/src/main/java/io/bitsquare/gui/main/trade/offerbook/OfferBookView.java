@@ -43,6 +43,8 @@ import viewfx.view.FxmlView;
 import viewfx.view.support.ActivatableViewAndModel;
 
 import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.WeakChangeListener;
 import javafx.collections.transformation.SortedList;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -69,7 +71,7 @@ public class OfferBookView extends ActivatableViewAndModel<GridPane, OfferBookVi
     @FXML TableColumn<OfferBookListItem, OfferBookListItem> priceColumn, amountColumn, volumeColumn, directionColumn,
     /*countryColumn,*/ bankAccountTypeColumn;
     @FXML Label amountBtcLabel, priceDescriptionLabel, priceFiatLabel, volumeDescriptionLabel, volumeFiatLabel,
-            extendedButton1Label, extendedButton2Label, extendedCheckBoxLabel;
+            extendedButton1Label, extendedButton2Label, extendedCheckBoxLabel, staleOffersLabel;
 
     private ImageView expand;
     private ImageView collapse;
@@ -300,6 +302,8 @@ public class OfferBookView extends ActivatableViewAndModel<GridPane, OfferBookVi
         amountTextField.textProperty().bindBidirectional(model.amount);
         priceTextField.textProperty().bindBidirectional(model.price);
         volumeTextField.textProperty().bindBidirectional(model.volume);
+        staleOffersLabel.visibleProperty().bind(model.stale);
+        staleOffersLabel.managedProperty().bind(model.stale);
         amountBtcLabel.textProperty().bind(model.btcCode);
         priceFiatLabel.textProperty().bind(model.fiatCode);
         volumeFiatLabel.textProperty().bind(model.fiatCode);
@@ -320,6 +324,8 @@ public class OfferBookView extends ActivatableViewAndModel<GridPane, OfferBookVi
         amountTextField.textProperty().unbind();
         priceTextField.textProperty().unbind();
         volumeTextField.textProperty().unbind();
+        staleOffersLabel.visibleProperty().unbind();
+        staleOffersLabel.managedProperty().unbind();
         amountBtcLabel.textProperty().unbind();
         priceFiatLabel.textProperty().unbind();
         volumeFiatLabel.textProperty().unbind();
@@ -421,16 +427,24 @@ public class OfferBookView extends ActivatableViewAndModel<GridPane, OfferBookVi
                         return new TableCell<OfferBookListItem, OfferBookListItem>() {
                             final ImageView iconView = new ImageView();
                             final Button button = new Button();
+                            // The cached offers of the last session might be gone already, so we only allow
+                            // to take or remove them once we got the current offers
+                            final ChangeListener<Boolean> staleListener = (ov, oldValue, newValue) -> {
+                                if (getItem() != null)
+                                    verifyIfTradable(getItem());
+                            };
 
                             {
                                 button.setGraphic(iconView);
                                 button.setMinWidth(70);
+                                // The model outlives the cells, so it must not keep them alive
+                                model.stale.addListener(new WeakChangeListener<>(staleListener));
                             }
 
                             private void verifyIfTradable(final OfferBookListItem item) {
                                 boolean isMatchingRestrictions = model.isTradable(item
                                         .getOffer());
-                                button.setDisable(!isMatchingRestrictions);
+                                button.setDisable(!isMatchingRestrictions || model.stale.get());
 
                                 TableRow tableRow = getTableRow();
                                 if (tableRow != null)
@@ -34,6 +34,8 @@ import com.google.inject.Inject;
 import viewfx.model.ViewModel;
 import viewfx.model.support.ActivatableWithDataModel;
 
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.collections.transformation.SortedList;
@@ -54,6 +56,7 @@ class OfferBookViewModel extends ActivatableWithDataModel<OfferBookDataModel> im
     final StringProperty btcCode = new SimpleStringProperty();
     final StringProperty fiatCode = new SimpleStringProperty();
     final StringProperty restrictionsInfo = new SimpleStringProperty();
+    final BooleanProperty stale = new SimpleBooleanProperty();
 
 
     @Inject
@@ -68,6 +71,7 @@ class OfferBookViewModel extends ActivatableWithDataModel<OfferBookDataModel> im
         btcCode.bind(dataModel.btcCode);
         fiatCode.bind(dataModel.fiatCode);
         restrictionsInfo.bind(dataModel.restrictionsInfo);
+        stale.bind(dataModel.stale);
 
         // Bidirectional bindings are used for all input fields: amount, price and volume
         // We do volume/amount calculation during input, so user has immediate feedback
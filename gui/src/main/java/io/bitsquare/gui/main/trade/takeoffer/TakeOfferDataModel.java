@@ -21,6 +21,7 @@ import io.bitsquare.btc.AddressEntry;
 import io.bitsquare.btc.FeePolicy;
 import io.bitsquare.btc.WalletService;
 import io.bitsquare.btc.listeners.BalanceListener;
+import io.bitsquare.msg.MessagePriority;
 import io.bitsquare.msg.MessageService;
 import io.bitsquare.msg.listeners.GetPeerAddressListener;
 import io.bitsquare.msg.listeners.OutgoingMessageListener;
@@ -41,6 +42,7 @@ import com.google.inject.Inject;
 import viewfx.model.Activatable;
 import viewfx.model.DataModel;
 
+import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleBooleanProperty;
@@ -170,22 +172,27 @@ class TakeOfferDataModel implements Activatable, DataModel {
     }
 
     private void isOfferAvailable(Peer peer, String offerId) {
-        messageService.sendMessage(peer, new RequestIsOfferAvailableMessage(offerId),
+        messageService.sendMessage(peer, new RequestIsOfferAvailableMessage(offerId), MessagePriority.LOW,
                 new OutgoingMessageListener() {
+                    // Called on the executor of the trade, see MessageService
                     @Override
                     public void onResult() {
-                        if (isActivated) {
-                            log.trace("RequestIsOfferAvailableMessage successfully arrived at peer");
-                            offerIsAvailable.set(OfferAvailableState.OFFER_AVAILABLE);
-                        }
+                        Platform.runLater(() -> {
+                            if (isActivated) {
+                                log.trace("RequestIsOfferAvailableMessage successfully arrived at peer");
+                                offerIsAvailable.set(OfferAvailableState.OFFER_AVAILABLE);
+                            }
+                        });
                     }
 
                     @Override
                     public void onFailed() {
-                        if (isActivated) {
-                            log.error("RequestIsOfferAvailableMessage  did not arrive at peer");
-                            offerIsAvailable.set(OfferAvailableState.OFFER_NOT_AVAILABLE);
-                        }
+                        Platform.runLater(() -> {
+                            if (isActivated) {
+                                log.error("RequestIsOfferAvailableMessage  did not arrive at peer");
+                                offerIsAvailable.set(OfferAvailableState.OFFER_NOT_AVAILABLE);
+                            }
+                        });
                     }
                 });
     }
@@ -24,7 +24,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class CountryUtil {
@@ -50,6 +52,8 @@ public class CountryUtil {
             {"NA", "North America"}, {"SA", "South America"}, {"AF", "Africa"}, {"EU", "Europe"}, {"AS", "Asia"},
             {"OC", "Oceania"}};
 
+    private static final Map<String, Country> countryByCode = new ConcurrentHashMap<>();
+
     public static List<Region> getAllRegions() {
         final List<Region> allRegions = new ArrayList<>();
 
@@ -118,6 +122,18 @@ public class CountryUtil {
         return new Country(locale.getCountry(), locale.getDisplayCountry(), region);
     }
 
+    /**
+     * Country instances are immutable, so we share one instance per code.
+     */
+    public static Country getCountryByCode(String countryCode) {
+        return countryByCode.computeIfAbsent(countryCode, code -> {
+            final Locale locale = new Locale("", code);
+            String regionCode = getRegionCode(locale.getCountry());
+            final Region region = new Region(regionCode, getRegionName(regionCode));
+            return new Country(locale.getCountry(), locale.getDisplayCountry(), region);
+        });
+    }
+
     private static String getRegionName(final String regionCode) {
         for (final String[] regionName : regionCodeToName) {
             if (regionName[0].equals(regionCode)) {
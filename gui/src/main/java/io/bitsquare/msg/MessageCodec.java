@@ -0,0 +1,305 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.msg;
+
+import io.bitsquare.persistence.DomainCodec;
+import io.bitsquare.trade.protocol.trade.offerer.messages.BankTransferInitedMessage;
+import io.bitsquare.trade.protocol.trade.offerer.messages.DepositTxPublishedMessage;
+import io.bitsquare.trade.protocol.trade.offerer.messages.RequestTakerDepositPaymentMessage;
+import io.bitsquare.trade.protocol.trade.offerer.messages.RespondToIsOfferAvailableMessage;
+import io.bitsquare.trade.protocol.trade.offerer.messages.RespondToTakeOfferRequestMessage;
+import io.bitsquare.trade.protocol.trade.taker.messages.PayoutTxPublishedMessage;
+import io.bitsquare.trade.protocol.trade.taker.messages.RequestIsOfferAvailableMessage;
+import io.bitsquare.trade.protocol.trade.taker.messages.RequestOffererPublishDepositTxMessage;
+import io.bitsquare.trade.protocol.trade.taker.messages.RequestTakeOfferMessage;
+import io.bitsquare.trade.protocol.trade.taker.messages.TakeOfferFeePayedMessage;
+
+import org.bitcoinj.core.Utils;
+
+import java.io.IOException;
+
+import java.math.BigInteger;
+
+import javax.inject.Inject;
+
+import org.spongycastle.util.encoders.Base64;
+
+/**
+ * {@link DomainCodec} with adapters for the trade protocol messages, used to encode the messages sent to other peers.
+ * <p>
+ * Transactions and other hex strings are written as their raw bytes, the signature components and the contract
+ * signature as arrays of their fixed size. Values which do not have the expected form are written as they are, so
+ * the decoded message always equals the sent one. Messages without adapter fall back to Java serialization.
+ * <p>
+ * The type ids of the messages start at 100, the lower ones are used by the domain objects. Like there, the ids must
+ * never change and the version of a type has to be increased if its written fields change.
+ */
+public class MessageCodec extends DomainCodec {
+    private static final int REQUEST_IS_OFFER_AVAILABLE = 100;
+    private static final int RESPOND_TO_IS_OFFER_AVAILABLE = 101;
+    private static final int REQUEST_TAKE_OFFER = 102;
+    private static final int RESPOND_TO_TAKE_OFFER_REQUEST = 103;
+    private static final int TAKE_OFFER_FEE_PAYED = 104;
+    private static final int REQUEST_TAKER_DEPOSIT_PAYMENT = 105;
+    private static final int REQUEST_OFFERER_PUBLISH_DEPOSIT_TX = 106;
+    private static final int DEPOSIT_TX_PUBLISHED = 107;
+    private static final int BANK_TRANSFER_INITED = 108;
+    private static final int PAYOUT_TX_PUBLISHED = 109;
+
+    // R and S of an ECDSA signature
+    private static final int SIGNATURE_COMPONENT_SIZE = 32;
+    // Header byte, R and S of a signed message, see SignatureService
+    private static final int MESSAGE_SIGNATURE_SIZE = 65;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Inject
+    public MessageCodec() {
+        register(REQUEST_IS_OFFER_AVAILABLE, 1, RequestIsOfferAvailableMessage.class,
+                new TypeAdapter<RequestIsOfferAvailableMessage>() {
+                    @Override
+                    public void write(Output output, RequestIsOfferAvailableMessage message) {
+                        output.writeString(message.getTradeId());
+                    }
+
+                    @Override
+                    public RequestIsOfferAvailableMessage read(Input input, int version) throws IOException {
+                        return new RequestIsOfferAvailableMessage(input.readString());
+                    }
+                });
+        register(RESPOND_TO_IS_OFFER_AVAILABLE, 1, RespondToIsOfferAvailableMessage.class,
+                new TypeAdapter<RespondToIsOfferAvailableMessage>() {
+                    @Override
+                    public void write(Output output, RespondToIsOfferAvailableMessage message) {
+                        output.writeString(message.getTradeId());
+                        output.writeBoolean(message.isOfferOpen());
+                    }
+
+                    @Override
+                    public RespondToIsOfferAvailableMessage read(Input input, int version) throws IOException {
+                        return new RespondToIsOfferAvailableMessage(input.readString(), input.readBoolean());
+                    }
+                });
+        register(REQUEST_TAKE_OFFER, 1, RequestTakeOfferMessage.class, new TypeAdapter<RequestTakeOfferMessage>() {
+            @Override
+            public void write(Output output, RequestTakeOfferMessage message) {
+                output.writeString(message.getTradeId());
+            }
+
+            @Override
+            public RequestTakeOfferMessage read(Input input, int version) throws IOException {
+                return new RequestTakeOfferMessage(input.readString());
+            }
+        });
+        register(RESPOND_TO_TAKE_OFFER_REQUEST, 1, RespondToTakeOfferRequestMessage.class,
+                new TypeAdapter<RespondToTakeOfferRequestMessage>() {
+                    @Override
+                    public void write(Output output, RespondToTakeOfferRequestMessage message) {
+                        output.writeString(message.getTradeId());
+                        output.writeBoolean(message.isTakeOfferRequestAccepted());
+                    }
+
+                    @Override
+                    public RespondToTakeOfferRequestMessage read(Input input, int version) throws IOException {
+                        return new RespondToTakeOfferRequestMessage(input.readString(), input.readBoolean());
+                    }
+                });
+        register(TAKE_OFFER_FEE_PAYED, 1, TakeOfferFeePayedMessage.class, new TypeAdapter<TakeOfferFeePayedMessage>() {
+            @Override
+            public void write(Output output, TakeOfferFeePayedMessage message) throws IOException {
+                output.writeString(message.getTradeId());
+                writeHex(output, message.getTakeOfferFeeTxId());
+                writeCoin(output, message.getTradeAmount());
+                writeHex(output, message.getTakerPubKey());
+            }
+
+            @Override
+            public TakeOfferFeePayedMessage read(Input input, int version) throws IOException {
+                return new TakeOfferFeePayedMessage(input.readString(),
+                        readHex(input),
+                        readCoin(input),
+                        readHex(input));
+            }
+        });
+        register(REQUEST_TAKER_DEPOSIT_PAYMENT, 1, RequestTakerDepositPaymentMessage.class,
+                new TypeAdapter<RequestTakerDepositPaymentMessage>() {
+                    @Override
+                    public void write(Output output, RequestTakerDepositPaymentMessage message) throws IOException {
+                        output.writeString(message.getTradeId());
+                        output.writeNullable(message.getBankAccount(), DomainCodec::writeBankAccount);
+                        output.writeString(message.getAccountId());
+                        writeHex(output, message.getOffererPubKey());
+                        writeHex(output, message.getPreparedOffererDepositTxAsHex());
+                        output.writeLong(message.getOffererTxOutIndex());
+                    }
+
+                    @Override
+                    public RequestTakerDepositPaymentMessage read(Input input, int version) throws IOException {
+                        return new RequestTakerDepositPaymentMessage(input.readString(),
+                                input.readNullable(DomainCodec::readBankAccount),
+                                input.readString(),
+                                readHex(input),
+                                readHex(input),
+                                input.readLong());
+                    }
+                });
+        register(REQUEST_OFFERER_PUBLISH_DEPOSIT_TX, 1, RequestOffererPublishDepositTxMessage.class,
+                new TypeAdapter<RequestOffererPublishDepositTxMessage>() {
+                    @Override
+                    public void write(Output output, RequestOffererPublishDepositTxMessage message)
+                            throws IOException {
+                        output.writeString(message.getTradeId());
+                        output.writeNullable(message.getTakerBankAccount(), DomainCodec::writeBankAccount);
+                        output.writeString(message.getTakerAccountId());
+                        writePublicKey(output, message.getTakerMessagePublicKey());
+                        writeHex(output, message.getSignedTakerDepositTxAsHex());
+                        writeHex(output, message.getTxScriptSigAsHex());
+                        writeHex(output, message.getTxConnOutAsHex());
+                        output.writeString(message.getTakerContractAsJson());
+                        writeMessageSignature(output, message.getTakerContractSignature());
+                        output.writeString(message.getTakerPayoutAddress());
+                        output.writeLong(message.getTakerTxOutIndex());
+                        output.writeLong(message.getOffererTxOutIndex());
+                    }
+
+                    @Override
+                    public RequestOffererPublishDepositTxMessage read(Input input, int version) throws IOException {
+                        return new RequestOffererPublishDepositTxMessage(input.readString(),
+                                input.readNullable(DomainCodec::readBankAccount),
+                                input.readString(),
+                                readPublicKey(input),
+                                readHex(input),
+                                readHex(input),
+                                readHex(input),
+                                input.readString(),
+                                readMessageSignature(input),
+                                input.readString(),
+                                input.readLong(),
+                                input.readLong());
+                    }
+                });
+        register(DEPOSIT_TX_PUBLISHED, 1, DepositTxPublishedMessage.class,
+                new TypeAdapter<DepositTxPublishedMessage>() {
+                    @Override
+                    public void write(Output output, DepositTxPublishedMessage message) throws IOException {
+                        output.writeString(message.getTradeId());
+                        writeHex(output, message.getDepositTxAsHex());
+                    }
+
+                    @Override
+                    public DepositTxPublishedMessage read(Input input, int version) throws IOException {
+                        return new DepositTxPublishedMessage(input.readString(), readHex(input));
+                    }
+                });
+        register(BANK_TRANSFER_INITED, 1, BankTransferInitedMessage.class,
+                new TypeAdapter<BankTransferInitedMessage>() {
+                    @Override
+                    public void write(Output output, BankTransferInitedMessage message) throws IOException {
+                        output.writeString(message.getTradeId());
+                        writeHex(output, message.getDepositTxAsHex());
+                        writeSignatureComponent(output, message.getOffererSignatureR());
+                        writeSignatureComponent(output, message.getOffererSignatureS());
+                        writeCoin(output, message.getOffererPaybackAmount());
+                        writeCoin(output, message.getTakerPaybackAmount());
+                        output.writeString(message.getOffererPayoutAddress());
+                    }
+
+                    @Override
+                    public BankTransferInitedMessage read(Input input, int version) throws IOException {
+                        return new BankTransferInitedMessage(input.readString(),
+                                readHex(input),
+                                readSignatureComponent(input),
+                                readSignatureComponent(input),
+                                readCoin(input),
+                                readCoin(input),
+                                input.readString());
+                    }
+                });
+        register(PAYOUT_TX_PUBLISHED, 1, PayoutTxPublishedMessage.class, new TypeAdapter<PayoutTxPublishedMessage>() {
+            @Override
+            public void write(Output output, PayoutTxPublishedMessage message) throws IOException {
+                output.writeString(message.getTradeId());
+                writeHex(output, message.getPayoutTxAsHex());
+            }
+
+            @Override
+            public PayoutTxPublishedMessage read(Input input, int version) throws IOException {
+                return new PayoutTxPublishedMessage(input.readString(), readHex(input));
+            }
+        });
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Signatures
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // R or S of a signature as decimal number
+    private static void writeSignatureComponent(Output output, String value) {
+        BigInteger number = parseUnsigned(value);
+        boolean fixedSize = number != null && number.bitLength() <= SIGNATURE_COMPONENT_SIZE * 8;
+        output.writeBoolean(fixedSize);
+        if (fixedSize)
+            output.writeFixedBytes(Utils.bigIntegerToBytes(number, SIGNATURE_COMPONENT_SIZE));
+        else
+            output.writeString(value);
+    }
+
+    private static String readSignatureComponent(Input input) throws IOException {
+        return input.readBoolean() ?
+                new BigInteger(1, input.readFixedBytes(SIGNATURE_COMPONENT_SIZE)).toString() : input.readString();
+    }
+
+    // Base64 encoded signature of a message
+    private static void writeMessageSignature(Output output, String signature) {
+        byte[] bytes = decodeBase64(signature);
+        boolean fixedSize = bytes != null && bytes.length == MESSAGE_SIGNATURE_SIZE &&
+                signature.equals(Base64.toBase64String(bytes));
+        output.writeBoolean(fixedSize);
+        if (fixedSize)
+            output.writeFixedBytes(bytes);
+        else
+            output.writeString(signature);
+    }
+
+    private static String readMessageSignature(Input input) throws IOException {
+        return input.readBoolean() ?
+                Base64.toBase64String(input.readFixedBytes(MESSAGE_SIGNATURE_SIZE)) : input.readString();
+    }
+
+    // Only the canonical form, so the decoded string is the same
+    private static BigInteger parseUnsigned(String value) {
+        if (value == null || value.isEmpty() || !value.chars().allMatch(Character::isDigit))
+            return null;
+        BigInteger number = new BigInteger(value);
+        return number.toString().equals(value) ? number : null;
+    }
+
+    private static byte[] decodeBase64(String value) {
+        if (value == null)
+            return null;
+        try {
+            return Base64.decode(value);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
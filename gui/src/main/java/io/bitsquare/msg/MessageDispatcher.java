@@ -0,0 +1,227 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.msg;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Backend event loop for the handling of messages, so protocol logic (e.g. signing and verifying transactions) runs
+ * neither on the network threads nor on the UI thread.
+ * <p>
+ * Tasks are executed by key (e.g. the trade ID) on a shared pool of worker threads. Tasks with the same key run one
+ * after the other in the order they got submitted, tasks with different keys run in parallel. The time the tasks
+ * wait in the queue and the time they take to run are measured separately.
+ */
+public class MessageDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(MessageDispatcher.class);
+
+    private static final int MAX_THREADS = 4;
+
+    private final ExecutorService executorService;
+    // Only keys with pending tasks have an entry
+    private final Map<String, SerialExecutor> serialExecutors = new HashMap<>();
+    private final Latency queueWait = new Latency();
+    private final Latency handlingTime = new Latency();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Inject
+    public MessageDispatcher() {
+        this(Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+    }
+
+    MessageDispatcher(int threads) {
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("Message dispatcher %d").setDaemon(true).build());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        executorService = threadPoolExecutor;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Public API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Runs the task after all tasks submitted before with the same key.
+     */
+    public void execute(String key, Runnable task) {
+        synchronized (serialExecutors) {
+            if (executorService.isShutdown()) {
+                log.warn("Message dispatcher is shut down, we drop the task for " + key);
+                return;
+            }
+
+            SerialExecutor serialExecutor = serialExecutors.computeIfAbsent(key, SerialExecutor::new);
+            serialExecutor.tasks.add(new Task(task, System.nanoTime()));
+            if (!serialExecutor.scheduled) {
+                serialExecutor.scheduled = true;
+                executorService.execute(() -> runNext(serialExecutor));
+            }
+        }
+    }
+
+    /**
+     * @return an executor which runs its tasks in the order of submission, see {@link #execute(String, Runnable)}
+     */
+    public Executor getExecutor(String key) {
+        return task -> execute(key, task);
+    }
+
+    public void shutDown() {
+        synchronized (serialExecutors) {
+            executorService.shutdown();
+        }
+        log.info("Message dispatcher shut down. Queue wait: " + queueWait + ", handling time: " + handlingTime);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Getters
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the time from the submission of the tasks until they started to run
+     */
+    public Latency getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * @return the time the tasks took to run
+     */
+    public Latency getHandlingTime() {
+        return handlingTime;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Runs one task and submits the next one of the same key again, so a busy key does not starve the others
+    private void runNext(SerialExecutor serialExecutor) {
+        final Task task;
+        synchronized (serialExecutors) {
+            task = serialExecutor.tasks.poll();
+        }
+
+        long start = System.nanoTime();
+        queueWait.record(start - task.submitted);
+        try {
+            task.runnable.run();
+        } catch (Throwable t) {
+            log.error("Handling of a message for " + serialExecutor.key + " failed: " + t, t);
+        } finally {
+            handlingTime.record(System.nanoTime() - start);
+            synchronized (serialExecutors) {
+                if (serialExecutor.tasks.isEmpty()) {
+                    serialExecutor.scheduled = false;
+                    serialExecutors.remove(serialExecutor.key);
+                }
+                else {
+                    try {
+                        executorService.execute(() -> runNext(serialExecutor));
+                    } catch (RejectedExecutionException e) {
+                        log.warn("Message dispatcher is shut down, we drop " + serialExecutor.tasks.size() +
+                                " tasks for " + serialExecutor.key);
+                        serialExecutors.remove(serialExecutor.key);
+                    }
+                }
+            }
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Inner classes
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Number, average and maximum of measured durations.
+     */
+    public static class Latency {
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        synchronized void record(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized double getAverageMillis() {
+            return count == 0 ? 0 : totalNanos / (double) count / 1_000_000;
+        }
+
+        public synchronized double getMaxMillis() {
+            return maxNanos / 1_000_000d;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%d tasks, average %.2f ms, max %.2f ms", count, getAverageMillis(),
+                    getMaxMillis());
+        }
+    }
+
+    private static class SerialExecutor {
+        final String key;
+        final Queue<Task> tasks = new ArrayDeque<>();
+        boolean scheduled;
+
+        SerialExecutor(String key) {
+            this.key = key;
+        }
+    }
+
+    private static class Task {
+        final Runnable runnable;
+        final long submitted;
+
+        Task(Runnable runnable, long submitted) {
+            this.runnable = runnable;
+            this.submitted = submitted;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.msg;
+
+import java.io.Serializable;
+
+/**
+ * Wraps a message sent by the {@link OutboundMessageQueue} with the id which identifies its duplicates. The message
+ * is encoded with the {@link MessageCodec}.
+ */
+public class MessageEnvelope implements Serializable {
+    private static final long serialVersionUID = 6132840917561827103L;
+
+    private final String id;
+    private final byte[] message;
+
+    public MessageEnvelope(String id, byte[] message) {
+        this.id = id;
+        this.message = message;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public byte[] getMessage() {
+        return message;
+    }
+}
@@ -21,6 +21,8 @@ import io.bitsquare.BitsquareModule;
 
 import com.google.inject.Injector;
 
+import javax.inject.Singleton;
+
 import org.springframework.core.env.Environment;
 
 public abstract class MessageModule extends BitsquareModule {
@@ -32,6 +34,7 @@ public abstract class MessageModule extends BitsquareModule {
     @Override
     protected final void configure() {
         bind(MessageService.class).to(messageService()).asEagerSingleton();
+        bind(MessageDispatcher.class).in(Singleton.class);
 
         doConfigure();
     }
@@ -44,5 +47,6 @@ public abstract class MessageModule extends BitsquareModule {
     @Override
     protected void doClose(Injector injector) {
         injector.getInstance(MessageService.class).shutDown();
+        injector.getInstance(MessageDispatcher.class).shutDown();
     }
 }
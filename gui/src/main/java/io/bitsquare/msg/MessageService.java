@@ -33,12 +33,23 @@ import rx.Observable;
 
 public interface MessageService extends MessageBroker {
 
-    void sendMessage(Peer peer, Message message, OutgoingMessageListener listener);
+    default void sendMessage(Peer peer, Message message, OutgoingMessageListener listener) {
+        sendMessage(peer, message, MessagePriority.HIGH, listener);
+    }
+
+    /**
+     * Queues the message, it gets sent again if sending fails. The listener gets called once on the executor of the
+     * trade of the message (see {@link MessageDispatcher}), so it has to hand over UI updates to the user thread.
+     */
+    void sendMessage(Peer peer, Message message, MessagePriority priority, OutgoingMessageListener listener);
 
     void shutDown();
 
     void addArbitrator(Arbitrator arbitrator);
 
+    /**
+     * The listener gets called on the executor of the trade of the message, see {@link MessageDispatcher}.
+     */
     void addIncomingMessageListener(IncomingMessageListener listener);
 
     void removeIncomingMessageListener(IncomingMessageListener listener);
@@ -0,0 +1,231 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.msg;
+
+import io.bitsquare.msg.listeners.OutgoingMessageListener;
+import io.bitsquare.network.Peer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queues the outgoing messages per peer and sends them with the {@link Transport}. One message per peer is sent at a
+ * time, the others wait in the order of their {@link MessagePriority} and then of their arrival. A message which could
+ * not be sent is sent again after a delay which doubles with each attempt, until MAX_ATTEMPTS are reached and its
+ * listener gets informed about the failure. The retry keeps the slot of the peer, so the later messages to an
+ * unreachable peer wait instead of overtaking it.
+ * <p>
+ * The retries only cover transient failures. All attempts go to the given peer, so a peer which changed its address
+ * is reached only if the transport knows the new address by then. Otherwise the listener gets the failure and the
+ * caller has to look up the peer again.
+ * <p>
+ * Each message gets an id which stays the same for all its attempts, so the receiver can drop the duplicates of a
+ * message which arrived although its sending was reported as failed.
+ * <p>
+ * The listeners are called on the threads of the transport or of the retry timer. Thread safe.
+ */
+public class OutboundMessageQueue {
+    private static final Logger log = LoggerFactory.getLogger(OutboundMessageQueue.class);
+
+    static final int MAX_ATTEMPTS = 5;
+    static final long DEFAULT_RETRY_DELAY = 500;
+
+    public interface Transport {
+        /**
+         * Sends one attempt of the message. The transport may send it to a newer address of the peer.
+         */
+        void send(Peer peer, String messageId, Message message, OutgoingMessageListener listener);
+    }
+
+    private static class Entry {
+        final String id = UUID.randomUUID().toString();
+        final Peer peer;
+        final Message message;
+        final MessagePriority priority;
+        final OutgoingMessageListener listener;
+        final long sequenceNumber;
+        int attempts;
+
+        Entry(Peer peer, Message message, MessagePriority priority, OutgoingMessageListener listener,
+              long sequenceNumber) {
+            this.peer = peer;
+            this.message = message;
+            this.priority = priority;
+            this.listener = listener;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+
+    private static class PeerQueue {
+        final PriorityQueue<Entry> waiting = new PriorityQueue<>(Comparator.<Entry, MessagePriority>comparing(
+                entry -> entry.priority).thenComparingLong(entry -> entry.sequenceNumber));
+        boolean sending;
+    }
+
+    private final Transport transport;
+    private final long retryDelay;
+    private final ScheduledExecutorService retryExecutor;
+    private final Map<Peer, PeerQueue> peerQueues = new HashMap<>();
+    private long sequenceNumber;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failedMessages = new AtomicLong();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public OutboundMessageQueue(Transport transport) {
+        this(transport, DEFAULT_RETRY_DELAY);
+    }
+
+    OutboundMessageQueue(Transport transport, long retryDelay) {
+        this.transport = transport;
+        this.retryDelay = retryDelay;
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("Outbound message retry").setDaemon(true).build());
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Public API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public void send(Peer peer, Message message, MessagePriority priority, OutgoingMessageListener listener) {
+        synchronized (this) {
+            peerQueues.computeIfAbsent(peer, p -> new PeerQueue()).waiting.add(
+                    new Entry(peer, message, priority, listener, sequenceNumber++));
+        }
+        dispatch(peer);
+    }
+
+    public void shutDown() {
+        retryExecutor.shutdownNow();
+        log.info("Outbound message queue shut down. Queued messages: " + getQueuedMessages() + ", messages in " +
+                "flight: " + getInFlightMessages() + ", retries: " + retries + ", failed messages: " + failedMessages);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Metrics
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the number of messages waiting for a free slot
+     */
+    public synchronized int getQueuedMessages() {
+        return peerQueues.values().stream().mapToInt(peerQueue -> peerQueue.waiting.size()).sum();
+    }
+
+    /**
+     * @return the number of messages being sent or waiting for their retry
+     */
+    public synchronized int getInFlightMessages() {
+        return (int) peerQueues.values().stream().filter(peerQueue -> peerQueue.sending).count();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of messages given up after MAX_ATTEMPTS
+     */
+    public long getFailedMessages() {
+        return failedMessages.get();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void dispatch(Peer peer) {
+        final Entry entry;
+        synchronized (this) {
+            PeerQueue peerQueue = peerQueues.get(peer);
+            if (peerQueue == null || peerQueue.sending || peerQueue.waiting.isEmpty())
+                return;
+
+            entry = peerQueue.waiting.poll();
+            peerQueue.sending = true;
+        }
+        attempt(entry);
+    }
+
+    private void attempt(Entry entry) {
+        entry.attempts++;
+        // A transport might report an attempt twice, e.g. as failure after the result handler threw
+        final AtomicBoolean reported = new AtomicBoolean();
+        transport.send(entry.peer, entry.id, entry.message, new OutgoingMessageListener() {
+            @Override
+            public void onResult() {
+                if (!reported.compareAndSet(false, true))
+                    return;
+
+                complete(entry);
+                entry.listener.onResult();
+            }
+
+            @Override
+            public void onFailed() {
+                if (!reported.compareAndSet(false, true))
+                    return;
+
+                if (entry.attempts < MAX_ATTEMPTS && !retryExecutor.isShutdown()) {
+                    long delay = retryDelay << (entry.attempts - 1);
+                    retries.incrementAndGet();
+                    log.debug("Sending " + entry.message.getClass().getSimpleName() + " failed, attempt " +
+                            entry.attempts + " of " + MAX_ATTEMPTS + ", we try again in " + delay + " ms.");
+                    retryExecutor.schedule(() -> attempt(entry), delay, TimeUnit.MILLISECONDS);
+                }
+                else {
+                    failedMessages.incrementAndGet();
+                    log.warn("Sending " + entry.message.getClass().getSimpleName() + " failed after " +
+                            entry.attempts + " attempts.");
+                    complete(entry);
+                    entry.listener.onFailed();
+                }
+            }
+        });
+    }
+
+    private void complete(Entry entry) {
+        synchronized (this) {
+            PeerQueue peerQueue = peerQueues.get(entry.peer);
+            peerQueue.sending = false;
+            if (peerQueue.waiting.isEmpty())
+                peerQueues.remove(entry.peer);
+        }
+        dispatch(entry.peer);
+    }
+}
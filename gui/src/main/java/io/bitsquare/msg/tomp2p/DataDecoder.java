@@ -0,0 +1,154 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.msg.tomp2p;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.inject.Inject;
+
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deserializes the payloads of DHT data in parallel on a bounded pool of worker threads, so neither the network
+ * threads of TomP2P nor the UI thread are blocked by it. Entries which can't be deserialized or are of another type
+ * are dropped and counted.
+ */
+public class DataDecoder {
+    private static final Logger log = LoggerFactory.getLogger(DataDecoder.class);
+
+    private static final int MAX_THREADS = 4;
+    // Number of entries decoded by one task
+    private static final int BATCH_SIZE = 32;
+
+    private final ExecutorService executorService;
+    private final AtomicLong corruptEntries = new AtomicLong();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Inject
+    public DataDecoder() {
+        int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("DHT data decoder %d").setDaemon(true).build());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        executorService = threadPoolExecutor;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Public API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decodes the payloads of the data map. The result handler is called on a worker thread, so the caller has to
+     * hand the result over to its own thread.
+     *
+     * @param dataMap       the data map of a get from the DHT, can be null
+     * @param type          entries with a payload of another type are dropped
+     * @param resultHandler gets the decoded payloads by the keys of their entries
+     */
+    public <K, T> void decode(Map<K, Data> dataMap, Class<T> type, Consumer<Map<K, T>> resultHandler) {
+        final Map<K, T> result = new ConcurrentHashMap<>();
+        if (dataMap == null || dataMap.isEmpty()) {
+            resultHandler.accept(result);
+            return;
+        }
+
+        final List<List<Map.Entry<K, Data>>> batches = new ArrayList<>();
+        List<Map.Entry<K, Data>> batch = null;
+        for (Map.Entry<K, Data> entry : dataMap.entrySet()) {
+            if (batch == null || batch.size() == BATCH_SIZE) {
+                batch = new ArrayList<>(BATCH_SIZE);
+                batches.add(batch);
+            }
+            batch.add(entry);
+        }
+
+        final AtomicInteger pendingBatches = new AtomicInteger(batches.size());
+        final AtomicInteger dropped = new AtomicInteger();
+        for (List<Map.Entry<K, Data>> entries : batches) {
+            executorService.execute(() -> {
+                for (Map.Entry<K, Data> entry : entries) {
+                    T value = decode(entry.getValue(), type);
+                    if (value != null)
+                        result.put(entry.getKey(), value);
+                    else
+                        dropped.incrementAndGet();
+                }
+
+                if (pendingBatches.decrementAndGet() == 0) {
+                    if (dropped.get() > 0)
+                        log.warn("Dropped " + dropped.get() + " of " + dataMap.size() + " DHT entries which are no " +
+                                type.getSimpleName() + ". Dropped entries in total: " + corruptEntries.get());
+                    resultHandler.accept(result);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of entries dropped since the start
+     */
+    public long getCorruptEntries() {
+        return corruptEntries.get();
+    }
+
+    public void shutDown() {
+        executorService.shutdownNow();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private <T> T decode(Data data, Class<T> type) {
+        try {
+            Object object = data.object();
+            if (type.isInstance(object))
+                return type.cast(object);
+            log.debug("DHT entry of type " + (object == null ? null : object.getClass().getName()) +
+                    " dropped, expected " + type.getName());
+        } catch (ClassNotFoundException | IOException | RuntimeException e) {
+            log.debug("DHT entry could not be deserialized: " + e);
+        }
+        corruptEntries.incrementAndGet();
+        return null;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.msg.tomp2p;
+
+import io.bitsquare.network.Peer;
+import io.bitsquare.network.tomp2p.TomP2PPeer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+
+/**
+ * Addresses of peers looked up in the DHT, keyed by the hash of their message public key (which is also their peer id
+ * and the location key of the address in the DHT). Entries expire after the TTL, and the least recently used entries
+ * are dropped if there are more than MAX_ENTRIES. Thread safe.
+ * <p>
+ * Only the domain protected address in the DHT is trusted. The sender of an incoming direct message is not verified
+ * (direct messages are not signed), so it can only refresh an entry with the same address, see {@link #refresh}.
+ */
+class PeerAddressCache {
+
+    static final long DEFAULT_TTL = 5 * 60 * 1000;
+    private static final int MAX_ENTRIES = 1000;
+
+    private static class Entry {
+        final Peer peer;
+        final long expirationTime;
+
+        Entry(Peer peer, long expirationTime) {
+            this.peer = peer;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    private final long ttl;
+    private final Map<Number160, Entry> entries = new LinkedHashMap<Number160, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Number160, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    PeerAddressCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Package scope API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the cached address or null if it is unknown or expired
+     */
+    synchronized Peer get(Number160 key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+
+        if (entry.expirationTime < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.peer;
+    }
+
+    synchronized void put(Number160 key, Peer peer) {
+        entries.put(key, new Entry(peer, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Extends the TTL of the cached address if the given peer uses the same peer id and address. Otherwise nothing
+     * changes, so a peer which claims the id of another peer can't redirect its messages.
+     */
+    synchronized void refresh(Number160 key, Peer peer) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expirationTime >= System.currentTimeMillis() && isSameAddress(entry.peer, peer))
+            entries.put(key, new Entry(entry.peer, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Removes the address if it is still the cached one, a newer address received meanwhile is kept.
+     */
+    synchronized void invalidate(Number160 key, Peer peer) {
+        Entry entry = entries.get(key);
+        if (entry != null && isSameAddress(entry.peer, peer))
+            entries.remove(key);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // PeerAddress.equals only compares the peer ids
+    private static boolean isSameAddress(Peer cachedPeer, Peer peer) {
+        if (!(cachedPeer instanceof TomP2PPeer) || !(peer instanceof TomP2PPeer))
+            return false;
+
+        PeerAddress cachedAddress = ((TomP2PPeer) cachedPeer).getPeerAddress();
+        PeerAddress address = ((TomP2PPeer) peer).getPeerAddress();
+        return cachedAddress != null && address != null &&
+                cachedAddress.peerId().equals(address.peerId()) &&
+                cachedAddress.inetAddress().equals(address.inetAddress()) &&
+                cachedAddress.peerSocketAddress().tcpPort() == address.peerSocketAddress().tcpPort() &&
+                cachedAddress.peerSocketAddress().udpPort() == address.peerSocketAddress().udpPort();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.msg.tomp2p;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FuturePeerConnection;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.PeerAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the connections to the peers we send direct messages to open, so the messages of a trade share one
+ * connection instead of paying the connection setup (and NAT traversal) for each message. Connections which have not
+ * been used for IDLE_TIMEOUT get closed, and if there are more than MAX_CONNECTIONS the least recently used one gets
+ * closed. Thread safe.
+ */
+class PeerConnectionManager {
+    private static final Logger log = LoggerFactory.getLogger(PeerConnectionManager.class);
+
+    // Covers the pauses between the messages of a trade, not the waiting for the bank transfer
+    private static final long IDLE_TIMEOUT = 2 * 60 * 1000;
+    private static final int MAX_CONNECTIONS = 20;
+    // Keeps NAT mappings of open connections alive
+    private static final int HEART_BEAT_INTERVAL = 30 * 1000;
+
+    private static class Connection {
+        final FuturePeerConnection futurePeerConnection;
+        long lastUsed;
+
+        Connection(FuturePeerConnection futurePeerConnection) {
+            this.futurePeerConnection = futurePeerConnection;
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private final Peer peer;
+    // In access order, so the least recently used connection comes first
+    private final Map<PeerAddress, Connection> connections = new LinkedHashMap<>(16, 0.75f, true);
+    private final Timer timer = new Timer("Peer connection eviction", true);
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    PeerConnectionManager(Peer peer) {
+        this.peer = peer;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                closeIdleConnections();
+            }
+        }, IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Package scope API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the open or pending connection to the peer, or a new one if there is none or it failed
+     */
+    synchronized FuturePeerConnection getConnection(PeerAddress peerAddress) {
+        Connection connection = connections.get(peerAddress);
+        if (connection != null && !connection.futurePeerConnection.isFailed()) {
+            connection.lastUsed = System.currentTimeMillis();
+            return connection.futurePeerConnection;
+        }
+
+        FuturePeerConnection futurePeerConnection = peer.createPeerConnection(peerAddress, HEART_BEAT_INTERVAL);
+        connections.put(peerAddress, new Connection(futurePeerConnection));
+        futurePeerConnection.addListener(new BaseFutureAdapter<FuturePeerConnection>() {
+            @Override
+            public void operationComplete(FuturePeerConnection future) throws Exception {
+                // The peer or the network might close the connection, the next message opens a new one then
+                if (future.isSuccess())
+                    future.peerConnection().closeFuture().addListener(new BaseFutureAdapter<BaseFuture>() {
+                        @Override
+                        public void operationComplete(BaseFuture closeFuture) throws Exception {
+                            remove(peerAddress, futurePeerConnection);
+                        }
+                    });
+                else
+                    remove(peerAddress, futurePeerConnection);
+            }
+        });
+
+        if (connections.size() > MAX_CONNECTIONS) {
+            Iterator<Connection> iterator = connections.values().iterator();
+            Connection eldest = iterator.next();
+            iterator.remove();
+            log.debug("Too many open peer connections, we close the least recently used one.");
+            eldest.futurePeerConnection.close();
+        }
+        return futurePeerConnection;
+    }
+
+    /**
+     * Closes the connection after a failed message, unless it got replaced already.
+     */
+    synchronized void closeConnection(PeerAddress peerAddress, FuturePeerConnection futurePeerConnection) {
+        if (remove(peerAddress, futurePeerConnection))
+            futurePeerConnection.close();
+    }
+
+    synchronized void shutDown() {
+        timer.cancel();
+        connections.values().stream().forEach(connection -> connection.futurePeerConnection.close());
+        connections.clear();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private synchronized boolean remove(PeerAddress peerAddress, FuturePeerConnection futurePeerConnection) {
+        Connection connection = connections.get(peerAddress);
+        if (connection != null && connection.futurePeerConnection == futurePeerConnection) {
+            connections.remove(peerAddress);
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void closeIdleConnections() {
+        long idleSince = System.currentTimeMillis() - IDLE_TIMEOUT;
+        for (Iterator<Map.Entry<PeerAddress, Connection>> iterator = connections.entrySet().iterator();
+             iterator.hasNext(); ) {
+            Map.Entry<PeerAddress, Connection> entry = iterator.next();
+            if (entry.getValue().lastUsed < idleSince) {
+                iterator.remove();
+                log.debug("Close idle connection to " + entry.getKey());
+                entry.getValue().futurePeerConnection.close();
+            }
+        }
+    }
+}
@@ -52,6 +52,7 @@ public class TomP2PMessageModule extends MessageModule {
                 env.getProperty(USE_MANUAL_PORT_FORWARDING_KEY, boolean.class, false));
                 
         bind(TomP2PNode.class).in(Singleton.class);
+        bind(DataDecoder.class).in(Singleton.class);
         bind(ClientNode.class).to(TomP2PNode.class);
 
         bind(Node.class).annotatedWith(Names.named(BOOTSTRAP_NODE_KEY)).toInstance(
@@ -71,6 +72,7 @@ public class TomP2PMessageModule extends MessageModule {
         super.doClose(injector);
 
         injector.getInstance(BootstrappedPeerBuilder.class).shutDown();
+        injector.getInstance(DataDecoder.class).shutDown();
     }
 
     @Override
@@ -19,7 +19,12 @@ package io.bitsquare.msg.tomp2p;
 
 import io.bitsquare.arbitrator.Arbitrator;
 import io.bitsquare.msg.Message;
+import io.bitsquare.msg.MessageCodec;
+import io.bitsquare.msg.MessageDispatcher;
+import io.bitsquare.msg.MessageEnvelope;
+import io.bitsquare.msg.MessagePriority;
 import io.bitsquare.msg.MessageService;
+import io.bitsquare.msg.OutboundMessageQueue;
 import io.bitsquare.msg.listeners.ArbitratorListener;
 import io.bitsquare.msg.listeners.GetPeerAddressListener;
 import io.bitsquare.msg.listeners.IncomingMessageListener;
@@ -27,15 +32,22 @@ import io.bitsquare.msg.listeners.OutgoingMessageListener;
 import io.bitsquare.network.BootstrapState;
 import io.bitsquare.network.Peer;
 import io.bitsquare.network.tomp2p.TomP2PPeer;
+import io.bitsquare.trade.protocol.trade.TradeMessage;
 import io.bitsquare.user.User;
 
 import java.io.IOException;
+import java.io.Serializable;
 
 import java.security.PublicKey;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.inject.Inject;
 
@@ -64,17 +76,34 @@ import rx.Observable;
  * The TomP2P library codebase shall not be used outside that service.
  * That way we limit the dependency of the TomP2P library only to that class (and it's sub components).
  * <p>
- * TODO: improve callbacks that Platform.runLater is not necessary. We call usually that methods form teh UI thread.
+ * Incoming messages and the results of sent messages are handed over to the {@link MessageDispatcher}, the messages
+ * of a trade are handled one after the other on the executor of the trade. The results of queries which are shown
+ * in the UI (peer addresses, arbitrators) are still delivered on the UI thread.
  */
 public class TomP2PMessageService implements MessageService {
     private static final Logger log = LoggerFactory.getLogger(TomP2PMessageService.class);
     private static final String ARBITRATORS_ROOT = "ArbitratorsRoot";
+    // Number of ids of received messages kept to detect duplicates
+    private static final int MAX_RECEIVED_MESSAGE_IDS = 1000;
 
     private final TomP2PNode p2pNode;
     private final User user;
+    private final DataDecoder dataDecoder;
+    private final MessageCodec messageCodec;
+    private final MessageDispatcher messageDispatcher;
+    // Spares the DHT lookup for peers we looked up recently, e.g. repeated trades with the same offerer
+    private final PeerAddressCache peerAddressCache = new PeerAddressCache(PeerAddressCache.DEFAULT_TTL);
+    private final OutboundMessageQueue outboundMessageQueue = new OutboundMessageQueue(this::sendEnvelope);
+    private final Set<String> receivedMessageIds = Collections.newSetFromMap(
+            new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_RECEIVED_MESSAGE_IDS;
+                }
+            });
 
     private final List<ArbitratorListener> arbitratorListeners = new ArrayList<>();
-    private final List<IncomingMessageListener> incomingMessageListeners = new ArrayList<>();
+    private final List<IncomingMessageListener> incomingMessageListeners = new CopyOnWriteArrayList<>();
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -82,9 +111,13 @@ public class TomP2PMessageService implements MessageService {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     @Inject
-    public TomP2PMessageService(User user, TomP2PNode p2pNode) {
+    public TomP2PMessageService(User user, TomP2PNode p2pNode, DataDecoder dataDecoder, MessageCodec messageCodec,
+                                MessageDispatcher messageDispatcher) {
         this.user = user;
         this.p2pNode = p2pNode;
+        this.dataDecoder = dataDecoder;
+        this.messageCodec = messageCodec;
+        this.messageDispatcher = messageDispatcher;
     }
 
 
@@ -97,6 +130,7 @@ public class TomP2PMessageService implements MessageService {
     }
 
     public void shutDown() {
+        outboundMessageQueue.shutDown();
         if (p2pNode != null)
             p2pNode.shutDown();
     }
@@ -108,7 +142,15 @@ public class TomP2PMessageService implements MessageService {
 
 
     public void getPeerAddress(PublicKey publicKey, GetPeerAddressListener listener) {
+        // The peer id is the hash of the message public key as well, see PeerAddressCache
         final Number160 locationKey = Utils.makeSHAHash(publicKey.getEncoded());
+        final Peer cachedPeer = peerAddressCache.get(locationKey);
+        if (cachedPeer != null) {
+            log.trace("Peer address found in cache: " + cachedPeer);
+            Platform.runLater(() -> listener.onResult(cachedPeer));
+            return;
+        }
+
         FutureGet futureGet = p2pNode.getDomainProtectedData(locationKey, publicKey);
 
         futureGet.addListener(new BaseFutureAdapter<BaseFuture>() {
@@ -116,6 +158,7 @@ public class TomP2PMessageService implements MessageService {
             public void operationComplete(BaseFuture baseFuture) throws Exception {
                 if (baseFuture.isSuccess() && futureGet.data() != null) {
                     final Peer peer = (Peer) futureGet.data().object();
+                    peerAddressCache.put(locationKey, peer);
                     Platform.runLater(() -> listener.onResult(peer));
                 }
                 else {
@@ -130,27 +173,21 @@ public class TomP2PMessageService implements MessageService {
     // Trade process
     ///////////////////////////////////////////////////////////////////////////////////////////
 
-    public void sendMessage(Peer peer, Message message,
+    public void sendMessage(Peer peer, Message message, MessagePriority priority,
                             OutgoingMessageListener listener) {
         if (!(peer instanceof TomP2PPeer)) {
             throw new IllegalArgumentException("peer must be of type TomP2PPeer");
         }
-        FutureDirect futureDirect = p2pNode.sendData(((TomP2PPeer) peer).getPeerAddress(), message);
-        futureDirect.addListener(new BaseFutureListener<BaseFuture>() {
+        final String dispatchKey = getDispatchKey(message, peer);
+        outboundMessageQueue.send(peer, message, priority, new OutgoingMessageListener() {
             @Override
-            public void operationComplete(BaseFuture future) throws Exception {
-                if (future.isSuccess()) {
-                    Platform.runLater(listener::onResult);
-                }
-                else {
-                    log.error("sendMessage failed with reason " + futureDirect.failedReason());
-                    Platform.runLater(listener::onFailed);
-                }
+            public void onResult() {
+                messageDispatcher.execute(dispatchKey, listener::onResult);
             }
 
             @Override
-            public void exceptionCaught(Throwable t) throws Exception {
-                Platform.runLater(listener::onFailed);
+            public void onFailed() {
+                messageDispatcher.execute(dispatchKey, listener::onFailed);
             }
         });
     }
@@ -234,23 +271,11 @@ public class TomP2PMessageService implements MessageService {
         futureGet.addListener(new BaseFutureAdapter<BaseFuture>() {
             @Override
             public void operationComplete(BaseFuture future) throws Exception {
-                Platform.runLater(() -> arbitratorListeners.stream().forEach(listener ->
-                {
-                    List<Arbitrator> arbitrators = new ArrayList<>();
-                    for (Data arbitratorData : futureGet.dataMap().values()) {
-                        try {
-                            Object arbitratorDataObject = arbitratorData.object();
-                            if (arbitratorDataObject instanceof Arbitrator) {
-                                arbitrators.add((Arbitrator) arbitratorDataObject);
-                            }
-                        } catch (ClassNotFoundException | IOException e) {
-                            e.printStackTrace();
-                            log.error("Get arbitrators from DHT failed with exception:" + e.getMessage());
-                        }
-                    }
-
-                    listener.onArbitratorsReceived(arbitrators);
-                }));
+                dataDecoder.decode(futureGet.dataMap(), Arbitrator.class, decoded -> {
+                    List<Arbitrator> arbitrators = new ArrayList<>(decoded.values());
+                    Platform.runLater(() -> arbitratorListeners.stream().forEach(listener ->
+                            listener.onArbitratorsReceived(new ArrayList<>(arbitrators))));
+                });
                 if (future.isSuccess()) {
                     log.trace("Get arbitrators from DHT was successful. Stored data: [key: " + locationKey + ", " +
                             "values: " + futureGet.dataMap() + "]");
@@ -289,9 +314,96 @@ public class TomP2PMessageService implements MessageService {
 
     @Override
     public void handleMessage(Object message, Peer sender) {
+        if (message instanceof MessageEnvelope) {
+            MessageEnvelope envelope = (MessageEnvelope) message;
+            try {
+                message = messageCodec.decode(envelope.getMessage());
+            } catch (IOException | ClassNotFoundException e) {
+                log.error("Could not decode message " + envelope.getId() + ": " + e);
+                return;
+            }
+            // Only a decoded message counts as received, a message which got damaged on its way might arrive
+            // intact with the next attempt
+            synchronized (receivedMessageIds) {
+                // The sender sends a message again if it did not get our confirmation
+                if (!receivedMessageIds.add(envelope.getId())) {
+                    log.debug("Drop duplicate of message " + envelope.getId());
+                    return;
+                }
+            }
+        }
+
         if (message instanceof Message) {
-            Platform.runLater(() -> incomingMessageListeners.stream().forEach(e ->
-                    e.onMessage((Message) message, sender)));
+            // Our peers use their message key pair as peer key pair, so the peer id is the hash of their message
+            // public key. The message is not signed, so the sender only keeps an address we got from the DHT alive.
+            if (sender instanceof TomP2PPeer && ((TomP2PPeer) sender).getPeerAddress() != null)
+                peerAddressCache.refresh(((TomP2PPeer) sender).getPeerAddress().peerId(), sender);
+
+            final Message receivedMessage = (Message) message;
+            messageDispatcher.execute(getDispatchKey(receivedMessage, sender), () ->
+                    incomingMessageListeners.stream().forEach(e -> e.onMessage(receivedMessage, sender)));
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void sendEnvelope(Peer peer, String messageId, Message message, OutgoingMessageListener listener) {
+        final TomP2PPeer receiver = getCachedAddress((TomP2PPeer) peer);
+        final byte[] encodedMessage;
+        try {
+            encodedMessage = messageCodec.encode((Serializable) message);
+        } catch (IOException | ClassCastException e) {
+            log.error("Could not encode " + message.getClass().getSimpleName() + ": " + e);
+            listener.onFailed();
+            return;
         }
+
+        FutureDirect futureDirect = p2pNode.sendData(receiver.getPeerAddress(),
+                new MessageEnvelope(messageId, encodedMessage));
+        futureDirect.addListener(new BaseFutureListener<BaseFuture>() {
+            @Override
+            public void operationComplete(BaseFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    listener.onResult();
+                }
+                else {
+                    log.error("sendMessage failed with reason " + futureDirect.failedReason());
+                    invalidatePeerAddress(receiver);
+                    listener.onFailed();
+                }
+            }
+
+            @Override
+            public void exceptionCaught(Throwable t) throws Exception {
+                invalidatePeerAddress(receiver);
+                listener.onFailed();
+            }
+        });
+    }
+
+    // Messages of a trade are handled one after the other, the others only in the order of their peer
+    private static String getDispatchKey(Message message, Peer peer) {
+        if (message instanceof TradeMessage && ((TradeMessage) message).getTradeId() != null)
+            return ((TradeMessage) message).getTradeId();
+        return String.valueOf(peer);
+    }
+
+    // A retry uses the address looked up in the DHT since the last attempt failed, if there is one. We can't look it
+    // up ourselves, as the lookup needs the public key of the peer.
+    private TomP2PPeer getCachedAddress(TomP2PPeer peer) {
+        if (peer.getPeerAddress() == null)
+            return peer;
+
+        final Peer cachedPeer = peerAddressCache.get(peer.getPeerAddress().peerId());
+        return cachedPeer instanceof TomP2PPeer ? (TomP2PPeer) cachedPeer : peer;
+    }
+
+    // The peer might have changed its address, the next lookup goes to the DHT again
+    private void invalidatePeerAddress(TomP2PPeer peer) {
+        if (peer.getPeerAddress() != null)
+            peerAddressCache.invalidate(peer.getPeerAddress().peerId(), peer);
     }
 }
@@ -35,6 +35,7 @@ import java.io.IOException;
 import java.security.KeyPair;
 import java.security.PublicKey;
 
+import java.util.Collection;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -42,6 +43,11 @@ import javax.annotation.Nullable;
 
 import javax.inject.Inject;
 
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+
+import net.tomp2p.dht.FutureDigest;
 import net.tomp2p.dht.FutureGet;
 import net.tomp2p.dht.FuturePut;
 import net.tomp2p.dht.FutureRemove;
@@ -49,6 +55,7 @@ import net.tomp2p.dht.PeerDHT;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureListener;
 import net.tomp2p.futures.FutureDirect;
+import net.tomp2p.futures.FuturePeerConnection;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.storage.Data;
@@ -80,7 +87,9 @@ public class TomP2PNode implements ClientNode {
     private PeerAddress storedPeerAddress;
 
     private PeerDHT peerDHT;
+    private PeerConnectionManager peerConnectionManager;
     private BootstrappedPeerBuilder bootstrappedPeerBuilder;
+    private final BooleanProperty bootstrapped = new SimpleBooleanProperty();
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -97,8 +106,10 @@ public class TomP2PNode implements ClientNode {
         this.keyPair = keyPair;
         this.peerDHT = peerDHT;
         peerDHT.peerBean().keyPair(keyPair);
+        peerConnectionManager = new PeerConnectionManager(peerDHT.peer());
         messageBroker = (message, peerAddress) -> {
         };
+        bootstrapped.set(true);
     }
 
 
@@ -127,6 +138,7 @@ public class TomP2PNode implements ClientNode {
             public void onSuccess(@Nullable PeerDHT peerDHT) {
                 if (peerDHT != null) {
                     TomP2PNode.this.peerDHT = peerDHT;
+                    peerConnectionManager = new PeerConnectionManager(peerDHT.peer());
                     setupTimerForIPCheck();
                     setupReplyHandler();
                     try {
@@ -134,6 +146,7 @@ public class TomP2PNode implements ClientNode {
                     } catch (NetworkException e) {
                         bootstrapStateSubject.onError(e);
                     }
+                    bootstrapped.set(true);
                     bootstrapStateSubject.onCompleted();
                 }
                 else {
@@ -152,7 +165,16 @@ public class TomP2PNode implements ClientNode {
         return bootstrapStateSubject.asObservable();
     }
 
+    /**
+     * True as soon as the DHT methods can be used. Listeners are called on the bootstrap thread.
+     */
+    public ReadOnlyBooleanProperty bootstrappedProperty() {
+        return bootstrapped;
+    }
+
     public void shutDown() {
+        if (peerConnectionManager != null)
+            peerConnectionManager.shutDown();
         if (peerDHT != null)
             peerDHT.shutdown();
     }
@@ -199,9 +221,31 @@ public class TomP2PNode implements ClientNode {
         return peerDHT.get(locationKey).all().start();
     }
 
+    /**
+     * Gets only the entries of the data map with the given content keys.
+     */
+    public FutureGet getDataMap(Number160 locationKey, Collection<Number160> contentKeys) {
+        log.trace("getDataMap with " + contentKeys.size() + " contentKeys");
+        return peerDHT.get(locationKey).contentKeys(contentKeys).start();
+    }
+
+    /**
+     * Gets the keys of all entries of the data map without their data.
+     */
+    public FutureDigest getDataMapDigest(Number160 locationKey) {
+        log.trace("getDataMapDigest");
+        return peerDHT.digest(locationKey).all().start();
+    }
+
+    public PeerAddress getPeerAddress() {
+        return peerDHT.peerAddress();
+    }
+
     public FutureDirect sendData(PeerAddress peerAddress, Object payLoad) {
         log.trace("sendData");
-        FutureDirect futureDirect = peerDHT.peer().sendDirect(peerAddress).object(payLoad).start();
+        // The messages of a trade reuse the connection to the peer
+        FuturePeerConnection futurePeerConnection = peerConnectionManager.getConnection(peerAddress);
+        FutureDirect futureDirect = peerDHT.peer().sendDirect(futurePeerConnection).object(payLoad).start();
         futureDirect.addListener(new BaseFutureListener<BaseFuture>() {
             @Override
             public void operationComplete(BaseFuture future) throws Exception {
@@ -210,12 +254,14 @@ public class TomP2PNode implements ClientNode {
                 }
                 else {
                     log.error("sendData failed with Reason " + futureDirect.failedReason());
+                    peerConnectionManager.closeConnection(peerAddress, futurePeerConnection);
                 }
             }
 
             @Override
             public void exceptionCaught(Throwable t) throws Exception {
                 log.error("Exception at sendData " + t.toString());
+                peerConnectionManager.closeConnection(peerAddress, futurePeerConnection);
             }
         });
 
@@ -44,6 +44,20 @@ public class TomP2PPeer implements Peer, Serializable {
         return peerAddress;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        return Objects.equal(peerAddress, ((TomP2PPeer) o).peerAddress);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(peerAddress);
+    }
+
     public String toString() {
         return Objects.toStringHelper(this)
                 .add("peerAddress", peerAddress)
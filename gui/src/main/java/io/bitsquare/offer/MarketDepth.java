@@ -0,0 +1,240 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.offer;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.utils.Fiat;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.inject.Inject;
+
+/**
+ * Market depth of the offers delivered by the {@link RemoteOfferBook}: the summed up amount of all offers per
+ * currency, direction and price level. The levels are updated with each added or removed offer in O(log n) with n
+ * the number of price levels, so a depth chart or the spread never needs a scan of all offers.
+ * <p>
+ * The events of the remote offer book are delivered on the user thread, the queries are expected there as well.
+ */
+public class MarketDepth implements RemoteOfferBook.Listener {
+
+    public static class PriceLevel {
+        private final Fiat price;
+        private final Coin amount;
+        private final Coin cumulativeAmount;
+
+        PriceLevel(Fiat price, Coin amount, Coin cumulativeAmount) {
+            this.price = price;
+            this.amount = amount;
+            this.cumulativeAmount = cumulativeAmount;
+        }
+
+        public Fiat getPrice() {
+            return price;
+        }
+
+        /**
+         * @return the amount of all offers with this price
+         */
+        public Coin getAmount() {
+            return amount;
+        }
+
+        /**
+         * @return the amount of all offers with this or a better price
+         */
+        public Coin getCumulativeAmount() {
+            return cumulativeAmount;
+        }
+    }
+
+    private final Map<String, Offer> offersById = new HashMap<>();
+    // Amount per price (in the smallest unit of the currency)
+    private final Map<String, EnumMap<Direction, TreeMap<Long, Long>>> amountsByCurrency = new HashMap<>();
+    // Currencies with the cached offers of the last session, which might be outdated
+    private final Set<String> staleCurrencies = new HashSet<>();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Inject
+    public MarketDepth(RemoteOfferBook remoteOfferBook) {
+        remoteOfferBook.addListener(this);
+    }
+
+    MarketDepth() {
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // RemoteOfferBook.Listener
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onOfferAdded(Offer offer) {
+        if (offer != null) {
+            remove(offer.getId());
+            add(offer);
+        }
+    }
+
+    @Override
+    public void onOffersReceived(String currencyCode, Direction direction, List<Offer> offers) {
+        setOffers(currencyCode, direction, offers);
+        staleCurrencies.remove(currencyCode);
+    }
+
+    @Override
+    public void onCachedOffersReceived(String currencyCode, Direction direction, List<Offer> offers) {
+        setOffers(currencyCode, direction, offers);
+        staleCurrencies.add(currencyCode);
+    }
+
+    @Override
+    public void onOfferRemoved(Offer offer) {
+        if (offer != null)
+            remove(offer.getId());
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Public API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return true as long as the depth of the currency is built from the cached offers of the last session
+     */
+    public boolean isStale(String currencyCode) {
+        return staleCurrencies.contains(currencyCode);
+    }
+
+    /**
+     * @return a snapshot of the price levels with the best price first, i.e. the cheapest sell offers or the highest
+     * buy offers
+     */
+    public List<PriceLevel> getPriceLevels(String currencyCode, Direction direction) {
+        final List<PriceLevel> priceLevels = new ArrayList<>();
+        long cumulativeAmount = 0;
+        for (Map.Entry<Long, Long> entry : getBestFirst(currencyCode, direction).entrySet()) {
+            cumulativeAmount += entry.getValue();
+            priceLevels.add(new PriceLevel(Fiat.valueOf(currencyCode, entry.getKey()), Coin.valueOf(entry.getValue()),
+                    Coin.valueOf(cumulativeAmount)));
+        }
+        return priceLevels;
+    }
+
+    /**
+     * @return the lowest price of the sell offers or the highest price of the buy offers, null if there are no offers
+     */
+    public Fiat getBestPrice(String currencyCode, Direction direction) {
+        NavigableMap<Long, Long> amounts = getBestFirst(currencyCode, direction);
+        return amounts.isEmpty() ? null : Fiat.valueOf(currencyCode, amounts.firstKey());
+    }
+
+    /**
+     * @return the best sell price minus the best buy price, null if there are no offers in both directions
+     */
+    public Fiat getSpread(String currencyCode) {
+        Fiat bestSellPrice = getBestPrice(currencyCode, Direction.SELL);
+        Fiat bestBuyPrice = getBestPrice(currencyCode, Direction.BUY);
+        return bestSellPrice != null && bestBuyPrice != null ? bestSellPrice.subtract(bestBuyPrice) : null;
+    }
+
+    /**
+     * @return the price in the middle of the best sell and the best buy price, null if there are no offers in both
+     * directions
+     */
+    public Fiat getMidPrice(String currencyCode) {
+        Fiat bestSellPrice = getBestPrice(currencyCode, Direction.SELL);
+        Fiat bestBuyPrice = getBestPrice(currencyCode, Direction.BUY);
+        return bestSellPrice != null && bestBuyPrice != null ?
+                Fiat.valueOf(currencyCode, (bestSellPrice.value + bestBuyPrice.value) / 2) : null;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Replaces the offers of the currency with the direction, or with both directions if it is null
+    private void setOffers(String currencyCode, Direction direction, List<Offer> offers) {
+        final Set<String> receivedIds = new HashSet<>();
+        for (Offer offer : offers) {
+            if (offer != null && isMatching(offer, currencyCode, direction)) {
+                receivedIds.add(offer.getId());
+                if (!offersById.containsKey(offer.getId()))
+                    add(offer);
+            }
+        }
+
+        for (Offer offer : new ArrayList<>(offersById.values())) {
+            if (isMatching(offer, currencyCode, direction) && !receivedIds.contains(offer.getId()))
+                remove(offer.getId());
+        }
+    }
+
+    private static boolean isMatching(Offer offer, String currencyCode, Direction direction) {
+        return currencyCode.equals(offer.getCurrency().getCurrencyCode()) &&
+                (direction == null || offer.getDirection() == direction);
+    }
+
+    private void add(Offer offer) {
+        offersById.put(offer.getId(), offer);
+        getAmounts(offer.getCurrency().getCurrencyCode(), offer.getDirection(), true)
+                .merge(offer.getFiatPrice(), offer.getAmount().value, Long::sum);
+    }
+
+    private void remove(String offerId) {
+        Offer offer = offersById.remove(offerId);
+        if (offer == null)
+            return;
+
+        TreeMap<Long, Long> amounts = getAmounts(offer.getCurrency().getCurrencyCode(), offer.getDirection(), false);
+        long amount = amounts.getOrDefault(offer.getFiatPrice(), 0L) - offer.getAmount().value;
+        if (amount > 0)
+            amounts.put(offer.getFiatPrice(), amount);
+        else
+            amounts.remove(offer.getFiatPrice());
+    }
+
+    private NavigableMap<Long, Long> getBestFirst(String currencyCode, Direction direction) {
+        TreeMap<Long, Long> amounts = getAmounts(currencyCode, direction, false);
+        return direction == Direction.SELL ? amounts : amounts.descendingMap();
+    }
+
+    private TreeMap<Long, Long> getAmounts(String currencyCode, Direction direction, boolean create) {
+        EnumMap<Direction, TreeMap<Long, Long>> amountsByDirection = amountsByCurrency.get(currencyCode);
+        if (amountsByDirection == null) {
+            if (!create)
+                return new TreeMap<>();
+            amountsByDirection = new EnumMap<>(Direction.class);
+            amountsByCurrency.put(currencyCode, amountsByDirection);
+        }
+        return amountsByDirection.computeIfAbsent(direction, d -> new TreeMap<>());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.offer;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.utils.Fiat;
+
+import java.math.BigInteger;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of {@link MatchingEngine#match}: the offers to take, with the amount to take from each, best price first.
+ */
+public class Match {
+
+    public static class Fill {
+        private final Offer offer;
+        private final Coin amount;
+
+        Fill(Offer offer, Coin amount) {
+            this.offer = offer;
+            this.amount = amount;
+        }
+
+        public Offer getOffer() {
+            return offer;
+        }
+
+        public Coin getAmount() {
+            return amount;
+        }
+    }
+
+    private final String currencyCode;
+    private final List<Fill> fills;
+    private final Coin requestedAmount;
+    private final Coin filledAmount;
+    private final long averagePrice;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    Match(String currencyCode, List<Fill> fills, Coin requestedAmount) {
+        this.currencyCode = currencyCode;
+        this.fills = Collections.unmodifiableList(fills);
+        this.requestedAmount = requestedAmount;
+
+        long filled = 0;
+        BigInteger weightedPrices = BigInteger.ZERO;
+        for (Fill fill : fills) {
+            filled += fill.amount.value;
+            weightedPrices = weightedPrices.add(
+                    BigInteger.valueOf(fill.amount.value).multiply(BigInteger.valueOf(fill.offer.getFiatPrice())));
+        }
+        filledAmount = Coin.valueOf(filled);
+        averagePrice = filled > 0 ? weightedPrices.divide(BigInteger.valueOf(filled)).longValue() : 0;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Getters
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public List<Fill> getFills() {
+        return fills;
+    }
+
+    public Coin getFilledAmount() {
+        return filledAmount;
+    }
+
+    /**
+     * @return true if the offers fill the whole requested amount
+     */
+    public boolean isComplete() {
+        return filledAmount.equals(requestedAmount);
+    }
+
+    /**
+     * @return the average price weighted by the amounts, null if nothing was matched
+     */
+    public Fiat getAveragePrice() {
+        return averagePrice > 0 ? Fiat.valueOf(currencyCode, averagePrice) : null;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.offer;
+
+import io.bitsquare.account.AccountSettings;
+import io.bitsquare.arbitrator.Arbitrator;
+import io.bitsquare.bank.BankAccount;
+import io.bitsquare.locale.Country;
+import io.bitsquare.user.User;
+
+import org.bitcoinj.core.Coin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+/**
+ * Finds the offers which fill an amount at the best average price. The offers are visited with the best price first
+ * in the {@link OrderBook}, which stops as soon as the amount is filled, so the costs depend on the number of
+ * visited offers and not on the size of the order book.
+ * <p>
+ * Only offers which fit the account settings of the taker are matched: the country of the bank account of the
+ * offerer, one of the languages and one of the arbitrators have to be accepted. Empty lists in the settings accept
+ * all offers. The offer in turn has to accept the country of the current bank account of the taker, as long as the
+ * taker has none all offers are matched, like in the offer book.
+ * <p>
+ * The offers are filled greedily: an offer whose min. amount is larger than the remaining amount is skipped, so a
+ * match might not be complete even if another combination of offers would fill the amount.
+ */
+public class MatchingEngine {
+
+    private final AccountSettings accountSettings;
+    private final User user;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Inject
+    public MatchingEngine(AccountSettings accountSettings, User user) {
+        this.accountSettings = accountSettings;
+        this.user = user;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Public API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param direction  direction of the taker, e.g. BUY matches the sell offers
+     * @param amount     amount the taker wants to trade
+     * @param limitPrice worst price the taker accepts in the smallest unit of the currency, 0 for any price
+     */
+    public Match match(OrderBook orderBook, String currencyCode, Direction direction, Coin amount, long limitPrice) {
+        final Set<Country> acceptedCountries = toSet(accountSettings.getAcceptedCountries());
+        final Set<Locale> acceptedLanguageLocales = toSet(accountSettings.getAcceptedLanguageLocales());
+        final Set<Arbitrator> acceptedArbitrators = toSet(accountSettings.getAcceptedArbitrators());
+        final BankAccount bankAccount = user.getCurrentBankAccount().get();
+
+        final List<Match.Fill> fills = new ArrayList<>();
+        final long[] remaining = {amount.value};
+        Direction offerDirection = direction == Direction.BUY ? Direction.SELL : Direction.BUY;
+        orderBook.forEachOffer(currencyCode, offerDirection, limitPrice, offer -> {
+            if (remaining[0] < offer.getMinAmount().value ||
+                    !isAccepted(offer.getBankAccountCountry(), acceptedCountries) ||
+                    (bankAccount != null && !offer.getAcceptedCountries().contains(bankAccount.getCountry())) ||
+                    !isAnyAccepted(offer.getAcceptedLanguageLocales(), acceptedLanguageLocales) ||
+                    !isAnyAccepted(offer.getArbitrators(), acceptedArbitrators))
+                return true;
+
+            long fillAmount = Math.min(remaining[0], offer.getAmount().value);
+            fills.add(new Match.Fill(offer, Coin.valueOf(fillAmount)));
+            remaining[0] -= fillAmount;
+            return remaining[0] > 0;
+        });
+        return new Match(currencyCode, fills, amount);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static <T> Set<T> toSet(Collection<T> accepted) {
+        return accepted == null ? new HashSet<>() : new HashSet<>(accepted);
+    }
+
+    private static <T> boolean isAccepted(T value, Set<T> accepted) {
+        return accepted.isEmpty() || accepted.contains(value);
+    }
+
+    private static <T> boolean isAnyAccepted(Collection<T> values, Set<T> accepted) {
+        if (accepted.isEmpty())
+            return true;
+        if (values == null)
+            return false;
+        for (T value : values) {
+            if (accepted.contains(value))
+                return true;
+        }
+        return false;
+    }
+}
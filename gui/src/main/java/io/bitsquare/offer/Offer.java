@@ -86,6 +86,27 @@ public class Offer implements Serializable {
                  Coin securityDeposit,
                  List<Country> acceptedCountries,
                  List<Locale> acceptedLanguageLocales) {
+        this(id, messagePublicKey, direction, fiatPrice, amount, minAmount, bankAccountType, currency,
+                bankAccountCountry, bankAccountUID, arbitrators, securityDeposit, acceptedCountries,
+                acceptedLanguageLocales, new Date());
+    }
+
+    // Used when restoring a persisted offer
+    public Offer(String id,
+                 PublicKey messagePublicKey,
+                 Direction direction,
+                 long fiatPrice,
+                 Coin amount,
+                 Coin minAmount,
+                 BankAccountType bankAccountType,
+                 Currency currency,
+                 Country bankAccountCountry,
+                 String bankAccountUID,
+                 List<Arbitrator> arbitrators,
+                 Coin securityDeposit,
+                 List<Country> acceptedCountries,
+                 List<Locale> acceptedLanguageLocales,
+                 Date creationDate) {
         this.id = id;
         this.messagePublicKey = messagePublicKey;
         this.direction = direction;
@@ -101,8 +122,7 @@ public class Offer implements Serializable {
         this.acceptedCountries = acceptedCountries;
 
         this.acceptedLanguageLocales = acceptedLanguageLocales;
-
-        creationDate = new Date();
+        this.creationDate = creationDate;
     }
 
 
@@ -127,6 +147,13 @@ public class Offer implements Serializable {
         return Fiat.valueOf(currency.getCurrencyCode(), fiatPrice);
     }
 
+    /**
+     * @return the price in the smallest unit of the currency, without creating a Fiat object
+     */
+    public long getFiatPrice() {
+        return fiatPrice;
+    }
+
     public Coin getAmount() {
         return amount;
     }
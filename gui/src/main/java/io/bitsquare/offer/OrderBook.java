@@ -0,0 +1,174 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.offer;
+
+import org.bitcoinj.core.Coin;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Offers indexed by currency, direction and price, so the offers in a price range are found without looking at all
+ * offers. The offers of a currency and direction are held in buckets per price (in the smallest unit of the
+ * currency), which are sorted by price. Offers with the same price keep the order they got added.
+ * <p>
+ * Adding and removing an offer costs O(log n) with n the number of different prices. Not thread safe.
+ */
+public class OrderBook {
+
+    private final Map<String, Offer> offersById = new HashMap<>();
+    private final Map<String, EnumMap<Direction, TreeMap<Long, Map<String, Offer>>>> priceLevelsByCurrency =
+            new HashMap<>();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Public API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds the offer or replaces the offer with the same id.
+     */
+    public void add(Offer offer) {
+        remove(offer.getId());
+        offersById.put(offer.getId(), offer);
+        getPriceLevels(offer.getCurrency().getCurrencyCode(), offer.getDirection(), true)
+                .computeIfAbsent(offer.getFiatPrice(), price -> new LinkedHashMap<>())
+                .put(offer.getId(), offer);
+    }
+
+    /**
+     * @return the removed offer or null if there was no offer with that id
+     */
+    public Offer remove(String offerId) {
+        Offer offer = offersById.remove(offerId);
+        if (offer == null)
+            return null;
+
+        TreeMap<Long, Map<String, Offer>> priceLevels =
+                getPriceLevels(offer.getCurrency().getCurrencyCode(), offer.getDirection(), false);
+        Map<String, Offer> priceLevel = priceLevels.get(offer.getFiatPrice());
+        priceLevel.remove(offerId);
+        if (priceLevel.isEmpty())
+            priceLevels.remove(offer.getFiatPrice());
+        return offer;
+    }
+
+    public void clear() {
+        offersById.clear();
+        priceLevelsByCurrency.clear();
+    }
+
+    public boolean contains(String offerId) {
+        return offersById.containsKey(offerId);
+    }
+
+    public Offer getOffer(String offerId) {
+        return offersById.get(offerId);
+    }
+
+    public int size() {
+        return offersById.size();
+    }
+
+    /**
+     * Finds the offers a taker can take at the given price and amount.
+     *
+     * @param limitPrice worst price for the taker: sell offers up to and buy offers from that price are returned,
+     *                   0 for any price
+     * @param amount     amount the taker wants to trade, only offers which allow that amount are returned, null for
+     *                   any amount
+     * @return the offers with the best price first, i.e. the cheapest sell offers or the highest buy offers
+     */
+    public List<Offer> getOffers(String currencyCode, Direction direction, long limitPrice, Coin amount) {
+        final List<Offer> offers = new ArrayList<>();
+        forEachOffer(currencyCode, direction, limitPrice, offer -> {
+            if (amount == null || amount.value <= 0 || isAmountAccepted(offer, amount.value))
+                offers.add(offer);
+            return true;
+        });
+        return offers;
+    }
+
+    /**
+     * Visits the offers up to the limit price (see {@link #getOffers(String, Direction, long, Coin)}) with the best
+     * price first, until the visitor returns false. The order book must not be changed by the visitor.
+     */
+    public void forEachOffer(String currencyCode, Direction direction, long limitPrice, Predicate<Offer> visitor) {
+        for (Map<String, Offer> priceLevel : getBestFirst(currencyCode, direction, limitPrice).values()) {
+            for (Offer offer : priceLevel.values()) {
+                if (!visitor.test(offer))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * @return true if the offer is found by {@link #getOffers(String, Direction, long, Coin)} with these arguments
+     */
+    public static boolean matches(Offer offer, long limitPrice, Coin amount) {
+        boolean priceResult = limitPrice <= 0 || (offer.getDirection() == Direction.SELL ?
+                offer.getFiatPrice() <= limitPrice : offer.getFiatPrice() >= limitPrice);
+        boolean amountResult = amount == null || amount.value <= 0 || isAmountAccepted(offer, amount.value);
+        return priceResult && amountResult;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private NavigableMap<Long, Map<String, Offer>> getBestFirst(String currencyCode, Direction direction,
+                                                                long limitPrice) {
+        TreeMap<Long, Map<String, Offer>> priceLevels = getPriceLevels(currencyCode, direction, false);
+        if (direction == Direction.SELL)
+            return limitPrice > 0 ? priceLevels.headMap(limitPrice, true) : priceLevels;
+        else
+            return (limitPrice > 0 ? priceLevels.tailMap(limitPrice, true) : priceLevels).descendingMap();
+    }
+
+    private TreeMap<Long, Map<String, Offer>> getPriceLevels(String currencyCode, Direction direction,
+                                                             boolean create) {
+        EnumMap<Direction, TreeMap<Long, Map<String, Offer>>> priceLevelsByDirection =
+                priceLevelsByCurrency.get(currencyCode);
+        if (priceLevelsByDirection == null) {
+            if (!create)
+                return new TreeMap<>();
+            priceLevelsByDirection = new EnumMap<>(Direction.class);
+            priceLevelsByCurrency.put(currencyCode, priceLevelsByDirection);
+        }
+
+        TreeMap<Long, Map<String, Offer>> priceLevels = priceLevelsByDirection.get(direction);
+        if (priceLevels == null) {
+            priceLevels = new TreeMap<>();
+            if (create)
+                priceLevelsByDirection.put(direction, priceLevels);
+        }
+        return priceLevels;
+    }
+
+    private static boolean isAmountAccepted(Offer offer, long amount) {
+        return amount <= offer.getAmount().value && amount >= offer.getMinAmount().value;
+    }
+}
@@ -25,11 +25,25 @@ import java.util.concurrent.Executor;
 
 import javafx.beans.property.LongProperty;
 
+import org.jetbrains.annotations.Nullable;
+
 public interface RemoteOfferBook {
 
     void setExecutor(Executor executor);
 
-    void getOffers(String fiatCode);
+    /**
+     * Fetches the offers with the given currency and direction, only the network locations of that direction are
+     * read. Changes requested later on are delivered for the same direction.
+     *
+     * @param direction the direction of the offers, null for both directions
+     */
+    void getOffers(String fiatCode, @Nullable Direction direction);
+
+    /**
+     * Delivers only the offers added or removed since the last call of {@link #getOffers(String, Direction)} or this
+     * method to the listeners. Falls back to {@link #getOffers(String, Direction)} if the changes are not available.
+     */
+    void requestOfferChanges(String fiatCode);
 
     void addOffer(Offer offer, ResultHandler resultHandler, FaultHandler faultHandler);
 
@@ -43,10 +57,32 @@ public interface RemoteOfferBook {
 
     void requestInvalidationTimeStampFromDHT(String fiatCode);
 
+    /**
+     * Offers added or removed by other peers with the given currency get delivered to the listeners until
+     * {@link #unsubscribe(String)} is called.
+     */
+    void subscribe(String fiatCode);
+
+    void unsubscribe(String fiatCode);
+
     interface Listener {
         void onOfferAdded(Offer offer);
 
-        void onOffersReceived(List<Offer> offers);
+        /**
+         * All offers with the given currency and direction, the offers with other currencies or directions are not
+         * affected.
+         *
+         * @param direction the direction of the offers, null for both directions
+         */
+        void onOffersReceived(String currencyCode, @Nullable Direction direction, List<Offer> offers);
+
+        /**
+         * Offers known from the last session, which might be outdated. They get replaced by
+         * {@link #onOffersReceived(String, Direction, List)} as soon as the offers got fetched from the network.
+         */
+        default void onCachedOffersReceived(String currencyCode, @Nullable Direction direction, List<Offer> offers) {
+            onOffersReceived(currencyCode, direction, offers);
+        }
 
         void onOfferRemoved(Offer offer);
     }
@@ -0,0 +1,52 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.offer.tomp2p;
+
+import io.bitsquare.offer.Offer;
+
+import java.io.Serializable;
+
+/**
+ * Entry of the change log of the offers of a currency. The version is the time of the change at the peer who
+ * made it.
+ */
+public class OfferBookChange implements Serializable {
+    private static final long serialVersionUID = 3371562396424137457L;
+
+    private final long version;
+    private final Offer offer;
+    private final boolean added;
+
+    public OfferBookChange(long version, Offer offer, boolean added) {
+        this.version = version;
+        this.offer = offer;
+        this.added = added;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Offer getOffer() {
+        return offer;
+    }
+
+    public boolean isAdded() {
+        return added;
+    }
+}
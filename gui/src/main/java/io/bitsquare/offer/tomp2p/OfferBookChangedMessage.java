@@ -0,0 +1,40 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.offer.tomp2p;
+
+import io.bitsquare.msg.Message;
+
+import java.io.Serializable;
+
+/**
+ * Pushed by the peer who added or removed an offer to the peers which subscribed to the offers of its currency. It
+ * carries no offer, as the receivers can't verify it: they fetch the change from the change log in the DHT.
+ */
+public class OfferBookChangedMessage implements Serializable, Message {
+    private static final long serialVersionUID = 4172983570928347143L;
+
+    private final String currencyCode;
+
+    public OfferBookChangedMessage(String currencyCode) {
+        this.currencyCode = currencyCode;
+    }
+
+    public String getCurrencyCode() {
+        return currencyCode;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.offer.tomp2p;
+
+import io.bitsquare.offer.Direction;
+import io.bitsquare.offer.Offer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import net.tomp2p.peers.Number160;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Splits the offers of a currency into one DHT location (shard) per direction, so the load of a popular currency is
+ * spread over more peers. The shard of an offer only depends on the offer, so it gets removed from where it was
+ * added.
+ * <p>
+ * The layout is part of the protocol and not configurable, as all peers have to read the locations the others
+ * write to. Earlier versions stored all offers of a currency in one location. That location is still read until all
+ * these offers are expired, see {@link #LEGACY_LOCATION_EXPIRY}.
+ */
+public class OfferShards {
+
+    // Offers live 30 days (see TomP2POfferBook.addOffer) and the versions which only write the sharded locations got
+    // released before 2026-11-01, so the last offer of the legacy location is expired at 2026-12-01 00:00 UTC
+    private static final long LEGACY_LOCATION_EXPIRY = 1796083200000L;
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Inject
+    public OfferShards() {
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Public API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public Number160 getLocationKey(Offer offer) {
+        return getLocationKey(offer.getCurrency().getCurrencyCode(), offer.getDirection());
+    }
+
+    /**
+     * @param direction the direction of the offers, null for both directions
+     * @return all locations which can hold offers of the currency with that direction, including the one of earlier
+     * versions as long as its offers are not expired
+     */
+    public List<Number160> getReadLocationKeys(String currencyCode, @Nullable Direction direction) {
+        return getReadLocationKeys(currencyCode, direction, System.currentTimeMillis());
+    }
+
+    public Number160 getLegacyLocationKey(String currencyCode) {
+        return Number160.createHash(currencyCode);
+    }
+
+    /**
+     * @return false once all offers of the legacy location are expired, it does not need to be read then
+     */
+    public boolean hasLegacyOffers() {
+        return hasLegacyOffers(System.currentTimeMillis());
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private List<Number160> getReadLocationKeys(String currencyCode, @Nullable Direction direction, long now) {
+        final List<Number160> locationKeys = new ArrayList<>();
+        if (hasLegacyOffers(now))
+            locationKeys.add(getLegacyLocationKey(currencyCode));
+        for (Direction locationDirection : Direction.values()) {
+            if (direction == null || direction == locationDirection)
+                locationKeys.add(getLocationKey(currencyCode, locationDirection));
+        }
+        return locationKeys;
+    }
+
+    private boolean hasLegacyOffers(long now) {
+        return now < LEGACY_LOCATION_EXPIRY;
+    }
+
+    private Number160 getLocationKey(String currencyCode, Direction direction) {
+        return Number160.createHash(currencyCode + direction.name());
+    }
+}
@@ -17,24 +17,41 @@
 
 package io.bitsquare.offer.tomp2p;
 
+import io.bitsquare.msg.MessagePriority;
+import io.bitsquare.msg.MessageService;
+import io.bitsquare.msg.listeners.OutgoingMessageListener;
+import io.bitsquare.msg.tomp2p.DataDecoder;
 import io.bitsquare.msg.tomp2p.TomP2PNode;
+import io.bitsquare.network.tomp2p.TomP2PPeer;
+import io.bitsquare.offer.Direction;
 import io.bitsquare.offer.Offer;
 import io.bitsquare.offer.RemoteOfferBook;
+import io.bitsquare.persistence.Persistence;
 import io.bitsquare.util.task.FaultHandler;
 import io.bitsquare.util.task.ResultHandler;
 
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 
 import javafx.beans.property.LongProperty;
 import javafx.beans.property.SimpleLongProperty;
 
+import net.tomp2p.dht.FutureDigest;
 import net.tomp2p.dht.FutureGet;
 import net.tomp2p.dht.FuturePut;
 import net.tomp2p.dht.FutureRemove;
@@ -43,24 +60,90 @@ import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.BaseFutureListener;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
+import net.tomp2p.rpc.DigestResult;
 import net.tomp2p.storage.Data;
 
+import org.jetbrains.annotations.Nullable;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Offers are stored in the DHT in data maps per currency, which are split into several locations by
+ * {@link OfferShards}. Only the locations of the direction requested for a currency are read, in parallel, and
+ * merged. Changes of offers with other directions are ignored, so they don't need to be checked.
+ * <p>
+ * Peers watching the offers of a currency store their address in a subscriber map of the currency. Whoever adds or
+ * removes an offer notifies these subscribers with a {@link OfferBookChangedMessage} once the change is in the
+ * change log, so they don't need to poll the DHT. The push is only a hint, the subscribers fetch the change from the
+ * change log, so a peer can't inject offers which are not in the DHT. Subscriptions expire if they are not renewed.
+ * Pushes can get lost (e.g. a subscriber is not reachable), so the invalidation timestamp is still written and the
+ * watchers check it in a long interval to reconcile their offer list with the DHT.
+ * <p>
+ * Every change is also appended to a change log of the currency, so watchers which already know the offers up to
+ * a version only fetch the changes since then instead of all offers. The log is split into buckets of one minute,
+ * each stored under its own location key, and its entries expire after {@link #CHANGE_LOG_TTL}. Watchers more than
+ * {@link #MAX_CHANGE_LOG_BUCKETS} buckets behind, or which could not read a bucket, fetch all offers instead. Any
+ * peer can write to the change log, so its entries are checked against the digest of the offer locations: an added
+ * offer has to be stored there and a removed one must not be stored there anymore. Other entries are dropped.
+ * <p>
+ * A full fetch first gets only the keys of the offers of the currency (a digest) and then the offers which are
+ * not cached yet, instead of transferring and deserializing all offers again. The cache is persisted, so at the
+ * next start its offers are shown as stale ones until the node is bootstrapped and the offers got fetched.
+ */
 public class TomP2POfferBook implements RemoteOfferBook {
 
     private static final Logger log = LoggerFactory.getLogger(TomP2POfferBook.class);
 
+    // Subscribers are expected to renew their subscription before it expires
+    private static final int SUBSCRIPTION_TTL = 10 * 60;
+    private static final int CHANGE_LOG_TTL = 60 * 60;
+    private static final long CHANGE_LOG_BUCKET_MILLIS = 60 * 1000;
+    // Older versions need a full fetch, as the change log would need more gets than the digest of the offers
+    private static final int MAX_CHANGE_LOG_BUCKETS = 4;
+    // Versions are set by the clock of the peer who made the change, and the change log gets written a bit before
+    // the invalidation timestamp, so we fetch a safety margin before the known version
+    private static final long MAX_CLOCK_SKEW = 60 * 1000;
+    private static final String OFFER_CACHE_KEY = "offerCache.";
+
     private final List<Listener> offerRepositoryListeners = new ArrayList<>();
     private final LongProperty invalidationTimestamp = new SimpleLongProperty(0);
+    private final Set<String> subscribedCurrencyCodes = ConcurrentHashMap.newKeySet();
+    // Time of the last full fetch or delta per currency
+    private final Map<String, Long> syncedVersions = new ConcurrentHashMap<>();
+    // Offers we already know per currency by their content key, so only new ones get fetched and deserialized
+    private final Map<String, Map<Number160, CachedOffer>> offerCaches = new ConcurrentHashMap<>();
+    // The direction of the offers requested per currency, null for both directions
+    private final Map<String, Direction> requestedDirections = Collections.synchronizedMap(new HashMap<>());
+    // Currencies requested before the bootstrap, they get fetched as soon as it is done
+    private final Set<String> pendingCurrencyCodes = ConcurrentHashMap.newKeySet();
+    // Change log entries which did not match the offers stored in the DHT
+    private final AtomicLong rejectedOfferChanges = new AtomicLong();
 
     private final TomP2PNode p2pNode;
+    private final MessageService messageService;
+    private final Persistence persistence;
+    private final DataDecoder dataDecoder;
+    private final OfferShards offerShards;
     private Executor executor;
 
     @Inject
-    public TomP2POfferBook(TomP2PNode p2pNode) {
+    public TomP2POfferBook(TomP2PNode p2pNode, MessageService messageService, Persistence persistence,
+                           DataDecoder dataDecoder, OfferShards offerShards) {
         this.p2pNode = p2pNode;
+        this.messageService = messageService;
+        this.persistence = persistence;
+        this.dataDecoder = dataDecoder;
+        this.offerShards = offerShards;
+
+        messageService.addIncomingMessageListener((message, sender) -> {
+            if (message instanceof OfferBookChangedMessage)
+                onOfferBookChanged((OfferBookChangedMessage) message);
+        });
+        p2pNode.bootstrappedProperty().addListener((ov, oldValue, newValue) -> {
+            if (newValue)
+                onBootstrapped();
+        });
     }
 
     public void setExecutor(Executor executor) {
@@ -69,7 +152,7 @@ public class TomP2POfferBook implements RemoteOfferBook {
 
     @Override
     public void addOffer(Offer offer, ResultHandler resultHandler, FaultHandler faultHandler) {
-        Number160 locationKey = Number160.createHash(offer.getCurrency().getCurrencyCode());
+        Number160 locationKey = offerShards.getLocationKey(offer);
         try {
             final Data offerData = new Data(offer);
 
@@ -98,6 +181,7 @@ public class TomP2POfferBook implements RemoteOfferBook {
                                 }
                             });
 
+                            writeChangeToDHT(offer, true);
                             writeInvalidationTimestampToDHT(offer.getCurrency().getCurrencyCode());
                             log.trace("Add offer to DHT was successful. Added data: [locationKey: " + locationKey +
                                     ", value: " + offerData + "]");
@@ -116,12 +200,16 @@ public class TomP2POfferBook implements RemoteOfferBook {
     }
 
     public void removeOffer(Offer offer, ResultHandler resultHandler, FaultHandler faultHandler) {
-        Number160 locationKey = Number160.createHash(offer.getCurrency().getCurrencyCode());
+        Number160 locationKey = offerShards.getLocationKey(offer);
         try {
             final Data offerData = new Data(offer);
             log.trace("Remove offer from DHT requested. Removed data: [locationKey: " + locationKey +
                     ", hash: " + offerData.hash().toString() + "]");
             FutureRemove futureRemove = p2pNode.removeFromDataMap(locationKey, offerData);
+            // The offer might have been added by an earlier version which did not shard the offers
+            if (offerShards.hasLegacyOffers())
+                p2pNode.removeFromDataMap(offerShards.getLegacyLocationKey(offer.getCurrency().getCurrencyCode()),
+                        offerData);
             futureRemove.addListener(new BaseFutureListener<BaseFuture>() {
                 @Override
                 public void operationComplete(BaseFuture future) throws Exception {
@@ -146,6 +234,7 @@ public class TomP2POfferBook implements RemoteOfferBook {
                                 faultHandler.handleFault("Remove offer from DHT failed. Error: " + e.getMessage(), e);
                             }
                         });
+                        writeChangeToDHT(offer, false);
                         writeInvalidationTimestampToDHT(offer.getCurrency().getCurrencyCode());
                     });
                 }
@@ -163,64 +252,550 @@ public class TomP2POfferBook implements RemoteOfferBook {
         }
     }
 
-    public void getOffers(String currencyCode) {
-        Number160 locationKey = Number160.createHash(currencyCode);
-        log.trace("Get offers from DHT requested for locationKey: " + locationKey);
+    public void getOffers(String currencyCode, @Nullable Direction direction) {
+        // The synced version only covers the offers of the direction which got fetched
+        if (requestedDirections.put(currencyCode, direction) != direction)
+            syncedVersions.remove(currencyCode);
+        fetchOffers(currencyCode);
+    }
+
+    // Fetches the offers of the direction requested last for the currency
+    private void fetchOffers(String currencyCode) {
+        // Until the offers got fetched from the network we show the ones known from the last session
+        if (!syncedVersions.containsKey(currencyCode))
+            deliverStaleOffers(currencyCode);
+
+        pendingCurrencyCodes.add(currencyCode);
+        if (!isBootstrapped())
+            return;
+        pendingCurrencyCodes.remove(currencyCode);
+
+        final Direction direction = requestedDirections.get(currencyCode);
+        final List<Number160> locationKeys = offerShards.getReadLocationKeys(currencyCode, direction);
+        log.trace("Get offers from DHT requested for currency " + currencyCode + " and direction " + direction +
+                " from " + locationKeys.size() + " locations.");
+        final OffersFetch offersFetch = new OffersFetch(currencyCode, direction, locationKeys.size());
+        locationKeys.stream().forEach(locationKey -> getOffers(offersFetch, locationKey));
+    }
+
+    @Override
+    public void requestOfferChanges(String currencyCode) {
+        final Long syncedVersion = syncedVersions.get(currencyCode);
+        final long requestTime = System.currentTimeMillis();
+        if (syncedVersion == null) {
+            fetchOffers(currencyCode);
+            return;
+        }
+
+        final long fromVersion = syncedVersion - MAX_CLOCK_SKEW;
+        final long fromBucket = fromVersion / CHANGE_LOG_BUCKET_MILLIS;
+        final long toBucket = (requestTime + MAX_CLOCK_SKEW) / CHANGE_LOG_BUCKET_MILLIS;
+        if (toBucket - fromBucket + 1 > MAX_CHANGE_LOG_BUCKETS) {
+            fetchOffers(currencyCode);
+            return;
+        }
+
+        final List<OfferBookChange> changes = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger pendingBuckets = new AtomicInteger((int) (toBucket - fromBucket + 1));
+        final AtomicBoolean failed = new AtomicBoolean();
+        log.trace("Get offer changes from DHT requested for currency " + currencyCode + " since " + fromVersion);
+        final Runnable onBucketCompleted = () -> {
+            if (pendingBuckets.decrementAndGet() == 0 && !failed.get())
+                verifyOfferChanges(currencyCode, requestTime, changes);
+        };
+        for (long bucket = fromBucket; bucket <= toBucket; bucket++) {
+            FutureGet futureGet = p2pNode.getDataMap(getChangeLogLocationKey(currencyCode, bucket));
+            futureGet.addListener(new BaseFutureAdapter<BaseFuture>() {
+                @Override
+                public void operationComplete(BaseFuture future) throws Exception {
+                    final Map<Number640, Data> dataMap = futureGet.dataMap();
+                    if (future.isSuccess() && dataMap != null) {
+                        dataDecoder.decode(dataMap, OfferBookChange.class, decoded -> {
+                            decoded.values().stream()
+                                    .filter(change -> change.getVersion() > fromVersion)
+                                    .forEach(changes::add);
+                            onBucketCompleted.run();
+                        });
+                        return;
+                    }
+
+                    // An empty bucket is reported as failure as well
+                    if (future.isSuccess() || futureGet.isEmpty()) {
+                        onBucketCompleted.run();
+                    }
+                    else {
+                        log.debug("Get offer changes from DHT was not successful with reason:" +
+                                future.failedReason() + ", we fetch all offers.");
+                        onBucketFailed();
+                    }
+                }
+
+                @Override
+                public void exceptionCaught(Throwable t) throws Exception {
+                    log.error("Get offer changes from DHT failed with exception:" + t.getMessage());
+                    onBucketFailed();
+                }
+
+                // A missing bucket could hide a change, so we fall back to fetch all offers. The synced version is
+                // only advanced by that fetch.
+                private void onBucketFailed() {
+                    if (!failed.getAndSet(true))
+                        fetchOffers(currencyCode);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        offerRepositoryListeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        offerRepositoryListeners.remove(listener);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Offer cache
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Collects the offers of all read locations of a currency, the cache gets updated when all locations are read
+    private class OffersFetch {
+        final String currencyCode;
+        final Direction direction;
+        final long requestTime = System.currentTimeMillis();
+        final Set<Number160> contentKeys = ConcurrentHashMap.newKeySet();
+        final Map<Number160, CachedOffer> fetchedOffers = new ConcurrentHashMap<>();
+        final AtomicInteger pendingLocations;
+        volatile boolean failed;
+
+        OffersFetch(String currencyCode, @Nullable Direction direction, int locations) {
+            this.currencyCode = currencyCode;
+            this.direction = direction;
+            pendingLocations = new AtomicInteger(locations);
+        }
+
+        void onLocationCompleted() {
+            if (pendingLocations.decrementAndGet() == 0)
+                completeOffersFetch(this);
+        }
+    }
+
+    private void getOffers(OffersFetch offersFetch, Number160 locationKey) {
+        FutureDigest futureDigest = p2pNode.getDataMapDigest(locationKey);
+        futureDigest.addListener(new BaseFutureAdapter<BaseFuture>() {
+            @Override
+            public void operationComplete(BaseFuture future) throws Exception {
+                final DigestResult digest = futureDigest.digest();
+                if (!future.isSuccess() || digest == null) {
+                    log.debug("Get digest of offers from DHT was not successful, we fetch all offers.");
+                    getAllOffers(offersFetch, locationKey);
+                    return;
+                }
+                // The peers responded, but the location holds no offers
+                if (digest.keyDigest() == null || digest.keyDigest().isEmpty()) {
+                    offersFetch.onLocationCompleted();
+                    return;
+                }
+
+                final Map<Number160, CachedOffer> offerCache = getOfferCache(offersFetch.currencyCode);
+                final Set<Number160> contentKeys = digest.keyDigest().keySet().stream()
+                        .map(Number640::contentKey)
+                        .collect(Collectors.toSet());
+                offersFetch.contentKeys.addAll(contentKeys);
+                final List<Number160> missingContentKeys = contentKeys.stream()
+                        .filter(contentKey -> !offerCache.containsKey(contentKey))
+                        .collect(Collectors.toList());
+                log.trace("Get digest of offers from DHT was successful. " + contentKeys.size() + " offers, " +
+                        missingContentKeys.size() + " not cached.");
+
+                if (missingContentKeys.isEmpty())
+                    offersFetch.onLocationCompleted();
+                else
+                    getMissingOffers(offersFetch, locationKey, missingContentKeys);
+            }
+        });
+    }
+
+    private void getMissingOffers(OffersFetch offersFetch, Number160 locationKey, List<Number160> missingContentKeys) {
+        FutureGet futureGet = p2pNode.getDataMap(locationKey, missingContentKeys);
+        futureGet.addListener(new BaseFutureAdapter<BaseFuture>() {
+            @Override
+            public void operationComplete(BaseFuture future) throws Exception {
+                final Map<Number640, Data> dataMap = futureGet.dataMap();
+                if (future.isSuccess() && dataMap != null) {
+                    decodeOffers(offersFetch, dataMap);
+                }
+                else {
+                    log.debug("Get missing offers from DHT was not successful with reason:" +
+                            future.failedReason() + ", we fetch all offers.");
+                    getAllOffers(offersFetch, locationKey);
+                }
+            }
+        });
+    }
+
+    private void getAllOffers(OffersFetch offersFetch, Number160 locationKey) {
         FutureGet futureGet = p2pNode.getDataMap(locationKey);
         futureGet.addListener(new BaseFutureAdapter<BaseFuture>() {
             @Override
             public void operationComplete(BaseFuture future) throws Exception {
+                final Map<Number640, Data> dataMap = futureGet.dataMap();
                 if (future.isSuccess()) {
-                    final Map<Number640, Data> dataMap = futureGet.dataMap();
-                    final List<Offer> offers = new ArrayList<>();
-                    if (dataMap != null) {
-                        for (Data offerData : dataMap.values()) {
-                            try {
-                                Object offerDataObject = offerData.object();
-                                if (offerDataObject instanceof Offer) {
-                                    offers.add((Offer) offerDataObject);
-                                }
-                            } catch (ClassNotFoundException | IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
+                    log.trace("Get offers from DHT was successful. Stored data: [key: " + locationKey
+                            + ", values: " + dataMap + "]");
+                    if (dataMap != null)
+                        decodeOffers(offersFetch, dataMap);
+                    else
+                        offersFetch.onLocationCompleted();
+                }
+                else if (futureGet.isEmpty()) {
+                    log.trace("Get offers from DHT delivered empty dataMap.");
+                    offersFetch.onLocationCompleted();
+                }
+                else {
+                    log.error("Get offers from DHT  was not successful with reason:" + future.failedReason());
+                    offersFetch.failed = true;
+                    offersFetch.onLocationCompleted();
+                }
+            }
+        });
+    }
+
+    // Decodes the offers off the network thread
+    private void decodeOffers(OffersFetch offersFetch, Map<Number640, Data> dataMap) {
+        dataDecoder.decode(dataMap, Offer.class, offers -> {
+            dataMap.keySet().stream().forEach(key -> offersFetch.contentKeys.add(key.contentKey()));
+            offers.forEach((key, offer) -> offersFetch.fetchedOffers.put(key.contentKey(),
+                    new CachedOffer(offer, dataMap.get(key).expirationMillis())));
+            offersFetch.onLocationCompleted();
+        });
+    }
+
+    private void completeOffersFetch(OffersFetch offersFetch) {
+        final Map<Number160, CachedOffer> offerCache = getOfferCache(offersFetch.currencyCode);
+        // If a location could not be read we keep the cached offers, as some of them are probably stored there.
+        // Cached offers of a direction we have not read are kept as well.
+        boolean changed = !offersFetch.failed && offerCache.entrySet().removeIf(entry ->
+                isRequested(entry.getValue().getOffer(), offersFetch.direction) &&
+                        !offersFetch.contentKeys.contains(entry.getKey()));
+        offerCache.putAll(offersFetch.fetchedOffers);
+        changed |= !offersFetch.fetchedOffers.isEmpty();
+        // The direction might have been changed in the meantime, then that fetch delivers the offers
+        if (requestedDirections.get(offersFetch.currencyCode) == offersFetch.direction)
+            deliverCachedOffers(offersFetch.currencyCode, offersFetch.direction,
+                    offersFetch.failed ? null : offersFetch.requestTime, changed);
+        else if (changed)
+            persistOfferCache(offersFetch.currencyCode);
+    }
 
-                        executor.execute(() -> offerRepositoryListeners.stream().forEach(listener ->
-                                listener.onOffersReceived(offers)));
+    // Without synced version the next change request fetches all offers again
+    private void deliverCachedOffers(String currencyCode, @Nullable Direction direction, @Nullable Long syncedVersion,
+                                     boolean changed) {
+        final List<Offer> offers = getOfferCache(currencyCode).values().stream()
+                .map(CachedOffer::getOffer)
+                .filter(offer -> isRequested(offer, direction))
+                .collect(Collectors.toList());
+        if (syncedVersion != null)
+            syncedVersions.put(currencyCode, syncedVersion);
+        else
+            syncedVersions.remove(currencyCode);
+        if (changed)
+            persistOfferCache(currencyCode);
+
+        executor.execute(() -> offerRepositoryListeners.stream().forEach(listener ->
+                listener.onOffersReceived(currencyCode, direction, offers)));
+    }
+
+    private void deliverStaleOffers(String currencyCode) {
+        final long now = System.currentTimeMillis();
+        final Direction direction = requestedDirections.get(currencyCode);
+        final List<Offer> offers = getOfferCache(currencyCode).values().stream()
+                .filter(cachedOffer -> !cachedOffer.isExpired(now))
+                .map(CachedOffer::getOffer)
+                .filter(offer -> isRequested(offer, direction))
+                .collect(Collectors.toList());
+        if (!offers.isEmpty()) {
+            log.trace("Deliver " + offers.size() + " cached offers until the offers got fetched from the DHT.");
+            executor.execute(() -> offerRepositoryListeners.stream().forEach(listener ->
+                    listener.onCachedOffersReceived(currencyCode, direction, offers)));
+        }
+    }
+
+    private static boolean isRequested(Offer offer, @Nullable Direction direction) {
+        return direction == null || offer.getDirection() == direction;
+    }
+
+    private Map<Number160, CachedOffer> getOfferCache(String currencyCode) {
+        return offerCaches.computeIfAbsent(currencyCode, this::readOfferCache);
+    }
+
+    private Map<Number160, CachedOffer> readOfferCache(String currencyCode) {
+        final Map<Number160, CachedOffer> offerCache = new ConcurrentHashMap<>();
+        final Object persisted = persistence.read(this, OFFER_CACHE_KEY + currencyCode);
+        if (persisted instanceof Map) {
+            final long now = System.currentTimeMillis();
+            ((Map<?, ?>) persisted).forEach((contentKey, cachedOffer) -> {
+                if (contentKey instanceof String && cachedOffer instanceof CachedOffer &&
+                        !((CachedOffer) cachedOffer).isExpired(now))
+                    offerCache.put(new Number160((String) contentKey), (CachedOffer) cachedOffer);
+            });
+        }
+        return offerCache;
+    }
+
+    private void persistOfferCache(String currencyCode) {
+        final Map<String, CachedOffer> persisted = new HashMap<>();
+        getOfferCache(currencyCode).forEach((contentKey, cachedOffer) ->
+                persisted.put(contentKey.toString(), cachedOffer));
+        persistence.write(this, OFFER_CACHE_KEY + currencyCode, persisted);
+    }
+
+    private boolean isBootstrapped() {
+        return p2pNode.bootstrappedProperty().get();
+    }
+
+    private void onBootstrapped() {
+        subscribedCurrencyCodes.stream().forEach(this::subscribe);
+        for (String currencyCode : pendingCurrencyCodes) {
+            if (pendingCurrencyCodes.remove(currencyCode))
+                fetchOffers(currencyCode);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Change log
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // The subscribers get notified once the change is in the change log, so they find it there
+    private void writeChangeToDHT(Offer offer, boolean added) {
+        String currencyCode = offer.getCurrency().getCurrencyCode();
+        long version = System.currentTimeMillis();
+        Number160 locationKey = getChangeLogLocationKey(currencyCode, version / CHANGE_LOG_BUCKET_MILLIS);
+        try {
+            Data changeData = new Data(new OfferBookChange(version, offer, added));
+            changeData.ttlSeconds(CHANGE_LOG_TTL);
+            FuturePut futurePut = p2pNode.addProtectedData(locationKey, changeData);
+            futurePut.addListener(new BaseFutureListener<BaseFuture>() {
+                @Override
+                public void operationComplete(BaseFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        log.trace("Add offer change to DHT was successful. Version=" + version);
+                        notifySubscribers(currencyCode);
                     }
+                    else
+                        log.error("Add offer change to DHT failed with reason:" + futurePut.failedReason());
+                }
 
-                    log.trace("Get offers from DHT was successful. Stored data: [key: " + locationKey
-                            + ", values: " + futureGet.dataMap() + "]");
+                @Override
+                public void exceptionCaught(Throwable t) throws Exception {
+                    log.error("Add offer change to DHT failed with exception:" + t.getMessage());
                 }
-                else {
-                    final Map<Number640, Data> dataMap = futureGet.dataMap();
-                    if (dataMap == null || dataMap.size() == 0) {
-                        log.trace("Get offers from DHT delivered empty dataMap.");
-                        executor.execute(() -> offerRepositoryListeners.stream().forEach(listener ->
-                                listener.onOffersReceived(new ArrayList<>())));
+            });
+        } catch (IOException e) {
+            log.error("Add offer change to DHT failed with exception:" + e.getMessage());
+        }
+    }
+
+    // Gets the keys of the offers stored in the DHT to check the changes against them
+    private void verifyOfferChanges(String currencyCode, long requestTime, List<OfferBookChange> allChanges) {
+        // We only read the locations of the requested direction, so we only can check its changes
+        final Direction direction = requestedDirections.get(currencyCode);
+        final List<OfferBookChange> changes = allChanges.stream()
+                .filter(change -> change.getOffer() == null || isRequested(change.getOffer(), direction))
+                .collect(Collectors.toList());
+        if (changes.isEmpty()) {
+            applyOfferChanges(currencyCode, requestTime, changes);
+            return;
+        }
+
+        final List<Number160> locationKeys = offerShards.getReadLocationKeys(currencyCode, direction);
+        final Set<Number160> storedContentKeys = ConcurrentHashMap.newKeySet();
+        final AtomicInteger pendingLocations = new AtomicInteger(locationKeys.size());
+        final AtomicBoolean failed = new AtomicBoolean();
+        for (Number160 locationKey : locationKeys) {
+            FutureDigest futureDigest = p2pNode.getDataMapDigest(locationKey);
+            futureDigest.addListener(new BaseFutureAdapter<BaseFuture>() {
+                @Override
+                public void operationComplete(BaseFuture future) throws Exception {
+                    final DigestResult digest = futureDigest.digest();
+                    if (!future.isSuccess() || digest == null) {
+                        onDigestFailed();
+                        return;
                     }
-                    else {
-                        log.error("Get offers from DHT  was not successful with reason:" + future.failedReason());
+
+                    if (digest.keyDigest() != null)
+                        digest.keyDigest().keySet().stream().forEach(key -> storedContentKeys.add(key.contentKey()));
+                    if (pendingLocations.decrementAndGet() == 0 && !failed.get())
+                        applyOfferChanges(currencyCode, requestTime, getVerifiedOfferChanges(currencyCode, changes,
+                                storedContentKeys));
+                }
+
+                @Override
+                public void exceptionCaught(Throwable t) throws Exception {
+                    onDigestFailed();
+                }
+
+                // Without the digest we can't check the changes, so we fetch all offers
+                private void onDigestFailed() {
+                    if (!failed.getAndSet(true)) {
+                        log.debug("Get digest of offers from DHT failed, we fetch all offers.");
+                        fetchOffers(currencyCode);
                     }
                 }
+            });
+        }
+    }
+
+    private List<OfferBookChange> getVerifiedOfferChanges(String currencyCode, List<OfferBookChange> changes,
+                                                          Set<Number160> storedContentKeys) {
+        final List<OfferBookChange> verifiedChanges = new ArrayList<>();
+        for (OfferBookChange change : changes) {
+            final Offer offer = change.getOffer();
+            boolean verified = false;
+            if (offer != null && offer.getCurrency() != null &&
+                    currencyCode.equals(offer.getCurrency().getCurrencyCode())) {
+                try {
+                    // Offers are stored under the hash of their data, see addOffer
+                    verified = storedContentKeys.contains(new Data(offer).hash()) == change.isAdded();
+                } catch (IOException e) {
+                    log.debug("Could not serialize offer of change log entry: " + e);
+                }
             }
-        });
+            if (verified)
+                verifiedChanges.add(change);
+        }
+
+        final int rejected = changes.size() - verifiedChanges.size();
+        if (rejected > 0)
+            log.warn("Dropped " + rejected + " offer changes which do not match the offers in the DHT, " +
+                    rejectedOfferChanges.addAndGet(rejected) + " in total.");
+        return verifiedChanges;
     }
 
+    private void applyOfferChanges(String currencyCode, long requestTime, List<OfferBookChange> changes) {
+        final List<OfferBookChange> sortedChanges = new ArrayList<>(changes);
+        sortedChanges.sort(Comparator.comparingLong(OfferBookChange::getVersion));
+        syncedVersions.put(currencyCode, requestTime);
+        log.trace("Get offer changes from DHT delivered " + sortedChanges.size() + " changes.");
+
+        // Changes seen before (e.g. by an earlier request) are applied again, the listeners ignore known offers
+        executor.execute(() -> sortedChanges.stream().forEach(change ->
+                offerRepositoryListeners.stream().forEach(listener -> {
+                    if (change.isAdded())
+                        listener.onOfferAdded(change.getOffer());
+                    else
+                        listener.onOfferRemoved(change.getOffer());
+                })));
+    }
+
+    private Number160 getChangeLogLocationKey(String currencyCode, long bucket) {
+        return Number160.createHash(currencyCode + "changes" + bucket);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Subscriptions
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
     @Override
-    public void addListener(Listener listener) {
-        offerRepositoryListeners.add(listener);
+    public void subscribe(String currencyCode) {
+        subscribedCurrencyCodes.add(currencyCode);
+        if (!isBootstrapped())
+            return;
+
+        try {
+            Data subscriptionData = getSubscriptionData();
+            subscriptionData.ttlSeconds(SUBSCRIPTION_TTL);
+            FuturePut futurePut = p2pNode.addProtectedData(getSubscribersLocationKey(currencyCode), subscriptionData);
+            futurePut.addListener(new BaseFutureListener<BaseFuture>() {
+                @Override
+                public void operationComplete(BaseFuture future) throws Exception {
+                    if (future.isSuccess())
+                        log.trace("Subscribed to offers with currency " + currencyCode);
+                    else
+                        log.error("Subscribing to offers failed with reason:" + futurePut.failedReason());
+                }
+
+                @Override
+                public void exceptionCaught(Throwable t) throws Exception {
+                    log.error("Subscribing to offers failed with exception:" + t.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            log.error("Subscribing to offers failed with exception:" + e.getMessage());
+        }
     }
 
     @Override
-    public void removeListener(Listener listener) {
-        offerRepositoryListeners.remove(listener);
+    public void unsubscribe(String currencyCode) {
+        subscribedCurrencyCodes.remove(currencyCode);
+        if (!isBootstrapped())
+            return;
+
+        try {
+            p2pNode.removeFromDataMap(getSubscribersLocationKey(currencyCode), getSubscriptionData());
+        } catch (IOException e) {
+            log.error("Unsubscribing from offers failed with exception:" + e.getMessage());
+        }
+    }
+
+    private void notifySubscribers(String currencyCode) {
+        FutureGet futureGet = p2pNode.getDataMap(getSubscribersLocationKey(currencyCode));
+        futureGet.addListener(new BaseFutureAdapter<BaseFuture>() {
+            @Override
+            public void operationComplete(BaseFuture future) throws Exception {
+                final Map<Number640, Data> dataMap = futureGet.dataMap();
+                if (!future.isSuccess() || dataMap == null)
+                    return;
+
+                OfferBookChangedMessage message = new OfferBookChangedMessage(currencyCode);
+                for (Data subscriptionData : dataMap.values()) {
+                    Object subscriber = subscriptionData.object();
+                    if (subscriber instanceof TomP2PPeer &&
+                            !((TomP2PPeer) subscriber).getPeerAddress().equals(p2pNode.getPeerAddress())) {
+                        messageService.sendMessage((TomP2PPeer) subscriber, message, MessagePriority.LOW,
+                                new OutgoingMessageListener() {
+                                    @Override
+                                    public void onResult() {
+                                        log.trace("OfferBookChangedMessage arrived at " + subscriber);
+                                    }
+
+                                    @Override
+                                    public void onFailed() {
+                                        // The subscriber gets the change at its next reconciliation
+                                        log.debug("OfferBookChangedMessage did not arrive at " + subscriber);
+                                    }
+                                });
+                    }
+                }
+            }
+        });
+    }
+
+    private void onOfferBookChanged(OfferBookChangedMessage message) {
+        String currencyCode = message.getCurrencyCode();
+        if (currencyCode == null || !subscribedCurrencyCodes.contains(currencyCode))
+            return;
+
+        log.trace("Offers with currency " + currencyCode + " got changed, we fetch the changes.");
+        requestOfferChanges(currencyCode);
+    }
+
+    private Data getSubscriptionData() throws IOException {
+        return new Data(new TomP2PPeer(p2pNode.getPeerAddress()));
+    }
+
+    private Number160 getSubscribersLocationKey(String currencyCode) {
+        return Number160.createHash(currencyCode + "subscribers");
     }
 
     /*
-     * We store the timestamp of any change of the offer list (add, remove offer) and we poll
-     * in intervals for changes. If we detect a change we request the offer list from the DHT.
-     * Polling should be replaced by a push based solution later.
+     * We store the timestamp of any change of the offer list (add, remove offer). Watchers get notified of changes,
+     * but check the timestamp in a long interval to reconcile their list with the DHT in case they missed a change.
      */
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -257,6 +832,10 @@ public class TomP2POfferBook implements RemoteOfferBook {
     }
 
     public void requestInvalidationTimeStampFromDHT(String currencyCode) {
+        if (!isBootstrapped())
+            return;
+
+        final long requestTime = System.currentTimeMillis();
         FutureGet futureGet = p2pNode.getData(getInvalidatedLocationKey(currencyCode));
         futureGet.addListener(new BaseFutureListener<BaseFuture>() {
             @Override
@@ -268,6 +847,9 @@ public class TomP2POfferBook implements RemoteOfferBook {
                         executor.execute(() -> {
                             Long timeStamp = (Long) object;
                             //log.trace("Get invalidationTimestamp from DHT was successful. TimeStamp=" + timeStamp);
+                            // Nothing changed since our last sync, so the delta can start from now
+                            if (timeStamp == invalidationTimestamp.get() && syncedVersions.containsKey(currencyCode))
+                                syncedVersions.put(currencyCode, requestTime);
                             invalidationTimestamp.set(timeStamp);
                         });
                     }
@@ -17,9 +17,13 @@
 
 package io.bitsquare.offer.tomp2p;
 
+import io.bitsquare.msg.MessageService;
+import io.bitsquare.msg.tomp2p.DataDecoder;
 import io.bitsquare.msg.tomp2p.TomP2PNode;
+import io.bitsquare.offer.MarketDepth;
 import io.bitsquare.offer.OfferModule;
 import io.bitsquare.offer.RemoteOfferBook;
+import io.bitsquare.persistence.Persistence;
 
 import com.google.inject.Provider;
 
@@ -38,6 +42,7 @@ public class TomP2POfferModule extends OfferModule {
     @Override
     protected void configure() {
         bind(RemoteOfferBook.class).toProvider(RemoteOfferBookProvider.class).asEagerSingleton();
+        bind(MarketDepth.class).asEagerSingleton();
     }
 }
 
@@ -45,8 +50,9 @@ class RemoteOfferBookProvider implements Provider<RemoteOfferBook> {
     private final TomP2POfferBook remoteOfferBook;
 
     @Inject
-    public RemoteOfferBookProvider(TomP2PNode p2pNode) {
-        remoteOfferBook = new TomP2POfferBook(p2pNode);
+    public RemoteOfferBookProvider(TomP2PNode p2pNode, MessageService messageService, Persistence persistence,
+                                   DataDecoder dataDecoder, OfferShards offerShards) {
+        remoteOfferBook = new TomP2POfferBook(p2pNode, messageService, persistence, dataDecoder, offerShards);
         remoteOfferBook.setExecutor(Platform::runLater);
     }
 
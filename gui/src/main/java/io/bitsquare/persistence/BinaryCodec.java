@@ -0,0 +1,486 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact tagged binary format. Types with a registered {@link TypeAdapter} are written field by field without
+ * class descriptors, strings and shared values are written once per record and referenced afterwards, and numbers use
+ * variable length encoding. Values of other types fall back to Java serialization.
+ * <p>
+ * Every registered type carries its own version, which is passed to the adapter at reading so it can still read
+ * records written by older versions of the type.
+ * <p>
+ * Data written by the {@link JavaSerializationCodec} is detected by its stream header and still gets decoded.
+ */
+public class BinaryCodec implements Codec {
+    private static final byte MAGIC = (byte) 0xB5;
+    private static final byte FORMAT_VERSION = 1;
+    // Java serialization streams start with 0xACED
+    private static final byte JAVA_SERIALIZATION_MAGIC = (byte) 0xAC;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte INTEGER = 3;
+    private static final byte LONG = 4;
+    private static final byte BYTES = 5;
+    private static final byte LIST = 6;
+    private static final byte MAP = 7;
+    private static final byte TYPE = 8;
+    private static final byte JAVA_SERIALIZED = 9;
+
+    public interface TypeAdapter<T> {
+        void write(Output output, T value) throws IOException;
+
+        T read(Input input, int version) throws IOException;
+    }
+
+    public interface Writer<T> {
+        void write(Output output, T value) throws IOException;
+    }
+
+    public interface Reader<T> {
+        T read(Input input) throws IOException;
+    }
+
+    private static class Registration<T> {
+        final int typeId;
+        final int version;
+        final TypeAdapter<T> adapter;
+
+        Registration(int typeId, int version, TypeAdapter<T> adapter) {
+            this.typeId = typeId;
+            this.version = version;
+            this.adapter = adapter;
+        }
+    }
+
+    private final Map<Class<?>, Registration<?>> registrationsByClass = new HashMap<>();
+    private final Map<Integer, Registration<?>> registrationsById = new HashMap<>();
+    private final JavaSerializationCodec javaSerializationCodec = new JavaSerializationCodec();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Public API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Registers an adapter for exactly the given class, subclasses are not covered.
+     *
+     * @param typeId  permanent id of the type in the stored data, must never be reused for another type
+     * @param version current version of the adapters format, increase it when the written fields change
+     */
+    public <T> void register(int typeId, int version, Class<T> type, TypeAdapter<T> adapter) {
+        if (registrationsById.containsKey(typeId))
+            throw new IllegalArgumentException("Type id " + typeId + " is already registered.");
+
+        Registration<T> registration = new Registration<>(typeId, version, adapter);
+        registrationsByClass.put(type, registration);
+        registrationsById.put(typeId, registration);
+    }
+
+    @Override
+    public byte[] encode(Serializable value) throws IOException {
+        Output output = new Output();
+        output.writeByte(MAGIC);
+        output.writeByte(FORMAT_VERSION);
+        output.writeValue(value);
+        return output.toByteArray();
+    }
+
+    @Override
+    public Serializable decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        if (bytes.length > 0 && bytes[0] == JAVA_SERIALIZATION_MAGIC)
+            return javaSerializationCodec.decode(bytes);
+
+        if (bytes.length < 2 || bytes[0] != MAGIC)
+            throw new StreamCorruptedException("Unknown format.");
+        if (bytes[1] > FORMAT_VERSION)
+            throw new StreamCorruptedException("Unsupported format version " + bytes[1]);
+
+        Input input = new Input(bytes, 2);
+        try {
+            return (Serializable) input.readValue();
+        } catch (ClassCastException | IndexOutOfBoundsException e) {
+            throw new StreamCorruptedException("Corrupt data: " + e);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Output
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public class Output {
+        private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Map<Object, Integer> sharedValues = new HashMap<>();
+
+        private Output() {
+        }
+
+        public void writeByte(int value) {
+            outputStream.write(value);
+        }
+
+        public void writeBoolean(boolean value) {
+            outputStream.write(value ? 1 : 0);
+        }
+
+        /**
+         * Unsigned variable length int, small values take one byte.
+         */
+        public void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                outputStream.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            outputStream.write(value);
+        }
+
+        /**
+         * Signed variable length long (zigzag encoded).
+         */
+        public void writeLong(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                outputStream.write((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            outputStream.write((int) zigzag);
+        }
+
+        /**
+         * Nullable string. Repeated strings of the same record (e.g. currency and country codes) are written once and
+         * referenced afterwards.
+         */
+        public void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeVarInt(index + 2);
+            }
+            else {
+                strings.put(value, strings.size());
+                writeVarInt(1);
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(bytes.length);
+                outputStream.write(bytes, 0, bytes.length);
+            }
+        }
+
+        /**
+         * Nullable value which is written once per record and referenced afterwards if it occurs again. Values are
+         * matched by equals, so it should only be used for types where equal instances are interchangeable (e.g.
+         * keys or objects without equals override).
+         */
+        public <T> void writeShared(T value, Writer<T> writer) throws IOException {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+
+            Integer index = sharedValues.get(value);
+            if (index != null) {
+                writeVarInt(index + 2);
+            }
+            else {
+                writeVarInt(1);
+                writer.write(this, value);
+                // Added after writing, so the index is the same as at reading
+                sharedValues.put(value, sharedValues.size());
+            }
+        }
+
+        public void writeBytes(byte[] value) {
+            writeBoolean(value != null);
+            if (value != null) {
+                writeVarInt(value.length);
+                outputStream.write(value, 0, value.length);
+            }
+        }
+
+        /**
+         * Writes the bytes without their length, for values of a fixed size (e.g. signatures).
+         */
+        public void writeFixedBytes(byte[] value) {
+            outputStream.write(value, 0, value.length);
+        }
+
+        public <T> void writeNullable(T value, Writer<T> writer) throws IOException {
+            writeBoolean(value != null);
+            if (value != null)
+                writer.write(this, value);
+        }
+
+        public <T> void writeList(List<T> list, Writer<T> writer) throws IOException {
+            writeBoolean(list != null);
+            if (list != null) {
+                writeVarInt(list.size());
+                for (T element : list)
+                    writer.write(this, element);
+            }
+        }
+
+        /**
+         * Writes any value together with its type, the counterpart is {@link Input#readValue()}.
+         */
+        @SuppressWarnings("unchecked")
+        public void writeValue(Object value) throws IOException {
+            if (value == null) {
+                writeByte(NULL);
+                return;
+            }
+
+            Registration<Object> registration = (Registration<Object>) registrationsByClass.get(value.getClass());
+            if (registration != null) {
+                writeByte(TYPE);
+                writeVarInt(registration.typeId);
+                writeVarInt(registration.version);
+                registration.adapter.write(this, value);
+            }
+            else if (value instanceof String) {
+                writeByte(STRING);
+                writeString((String) value);
+            }
+            else if (value instanceof Boolean) {
+                writeByte(BOOLEAN);
+                writeBoolean((Boolean) value);
+            }
+            else if (value instanceof Integer) {
+                writeByte(INTEGER);
+                writeLong((Integer) value);
+            }
+            else if (value instanceof Long) {
+                writeByte(LONG);
+                writeLong((Long) value);
+            }
+            else if (value instanceof byte[]) {
+                writeByte(BYTES);
+                byte[] bytes = (byte[]) value;
+                writeVarInt(bytes.length);
+                outputStream.write(bytes, 0, bytes.length);
+            }
+            // Only the exact classes, so we don't lose the type of subclasses
+            else if (value.getClass() == ArrayList.class) {
+                writeByte(LIST);
+                List<?> list = (List<?>) value;
+                writeVarInt(list.size());
+                for (Object element : list)
+                    writeValue(element);
+            }
+            else if (value.getClass() == HashMap.class) {
+                writeByte(MAP);
+                Map<?, ?> map = (Map<?, ?>) value;
+                writeVarInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+            }
+            else if (value instanceof Serializable) {
+                writeByte(JAVA_SERIALIZED);
+                byte[] bytes = javaSerializationCodec.encode((Serializable) value);
+                writeVarInt(bytes.length);
+                outputStream.write(bytes, 0, bytes.length);
+            }
+            else {
+                throw new NotSerializableException(value.getClass().getName());
+            }
+        }
+
+        private byte[] toByteArray() {
+            return outputStream.toByteArray();
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Input
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public class Input {
+        private final byte[] bytes;
+        private final List<String> strings = new ArrayList<>();
+        private final List<Object> sharedValues = new ArrayList<>();
+        private int position;
+
+        private Input(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        public int readByte() throws IOException {
+            if (position >= bytes.length)
+                throw new EOFException();
+            return bytes[position++];
+        }
+
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        public int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new StreamCorruptedException("Malformed var int.");
+        }
+
+        public long readLong() throws IOException {
+            long zigzag = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+            throw new StreamCorruptedException("Malformed var long.");
+        }
+
+        public String readString() throws IOException {
+            int reference = readVarInt();
+            if (reference == 0)
+                return null;
+            if (reference > 1)
+                return strings.get(reference - 2);
+
+            String value = new String(readRawBytes(readVarInt()), StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T readShared(Reader<T> reader) throws IOException {
+            int reference = readVarInt();
+            if (reference == 0)
+                return null;
+            if (reference > 1)
+                return (T) sharedValues.get(reference - 2);
+
+            T value = reader.read(this);
+            sharedValues.add(value);
+            return value;
+        }
+
+        public byte[] readBytes() throws IOException {
+            return readBoolean() ? readRawBytes(readVarInt()) : null;
+        }
+
+        public byte[] readFixedBytes(int length) throws IOException {
+            return readRawBytes(length);
+        }
+
+        public <T> T readNullable(Reader<T> reader) throws IOException {
+            return readBoolean() ? reader.read(this) : null;
+        }
+
+        /**
+         * @return a mutable list, or null if null was written
+         */
+        public <T> List<T> readList(Reader<T> reader) throws IOException {
+            if (!readBoolean())
+                return null;
+
+            int size = readVarInt();
+            List<T> list = new ArrayList<>(Math.min(size, 1024));
+            for (int i = 0; i < size; i++)
+                list.add(reader.read(this));
+            return list;
+        }
+
+        public Object readValue() throws IOException {
+            byte tag = (byte) readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readString();
+                case BOOLEAN:
+                    return readBoolean();
+                case INTEGER:
+                    return (int) readLong();
+                case LONG:
+                    return readLong();
+                case BYTES:
+                    return readRawBytes(readVarInt());
+                case LIST:
+                    int listSize = readVarInt();
+                    ArrayList<Object> list = new ArrayList<>(Math.min(listSize, 1024));
+                    for (int i = 0; i < listSize; i++)
+                        list.add(readValue());
+                    return list;
+                case MAP:
+                    int mapSize = readVarInt();
+                    HashMap<Object, Object> map = new HashMap<>();
+                    for (int i = 0; i < mapSize; i++)
+                        map.put(readValue(), readValue());
+                    return map;
+                case TYPE:
+                    int typeId = readVarInt();
+                    int version = readVarInt();
+                    Registration<?> registration = registrationsById.get(typeId);
+                    if (registration == null)
+                        throw new StreamCorruptedException("Unknown type id " + typeId);
+                    if (version > registration.version)
+                        throw new StreamCorruptedException("Type id " + typeId + " has the unsupported version " +
+                                version);
+                    return registration.adapter.read(this, version);
+                case JAVA_SERIALIZED:
+                    try {
+                        return javaSerializationCodec.decode(readRawBytes(readVarInt()));
+                    } catch (ClassNotFoundException e) {
+                        throw new StreamCorruptedException("Unknown class: " + e.getMessage());
+                    }
+                default:
+                    throw new StreamCorruptedException("Unknown tag " + tag);
+            }
+        }
+
+        private byte[] readRawBytes(int length) throws IOException {
+            if (length < 0 || position + length > bytes.length)
+                throw new EOFException();
+            byte[] result = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return result;
+        }
+    }
+}
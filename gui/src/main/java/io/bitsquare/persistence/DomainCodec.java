@@ -0,0 +1,548 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import io.bitsquare.arbitrator.Arbitrator;
+import io.bitsquare.arbitrator.Reputation;
+import io.bitsquare.bank.BankAccount;
+import io.bitsquare.bank.BankAccountType;
+import io.bitsquare.btc.AddressEntry;
+import io.bitsquare.locale.Country;
+import io.bitsquare.locale.CountryUtil;
+import io.bitsquare.offer.Direction;
+import io.bitsquare.offer.Offer;
+import io.bitsquare.trade.Contract;
+import io.bitsquare.trade.Trade;
+import io.bitsquare.user.User;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import java.util.Currency;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * {@link BinaryCodec} with adapters for the persisted domain objects.
+ * <p>
+ * Countries, currencies and locales are stored by their codes, keys by their encoded form and transactions by their
+ * network and raw bytes. Offers and keys which occur several times in a record (e.g. the offer of a trade and of its
+ * contract) are written only once.
+ * <p>
+ * The type ids must never change, new types get new ids. If the written fields of a type change, its version has to
+ * be increased and the adapter has to handle the older versions at reading.
+ */
+public class DomainCodec extends BinaryCodec {
+    private static final int OFFER = 1;
+    private static final int TRADE = 2;
+    private static final int CONTRACT = 3;
+    private static final int BANK_ACCOUNT = 4;
+    private static final int ARBITRATOR = 5;
+    private static final int USER = 6;
+    private static final int ADDRESS_ENTRY = 7;
+    private static final int COUNTRY = 8;
+    private static final int COIN = 9;
+
+    private static final Pattern HEX = Pattern.compile("([0-9a-f]{2})*");
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public DomainCodec() {
+        register(OFFER, 1, Offer.class, new TypeAdapter<Offer>() {
+            @Override
+            public void write(Output output, Offer offer) throws IOException {
+                writeOffer(output, offer);
+            }
+
+            @Override
+            public Offer read(Input input, int version) throws IOException {
+                return readOffer(input);
+            }
+        });
+        register(TRADE, 1, Trade.class, new TypeAdapter<Trade>() {
+            @Override
+            public void write(Output output, Trade trade) throws IOException {
+                writeTrade(output, trade);
+            }
+
+            @Override
+            public Trade read(Input input, int version) throws IOException {
+                return readTrade(input);
+            }
+        });
+        register(CONTRACT, 1, Contract.class, new TypeAdapter<Contract>() {
+            @Override
+            public void write(Output output, Contract contract) throws IOException {
+                writeContract(output, contract);
+            }
+
+            @Override
+            public Contract read(Input input, int version) throws IOException {
+                return readContract(input);
+            }
+        });
+        register(BANK_ACCOUNT, 1, BankAccount.class, new TypeAdapter<BankAccount>() {
+            @Override
+            public void write(Output output, BankAccount bankAccount) throws IOException {
+                writeBankAccount(output, bankAccount);
+            }
+
+            @Override
+            public BankAccount read(Input input, int version) throws IOException {
+                return readBankAccount(input);
+            }
+        });
+        register(ARBITRATOR, 1, Arbitrator.class, new TypeAdapter<Arbitrator>() {
+            @Override
+            public void write(Output output, Arbitrator arbitrator) throws IOException {
+                writeArbitrator(output, arbitrator);
+            }
+
+            @Override
+            public Arbitrator read(Input input, int version) throws IOException {
+                return readArbitrator(input);
+            }
+        });
+        register(USER, 1, User.class, new TypeAdapter<User>() {
+            @Override
+            public void write(Output output, User user) throws IOException {
+                writeUser(output, user);
+            }
+
+            @Override
+            public User read(Input input, int version) throws IOException {
+                return readUser(input);
+            }
+        });
+        register(ADDRESS_ENTRY, 1, AddressEntry.class, new TypeAdapter<AddressEntry>() {
+            @Override
+            public void write(Output output, AddressEntry addressEntry) throws IOException {
+                writeAddressEntry(output, addressEntry);
+            }
+
+            @Override
+            public AddressEntry read(Input input, int version) throws IOException {
+                return readAddressEntry(input);
+            }
+        });
+        register(COUNTRY, 1, Country.class, new TypeAdapter<Country>() {
+            @Override
+            public void write(Output output, Country country) throws IOException {
+                writeCountry(output, country);
+            }
+
+            @Override
+            public Country read(Input input, int version) throws IOException {
+                return readCountry(input);
+            }
+        });
+        register(COIN, 1, Coin.class, new TypeAdapter<Coin>() {
+            @Override
+            public void write(Output output, Coin coin) throws IOException {
+                writeCoin(output, coin);
+            }
+
+            @Override
+            public Coin read(Input input, int version) throws IOException {
+                return readCoin(input);
+            }
+        });
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Domain objects
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static void writeOffer(Output output, Offer offer) throws IOException {
+        output.writeString(offer.getId());
+        writePublicKey(output, offer.getMessagePublicKey());
+        writeEnum(output, offer.getDirection());
+        output.writeLong(offer.getPrice().value);
+        writeCoin(output, offer.getAmount());
+        writeCoin(output, offer.getMinAmount());
+        writeEnum(output, offer.getBankAccountType());
+        writeCurrency(output, offer.getCurrency());
+        writeCountry(output, offer.getBankAccountCountry());
+        output.writeString(offer.getBankAccountId());
+        output.writeList(offer.getArbitrators(), DomainCodec::writeArbitrator);
+        writeCoin(output, offer.getSecurityDeposit());
+        output.writeList(offer.getAcceptedCountries(), DomainCodec::writeCountry);
+        output.writeList(offer.getAcceptedLanguageLocales(), DomainCodec::writeLocale);
+        writeDate(output, offer.getCreationDate());
+        output.writeString(offer.getOfferFeePaymentTxID());
+    }
+
+    private static Offer readOffer(Input input) throws IOException {
+        Offer offer = new Offer(input.readString(),
+                readPublicKey(input),
+                readEnum(input, Direction.class),
+                input.readLong(),
+                readCoin(input),
+                readCoin(input),
+                readEnum(input, BankAccountType.class),
+                readCurrency(input),
+                readCountry(input),
+                input.readString(),
+                input.readList(DomainCodec::readArbitrator),
+                readCoin(input),
+                input.readList(DomainCodec::readCountry),
+                input.readList(DomainCodec::readLocale),
+                readDate(input));
+        offer.setOfferFeePaymentTxID(input.readString());
+        return offer;
+    }
+
+    private static void writeTrade(Output output, Trade trade) throws IOException {
+        output.writeShared(trade.getOffer(), DomainCodec::writeOffer);
+        writeDate(output, trade.getDate());
+        output.writeString(trade.getTakeOfferFeeTxId());
+        output.writeNullable(trade.getContract(), DomainCodec::writeContract);
+        output.writeString(trade.getContractAsJson());
+        output.writeString(trade.getTakerSignature());
+        writeTransaction(output, trade.getDepositTx());
+        writeTransaction(output, trade.getPayoutTx());
+        writeCoin(output, trade.getTradeAmount());
+        writeEnum(output, trade.getState());
+        // Rare and of arbitrary type, so we leave it to the generic handling
+        output.writeValue(trade.getFault());
+    }
+
+    private static Trade readTrade(Input input) throws IOException {
+        Trade trade = new Trade(input.readShared(DomainCodec::readOffer), readDate(input));
+        trade.setTakeOfferFeeTxID(input.readString());
+        trade.setContract(input.readNullable(DomainCodec::readContract));
+        trade.setContractAsJson(input.readString());
+        trade.setContractTakerSignature(input.readString());
+        trade.setDepositTx(readTransaction(input));
+        trade.setPayoutTx(readTransaction(input));
+        trade.setTradeAmount(readCoin(input));
+        trade.setState(readEnum(input, Trade.State.class));
+        trade.setFault((Throwable) input.readValue());
+        return trade;
+    }
+
+    private static void writeContract(Output output, Contract contract) throws IOException {
+        output.writeShared(contract.getOffer(), DomainCodec::writeOffer);
+        writeCoin(output, contract.getTradeAmount());
+        output.writeString(contract.getTakeOfferFeeTxID());
+        output.writeString(contract.getOffererAccountID());
+        output.writeString(contract.getTakerAccountID());
+        output.writeNullable(contract.getOffererBankAccount(), DomainCodec::writeBankAccount);
+        output.writeNullable(contract.getTakerBankAccount(), DomainCodec::writeBankAccount);
+        writeHex(output, contract.getOffererMessagePublicKey());
+        writeHex(output, contract.getTakerMessagePublicKey());
+    }
+
+    private static Contract readContract(Input input) throws IOException {
+        return new Contract(input.readShared(DomainCodec::readOffer),
+                readCoin(input),
+                input.readString(),
+                input.readString(),
+                input.readString(),
+                input.readNullable(DomainCodec::readBankAccount),
+                input.readNullable(DomainCodec::readBankAccount),
+                readHex(input),
+                readHex(input));
+    }
+
+    protected static void writeBankAccount(Output output, BankAccount bankAccount) throws IOException {
+        writeEnum(output, bankAccount.getBankAccountType());
+        writeCurrency(output, bankAccount.getCurrency());
+        writeCountry(output, bankAccount.getCountry());
+        output.writeString(bankAccount.getNameOfBank());
+        output.writeString(bankAccount.getAccountHolderName());
+        output.writeString(bankAccount.getAccountPrimaryID());
+        output.writeString(bankAccount.getAccountSecondaryID());
+    }
+
+    protected static BankAccount readBankAccount(Input input) throws IOException {
+        return new BankAccount(readEnum(input, BankAccountType.class),
+                readCurrency(input),
+                readCountry(input),
+                input.readString(),
+                input.readString(),
+                input.readString(),
+                input.readString());
+    }
+
+    private static void writeArbitrator(Output output, Arbitrator arbitrator) throws IOException {
+        writeHex(output, arbitrator.getPubKeyAsHex());
+        writeHex(output, arbitrator.getMessagePubKeyAsHex());
+        output.writeString(arbitrator.getName());
+        writeEnum(output, arbitrator.getIdType());
+        output.writeList(arbitrator.getLanguages(), DomainCodec::writeLocale);
+        // Reputation has no state yet
+        output.writeBoolean(arbitrator.getReputation() != null);
+        writeCoin(output, arbitrator.getFee());
+        output.writeList(arbitrator.getArbitrationMethods(), DomainCodec::writeEnum);
+        output.writeList(arbitrator.getIdVerifications(), DomainCodec::writeEnum);
+        output.writeString(arbitrator.getWebUrl());
+        output.writeString(arbitrator.getDescription());
+    }
+
+    private static Arbitrator readArbitrator(Input input) throws IOException {
+        return new Arbitrator(readHex(input),
+                readHex(input),
+                input.readString(),
+                readEnum(input, Arbitrator.ID_TYPE.class),
+                input.readList(DomainCodec::readLocale),
+                input.readBoolean() ? new Reputation() : null,
+                readCoin(input),
+                input.readList(in -> readEnum(in, Arbitrator.METHOD.class)),
+                input.readList(in -> readEnum(in, Arbitrator.ID_VERIFICATION.class)),
+                input.readString(),
+                input.readString());
+    }
+
+    private static void writeUser(Output output, User user) throws IOException {
+        KeyPair messageKeyPair = user.getMessageKeyPair();
+        output.writeBoolean(messageKeyPair != null);
+        if (messageKeyPair != null) {
+            writePublicKey(output, messageKeyPair.getPublic());
+            writePrivateKey(output, messageKeyPair.getPrivate());
+        }
+        output.writeString(user.getAccountId());
+        // A user of a legacy snapshot got restored by Java serialization, which leaves its observables null
+        List<BankAccount> bankAccounts;
+        BankAccount currentBankAccount;
+        if (user.getBankAccounts() != null && user.getCurrentBankAccount() != null) {
+            bankAccounts = user.getBankAccounts();
+            currentBankAccount = user.getCurrentBankAccount().get();
+        }
+        else {
+            bankAccounts = user.getSerializedBankAccounts();
+            currentBankAccount = user.getSerializedCurrentBankAccount();
+        }
+        output.writeList(bankAccounts, DomainCodec::writeBankAccount);
+        // The current account is one of the list, we store only its position
+        output.writeVarInt(bankAccounts != null ? bankAccounts.indexOf(currentBankAccount) + 1 : 0);
+    }
+
+    private static User readUser(Input input) throws IOException {
+        User user = new User();
+        if (input.readBoolean())
+            user.setMessageKeyPair(new KeyPair(readPublicKey(input), readPrivateKey(input)));
+        user.setAccountID(input.readString());
+        List<BankAccount> bankAccounts = input.readList(DomainCodec::readBankAccount);
+        if (bankAccounts != null)
+            user.getBankAccounts().setAll(bankAccounts);
+        int currentBankAccountPosition = input.readVarInt();
+        if (currentBankAccountPosition > 0)
+            user.setCurrentBankAccount(user.getBankAccounts().get(currentBankAccountPosition - 1));
+        return user;
+    }
+
+    private static void writeAddressEntry(Output output, AddressEntry addressEntry) throws IOException {
+        writeNetworkParameters(output, addressEntry.getParams());
+        writeEnum(output, addressEntry.getAddressContext());
+        output.writeString(addressEntry.getOfferId());
+        output.writeBytes(addressEntry.getPubKeyHash());
+    }
+
+    private static AddressEntry readAddressEntry(Input input) throws IOException {
+        return new AddressEntry(readNetworkParameters(input),
+                readEnum(input, AddressEntry.AddressContext.class),
+                input.readString(),
+                input.readBytes());
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Value types
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static void writeCountry(Output output, Country country) {
+        output.writeString(country != null ? country.getCode() : null);
+    }
+
+    private static Country readCountry(Input input) throws IOException {
+        String code = input.readString();
+        return code != null ? CountryUtil.getCountryByCode(code) : null;
+    }
+
+    private static void writeCurrency(Output output, Currency currency) {
+        output.writeString(currency != null ? currency.getCurrencyCode() : null);
+    }
+
+    private static Currency readCurrency(Input input) throws IOException {
+        String code = input.readString();
+        try {
+            return code != null ? Currency.getInstance(code) : null;
+        } catch (IllegalArgumentException e) {
+            throw new StreamCorruptedException("Unknown currency code " + code);
+        }
+    }
+
+    private static void writeLocale(Output output, Locale locale) {
+        output.writeBoolean(locale != null);
+        if (locale != null) {
+            output.writeString(locale.getLanguage());
+            output.writeString(locale.getCountry());
+            output.writeString(locale.getVariant());
+        }
+    }
+
+    private static Locale readLocale(Input input) throws IOException {
+        return input.readBoolean() ? new Locale(input.readString(), input.readString(), input.readString()) : null;
+    }
+
+    protected static void writeCoin(Output output, Coin coin) throws IOException {
+        output.writeNullable(coin, (out, value) -> out.writeLong(value.value));
+    }
+
+    protected static Coin readCoin(Input input) throws IOException {
+        return input.readNullable(in -> Coin.valueOf(in.readLong()));
+    }
+
+    private static void writeDate(Output output, Date date) throws IOException {
+        output.writeNullable(date, (out, value) -> out.writeLong(value.getTime()));
+    }
+
+    private static Date readDate(Input input) throws IOException {
+        return input.readNullable(in -> new Date(in.readLong()));
+    }
+
+    private static void writeEnum(Output output, Enum<?> value) {
+        output.writeString(value != null ? value.name() : null);
+    }
+
+    private static <E extends Enum<E>> E readEnum(Input input, Class<E> type) throws IOException {
+        String name = input.readString();
+        try {
+            return name != null ? Enum.valueOf(type, name) : null;
+        } catch (IllegalArgumentException e) {
+            throw new StreamCorruptedException("Unknown value " + name + " of " + type.getSimpleName());
+        }
+    }
+
+    /**
+     * Hex strings (like the arbitrators keys) are stored as their raw bytes, anything else as string. Like the
+     * public keys they usually occur several times in a record (offer, arbitrators, contract).
+     */
+    protected static void writeHex(Output output, String hex) throws IOException {
+        output.writeShared(hex, (out, value) -> {
+            if (HEX.matcher(value).matches()) {
+                out.writeBoolean(true);
+                out.writeBytes(Utils.HEX.decode(value));
+            }
+            else {
+                out.writeBoolean(false);
+                out.writeString(value);
+            }
+        });
+    }
+
+    protected static String readHex(Input input) throws IOException {
+        return input.readShared(in -> in.readBoolean() ? Utils.HEX.encode(in.readBytes()) : in.readString());
+    }
+
+    protected static void writePublicKey(Output output, PublicKey publicKey) throws IOException {
+        output.writeShared(publicKey, (out, key) -> {
+            out.writeString(key.getAlgorithm());
+            out.writeBytes(key.getEncoded());
+        });
+    }
+
+    protected static PublicKey readPublicKey(Input input) throws IOException {
+        return input.readShared(in -> {
+            String algorithm = in.readString();
+            byte[] encoded = in.readBytes();
+            try {
+                return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not restore public key: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    private static void writePrivateKey(Output output, PrivateKey privateKey) throws IOException {
+        output.writeNullable(privateKey, (out, key) -> {
+            out.writeString(key.getAlgorithm());
+            out.writeBytes(key.getEncoded());
+        });
+    }
+
+    private static PrivateKey readPrivateKey(Input input) throws IOException {
+        return input.readNullable(in -> {
+            String algorithm = in.readString();
+            byte[] encoded = in.readBytes();
+            try {
+                return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(encoded));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not restore private key: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    private static void writeNetworkParameters(Output output, NetworkParameters params) {
+        output.writeString(params != null ? params.getId() : null);
+    }
+
+    private static NetworkParameters readNetworkParameters(Input input) throws IOException {
+        String id = input.readString();
+        if (id == null)
+            return null;
+
+        NetworkParameters params = NetworkParameters.fromID(id);
+        if (params == null)
+            throw new StreamCorruptedException("Unknown network " + id);
+        return params;
+    }
+
+    /**
+     * Only the raw transaction is stored, the confidence gets applied again from the wallet.
+     */
+    private static void writeTransaction(Output output, Transaction transaction) throws IOException {
+        output.writeNullable(transaction, (out, tx) -> {
+            writeNetworkParameters(out, tx.getParams());
+            out.writeBytes(tx.bitcoinSerialize());
+        });
+    }
+
+    private static Transaction readTransaction(Input input) throws IOException {
+        return input.readNullable(in -> {
+            NetworkParameters params = readNetworkParameters(in);
+            byte[] bytes = in.readBytes();
+            try {
+                return new Transaction(params, bytes);
+            } catch (ProtocolException e) {
+                throw new IOException("Could not restore transaction: " + e.getMessage(), e);
+            }
+        });
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of per-key records written by {@link Persistence} between two snapshots of the root map.
+ * <p>
+ * Every record is framed by its payload length and a CRC32 checksum, so a torn write at the tail (e.g. the app got
+ * killed while appending) is detected at replay and cut off instead of corrupting the whole store.
+ * <p>
+ * Not thread safe, access is guarded by the journal lock of the owning {@link Persistence}.
+ */
+class Journal {
+    private static final Logger log = LoggerFactory.getLogger(Journal.class);
+
+    // payload length (int) + checksum (int)
+    private static final int HEADER_SIZE = 8;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    interface Listener {
+        void onPut(String key, byte[] value);
+
+        void onRemove(String key);
+    }
+
+    private final File file;
+    private FileOutputStream outputStream;
+    private long size;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    Journal(File file) {
+        this.file = file;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Package scope API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Passes all valid records in log order to the listener. A corrupt or incomplete tail gets truncated, so
+     * following appends continue right after the last valid record.
+     */
+    void replay(Listener listener) throws IOException {
+        close();
+
+        long position = 0;
+        final long fileLength = file.length();
+        if (file.exists()) {
+            try (DataInputStream inputStream =
+                         new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (position + HEADER_SIZE <= fileLength) {
+                    int length = inputStream.readInt();
+                    int checksum = inputStream.readInt();
+                    if (length < 0 || position + HEADER_SIZE + length > fileLength)
+                        break;
+
+                    byte[] payload = new byte[length];
+                    inputStream.readFully(payload);
+                    if (checksum(payload) != checksum)
+                        break;
+
+                    DataInputStream payloadStream = new DataInputStream(new ByteArrayInputStream(payload));
+                    byte type = payloadStream.readByte();
+                    String key = payloadStream.readUTF();
+                    if (type == PUT)
+                        listener.onPut(key, Arrays.copyOfRange(payload, length - payloadStream.available(), length));
+                    else if (type == REMOVE)
+                        listener.onRemove(key);
+                    else
+                        log.warn("Unknown journal record type " + type + " for key " + key + ". We skip it.");
+
+                    position += HEADER_SIZE + length;
+                }
+            }
+        }
+
+        if (position < fileLength) {
+            log.warn("Journal " + file + " has a corrupt tail of " + (fileLength - position) + " bytes. " +
+                    "We truncate it.");
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(position);
+            }
+        }
+        size = position;
+    }
+
+    void append(String key, byte[] value) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(value.length + key.length() + 3);
+        DataOutputStream payloadStream = new DataOutputStream(byteArrayOutputStream);
+        payloadStream.writeByte(PUT);
+        payloadStream.writeUTF(key);
+        payloadStream.write(value);
+        appendRecord(byteArrayOutputStream.toByteArray());
+    }
+
+    void appendRemove(String key) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(key.length() + 3);
+        DataOutputStream payloadStream = new DataOutputStream(byteArrayOutputStream);
+        payloadStream.writeByte(REMOVE);
+        payloadStream.writeUTF(key);
+        appendRecord(byteArrayOutputStream.toByteArray());
+    }
+
+    /**
+     * Drops all records. Must only be called after a snapshot containing them has been safely written.
+     */
+    void reset() throws IOException {
+        close();
+        try (FileOutputStream truncatingStream = new FileOutputStream(file, false)) {
+            truncatingStream.getFD().sync();
+        }
+        size = 0;
+    }
+
+    void close() throws IOException {
+        if (outputStream != null) {
+            outputStream.close();
+            outputStream = null;
+        }
+    }
+
+    long getSize() {
+        return size;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void appendRecord(byte[] payload) throws IOException {
+        // We write header and payload with one call to keep the window for a torn record small
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(checksum(payload));
+        record.put(payload);
+
+        if (outputStream == null)
+            outputStream = new FileOutputStream(file, true);
+
+        outputStream.write(record.array());
+        outputStream.flush();
+        outputStream.getFD().sync();
+        size += record.capacity();
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+}
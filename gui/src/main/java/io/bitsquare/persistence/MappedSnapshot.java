@@ -0,0 +1,105 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link Snapshot} which maps the file into memory once and serves all reads from the mapping. This is not zero-copy:
+ * a read still copies the record out of the mapping into a new array, as the record gets checked and decoded from
+ * it. It only saves opening the file and reading it with system calls for every read.
+ * <p>
+ * The mapping is dropped when the snapshot gets replaced, so reads always see the file of the current index. Files
+ * larger than a single mapping are read like in {@link Snapshot}.
+ */
+class MappedSnapshot extends Snapshot {
+    // Mapping of the current file, created at the first read after the snapshot got replaced
+    private volatile ByteBuffer buffer;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    MappedSnapshot(File file) {
+        super(file);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Package scope API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    void onReplaced() {
+        buffer = null;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Protected methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    protected byte[] readBytes(long offset, int length) throws IOException {
+        ByteBuffer mapping = getBuffer();
+        if (mapping == null)
+            return super.readBytes(offset, length);
+        if (offset + length > mapping.capacity())
+            throw new IOException("Record at " + offset + " is outside of snapshot " + file);
+
+        byte[] bytes = new byte[length];
+        // The position of a duplicate is independent, so concurrent readers don't interfere
+        ByteBuffer view = mapping.duplicate();
+        view.position((int) offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private ByteBuffer getBuffer() throws IOException {
+        ByteBuffer mapping = buffer;
+        if (mapping == null) {
+            synchronized (this) {
+                mapping = buffer;
+                if (mapping == null) {
+                    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                        FileChannel channel = randomAccessFile.getChannel();
+                        if (channel.size() > Integer.MAX_VALUE)
+                            return null;
+                        // The mapping stays valid after the channel is closed
+                        MappedByteBuffer mappedByteBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                channel.size());
+                        buffer = mapping = mappedByteBuffer;
+                    }
+                }
+            }
+        }
+        return mapping;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import java.io.Serializable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of the {@link Migrator}s which upgrade a persisted store to the current schema version.
+ * <p>
+ * The schema version is stored in the snapshot, stores written before it existed have version 0. If a change of the
+ * persisted classes cannot be handled by the versioned adapters of the {@link DomainCodec} (e.g. a value moves to
+ * another key or changes its type), increase {@link #CURRENT_VERSION} and register a migrator from the previous
+ * version. {@link Persistence} applies the migrators to all values in one pass at startup.
+ */
+public class Migrations {
+    // 1: Values encoded with the DomainCodec instead of Java serialization, no migrator needed as the codec reads both
+    public static final int CURRENT_VERSION = 1;
+
+    private final int currentVersion;
+    private final Map<Integer, Migrator> migrators = new HashMap<>();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public Migrations() {
+        this(CURRENT_VERSION);
+    }
+
+    public Migrations(int currentVersion) {
+        this.currentVersion = currentVersion;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Public API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param fromVersion the version the migrator reads, it writes fromVersion + 1
+     */
+    public void register(int fromVersion, Migrator migrator) {
+        if (fromVersion < 0 || fromVersion >= currentVersion)
+            throw new IllegalArgumentException("Migrator from version " + fromVersion + " does not lead to the " +
+                    "current version " + currentVersion);
+        if (migrators.containsKey(fromVersion))
+            throw new IllegalArgumentException("Migrator from version " + fromVersion + " is already registered.");
+
+        migrators.put(fromVersion, migrator);
+    }
+
+    public int getCurrentVersion() {
+        return currentVersion;
+    }
+
+    /**
+     * Applies all migrators from the given version up to the current version. Versions without a registered
+     * migrator don't change the value.
+     *
+     * @return the migrated value or null if the key should be removed
+     */
+    public Serializable migrate(String key, Serializable value, int fromVersion) throws Exception {
+        for (int version = fromVersion; version < currentVersion && value != null; version++) {
+            Migrator migrator = migrators.get(version);
+            if (migrator != null)
+                value = migrator.migrate(key, value);
+        }
+        return value;
+    }
+}
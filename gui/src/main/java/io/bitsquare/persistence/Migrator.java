@@ -0,0 +1,33 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import java.io.Serializable;
+
+/**
+ * Upgrades a persisted value from one schema version to the next.
+ */
+public interface Migrator {
+    /**
+     * @param key   the key the value is stored with
+     * @param value the value in the format of the schema version the migrator is registered for
+     * @return the value in the format of the next schema version, or null if the key should be removed
+     * @throws Exception if the value cannot be migrated, only this key gets dropped then
+     */
+    Serializable migrate(String key, Serializable value) throws Exception;
+}
@@ -20,22 +20,18 @@ package io.bitsquare.persistence;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.utils.Threading;
 
+import com.google.common.collect.ImmutableMap;
+
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
-import javax.annotation.concurrent.GuardedBy;
-
 import javax.inject.Inject;
 import javax.inject.Named;
 
@@ -44,55 +40,128 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Simple storage solution for serialized data
+ * <p>
+ * The keys are routed by their namespace (the class name prefix of the key) to separate {@link Shard} files, e.g.
+ * the closed trades do not share a file with the preferences. Each shard has its own locks and flush schedule, so
+ * writing a small preference flag does not wait for or rewrite the large trade history. Keys without a namespace of
+ * their own are stored in the main shard, which uses the file names of the former single storage file. Keys found
+ * there which belong to another shard are moved at {@link #init()}.
  * TODO: Should be improved with a more robust solution or maybe a lightweight database.
- * TODO: Should run in a dedicated thread.
  */
 public class Persistence {
     private static final Logger log = LoggerFactory.getLogger(Persistence.class);
-    private static final ReentrantLock lock = Threading.lock("Storage");
 
     public static final String DIR_KEY = "persistence.dir";
     public static final String PREFIX_KEY = "persistence.prefix";
+    public static final String FLUSH_INTERVAL_KEY = "persistence.flushInterval";
+    public static final long DEFAULT_FLUSH_INTERVAL = 500;
+    public static final String BACKEND_KEY = "persistence.backend";
+    // Reads each value with its own file handle
+    public static final String FILE_BACKEND = "file";
+    // Maps the snapshot files into memory and serves the reads from the page cache
+    public static final String MAPPED_BACKEND = "mapped";
+    public static final String DEFAULT_BACKEND = FILE_BACKEND;
+
+    // Keys are built from the class name of their owner (see write(Object classInstance, ...)).
+    // The first matching prefix wins, so more specific prefixes come first.
+    private static final Map<String, String> SHARD_BY_KEY_PREFIX = ImmutableMap.<String, String>builder()
+            .put("io.bitsquare.trade.TradeManager.offers", "offers")
+            .put("io.bitsquare.offer.", "offers")
+            .put("io.bitsquare.trade.", "trades")
+            .put("io.bitsquare.btc.", "wallet")
+            .put("io.bitsquare.settings.", "settings")
+            .put("io.bitsquare.account.", "settings")
+            .put("io.bitsquare.gui.Navigation.", "settings")
+            .build();
+
+    private final Shard mainShard;
+    private final Map<String, Shard> shards = new HashMap<>();
+
+    private final ReentrantLock lock = Threading.lock("Storage");
+    private volatile boolean initialized;
 
-    @GuardedBy("lock")
-    private Map<String, Serializable> rootMap = new HashMap<>();
-
-    private final File dir;
-    private final String prefix;
-    private final File storageFile;
-    private int resetCounter = 0;
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
     ///////////////////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Creates a persistence which writes synchronously on the calling thread.
+     */
+    public Persistence(File dir, String prefix) {
+        this(dir, prefix, 0);
+    }
+
+    public Persistence(File dir, String prefix, long flushInterval) {
+        this(dir, prefix, flushInterval, DEFAULT_BACKEND, new DomainCodec(), new Migrations());
+    }
+
     @Inject
     public Persistence(
             @Named(DIR_KEY) File dir,
-            @Named(PREFIX_KEY) String prefix) {
-        this.dir = dir;
-        this.prefix = prefix;
-        this.storageFile = new File(dir, prefix + ".ser");
+            @Named(PREFIX_KEY) String prefix,
+            @Named(FLUSH_INTERVAL_KEY) long flushInterval,
+            @Named(BACKEND_KEY) String backend,
+            Codec codec,
+            Migrations migrations) {
+        boolean mapped = MAPPED_BACKEND.equals(backend);
+        if (mapped && Utils.isWindows()) {
+            // Windows does not allow to replace a file while it is mapped
+            log.warn("The " + MAPPED_BACKEND + " persistence backend is not supported on Windows, we use the " +
+                    FILE_BACKEND + " backend.");
+            mapped = false;
+        }
+        else if (!mapped && !FILE_BACKEND.equals(backend)) {
+            log.warn("Unknown persistence backend " + backend + ", we use the " + FILE_BACKEND + " backend.");
+        }
+
+        mainShard = new Shard(dir, prefix, flushInterval, mapped, codec, migrations);
+        for (String shardName : SHARD_BY_KEY_PREFIX.values()) {
+            if (!shards.containsKey(shardName))
+                shards.put(shardName,
+                        new Shard(dir, prefix + "_" + shardName, flushInterval, mapped, codec, migrations));
+        }
     }
 
+
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Public API
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     public void init() {
+        if (initialized)
+            return;
+
+        lock.lock();
         try {
-            lock.lock();
-            final Map<String, Serializable> map = readRootMap();
+            if (initialized)
+                return;
 
-            if (map == null)
-                saveObjectToFile((Serializable) rootMap);
-            else
-                rootMap = map;
+            mainShard.init();
+            shards.values().forEach(Shard::init);
+            moveKeysFromMainShard();
+            initialized = true;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Writes all pending changes to disk. Returns when they are durable, so it can be used as barrier.
+     */
+    public void flush() {
+        mainShard.flush();
+        shards.values().forEach(Shard::flush);
+    }
+
+    /**
+     * Flushes all pending changes and stops the background flushing. Writes after close are done synchronously.
+     */
+    public void close() {
+        mainShard.close();
+        shards.values().forEach(Shard::close);
+    }
+
     // Map
     public void write(String key, Map<String, ? extends Serializable> value) {
         write(key, (Serializable) value);
@@ -134,13 +203,9 @@ public class Persistence {
 
     public void write(String key, Serializable value) {
         // log.trace("Write object with key = " + key + " / value = " + value);
-        try {
-            lock.lock();
-            rootMap.put(key, value);
-            saveObjectToFile((Serializable) rootMap);
-        } finally {
-            lock.unlock();
-        }
+        // Objects might get written before the app calls init (e.g. from constructors of eager singletons)
+        init();
+        getShard(key).write(key, value);
     }
 
 
@@ -152,31 +217,34 @@ public class Persistence {
         return read(classInstance.getClass().getName() + "." + propertyKey);
     }
 
-    // read from local rootMap, just if not found read from disc
     public Serializable read(String key) {
-        try {
-            lock.lock();
-            if (rootMap.containsKey(key)) {
-                // log.trace("Read object with key = " + key + " / value = " + rootMap.get(key));
-                return rootMap.get(key);
-            }
-            else {
-                final Map<String, Serializable> map = readRootMap();
-                if (map != null) {
-                    rootMap = map;
-                }
-                if (rootMap.containsKey(key)) {
-                    // log.trace("Read object with key = " + key + " / value = " + rootMap.get(key));
-                    return rootMap.get(key);
-                }
-                else {
-                    log.info("Object with key = " + key + " not found.");
-                    return null;
-                }
-            }
-        } finally {
-            lock.unlock();
+        init();
+
+        Serializable value = getShard(key).read(key);
+        if (value == null) {
+            log.info("Object with key = " + key + " not found.");
+            return null;
         }
+        // log.trace("Read object with key = " + key + " / value = " + value);
+        return value;
+    }
+
+    public void remove(String key) {
+        init();
+        getShard(key).write(key, null);
+    }
+
+    /**
+     * @return all stored keys starting with the given prefix
+     */
+    public Set<String> getKeys(String keyPrefix) {
+        init();
+
+        final Set<String> keys = new HashSet<>();
+        mainShard.getKeys().stream().filter(key -> key.startsWith(keyPrefix)).forEach(keys::add);
+        for (Shard shard : shards.values())
+            shard.getKeys().stream().filter(key -> key.startsWith(keyPrefix)).forEach(keys::add);
+        return keys;
     }
 
 
@@ -184,118 +252,36 @@ public class Persistence {
     // Private methods
     ///////////////////////////////////////////////////////////////////////////////////////////
 
-
-    private Map<String, Serializable> readRootMap() {
-        try {
-            final Object object = readObjectFromFile(storageFile);
-            if (object == null) {
-                log.error("readRootMap returned null object.");
-                return null;
-            }
-            else {
-                if (object instanceof Map) {
-                    return (Map<String, Serializable>) object;
-                }
-                else {
-                    log.error("Object is not type of Map<String, Serializable>");
-                    return null;
-                }
-            }
-
-        } catch (FileNotFoundException e) {
-
-            log.trace("File not found is ok for the first execute.");
-            return null;
-        } catch (ClassNotFoundException | IOException e2) {
-            log.warn("Could not read rootMap. " + e2);
-
-            // If there are problems with incompatible versions, we reset the persisted data
-            // TODO We need a clean solution when we use another persistence solution
-            rootMap = new HashMap<>();
-            saveObjectToFile((Serializable) rootMap);
-            resetCounter++;
-
-            // We only try that once, if it fails repeatedly we 
-            if (resetCounter == 1) {
-                log.warn("We reset the persisted data and try again to read the root map.");
-                return readRootMap();
-            }
-            else {
-                e2.printStackTrace();
-                log.error("We tried already to reset the persisted data, but we get an error again, so we give up.");
-                return null;
-            }
+    private Shard getShard(String key) {
+        for (Map.Entry<String, String> entry : SHARD_BY_KEY_PREFIX.entrySet()) {
+            if (key.startsWith(entry.getKey()))
+                return shards.get(entry.getValue());
         }
+        return mainShard;
     }
 
-    private void saveObjectToFile(Serializable serializable) {
-        File tempFile = null;
-        FileOutputStream fileOutputStream = null;
-        ObjectOutputStream objectOutputStream = null;
-        try {
-            tempFile = File.createTempFile("temp_" + prefix, null, dir);
-
-            // Don't use auto closeable resources in try() as we would need too many try/catch clauses (for tempFile)
-            // and we need to close it
-            // manually before replacing file with temp file
-            fileOutputStream = new FileOutputStream(tempFile);
-            objectOutputStream = new ObjectOutputStream(fileOutputStream);
-
-            objectOutputStream.writeObject(serializable);
-
-            // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
-            // to not write through to physical media for at least a few seconds, but this is the best we can do.
-            fileOutputStream.flush();
-            fileOutputStream.getFD().sync();
-
-            // Close resources before replacing file with temp file because otherwise it causes problems on windows
-            // when rename temp file
-            fileOutputStream.close();
-            objectOutputStream.close();
-
-            writeTempFileToFile(tempFile, storageFile);
-        } catch (IOException e) {
-            e.printStackTrace();
-            log.error("save object to file failed." + e);
-        } finally {
-            if (tempFile != null && tempFile.exists()) {
-                log.warn("Temp file still exists after failed save.");
-                if (!tempFile.delete()) log.error("Cannot delete temp file.");
-            }
-
-            try {
-                if (objectOutputStream != null) objectOutputStream.close();
-                if (fileOutputStream != null) fileOutputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-                log.error("Cannot close resources.");
+    // Earlier versions stored all keys in one file, which is now the main shard
+    private void moveKeysFromMainShard() {
+        boolean moved = false;
+        for (String key : mainShard.getKeys()) {
+            Shard shard = getShard(key);
+            if (shard != mainShard) {
+                // A value in the target shard is newer than the one left in the main shard
+                if (!shard.contains(key)) {
+                    Serializable value = mainShard.read(key);
+                    if (value == null) {
+                        log.warn("Could not move object with key = " + key + ", it is not readable.");
+                        continue;
+                    }
+                    shard.write(key, value);
+                }
+                mainShard.write(key, null);
+                moved = true;
+                log.info("Moved object with key = " + key + " to its own shard.");
             }
         }
-    }
 
-    private Object readObjectFromFile(File file) throws IOException, ClassNotFoundException {
-        lock.lock();
-        try (final FileInputStream fileInputStream = new FileInputStream(file);
-             final ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream)) {
-            return objectInputStream.readObject();
-        } finally {
-            lock.unlock();
-        }
-    }
-
-    public void writeTempFileToFile(File tempFile, File file) throws IOException {
-        if (Utils.isWindows()) {
-            // Work around an issue on Windows whereby you can't rename over existing files.
-            final File canonical = file.getCanonicalFile();
-            if (canonical.exists() && !canonical.delete()) {
-                throw new IOException("Failed to delete canonical file for replacement with save");
-            }
-            if (!tempFile.renameTo(canonical)) {
-                throw new IOException("Failed to rename " + tempFile + " to " + canonical);
-            }
-        }
-        else if (!tempFile.renameTo(file)) {
-            throw new IOException("Failed to rename " + tempFile + " to " + file);
-        }
+        if (moved)
+            flush();
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import java.io.Serializable;
+
+import java.util.Map;
+import java.util.Set;
+
+import javafx.collections.MapChangeListener;
+import javafx.collections.ObservableMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps an {@link ObservableMap} in {@link Persistence} with one storage key per entry, so adding, replacing or
+ * removing an entry writes only that entry and not the whole map.
+ * <p>
+ * The entries are stored under the key of the map (built like in
+ * {@link Persistence#write(Object, String, Serializable)}) followed by "." and the key of the entry. A map stored
+ * as a whole by earlier versions under the key of the map is split into entries at {@link #load()}.
+ * <p>
+ * Changes inside of a value (e.g. the state of a trade) are not visible to the map, they have to be persisted with
+ * {@link #persist(String)}.
+ */
+public class PersistentMap<V extends Serializable> {
+    private static final Logger log = LoggerFactory.getLogger(PersistentMap.class);
+
+    private final Persistence persistence;
+    private final String mapKey;
+    private final ObservableMap<String, V> map;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public PersistentMap(Persistence persistence, Object classInstance, String propertyKey,
+                         ObservableMap<String, V> map) {
+        this.persistence = persistence;
+        this.mapKey = classInstance.getClass().getName() + "." + propertyKey;
+        this.map = map;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Public API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Fills the map with the stored entries and persists all following changes of the map.
+     */
+    @SuppressWarnings("unchecked")
+    public void load() {
+        final String entryKeyPrefix = mapKey + ".";
+        final Set<String> keys = persistence.getKeys(mapKey);
+        if (keys.remove(mapKey)) {
+            Serializable legacyMap = persistence.read(mapKey);
+            if (legacyMap instanceof Map) {
+                log.info("Splitting " + mapKey + " into its entries.");
+                ((Map<String, V>) legacyMap).forEach((key, value) -> {
+                    if (!keys.contains(getEntryKey(key))) {
+                        persistence.write(getEntryKey(key), value);
+                        keys.add(getEntryKey(key));
+                    }
+                });
+            }
+            persistence.remove(mapKey);
+        }
+
+        for (String entryKey : keys) {
+            if (!entryKey.startsWith(entryKeyPrefix))
+                continue;
+
+            Serializable value = persistence.read(entryKey);
+            if (value != null)
+                map.put(entryKey.substring(entryKeyPrefix.length()), (V) value);
+        }
+
+        map.addListener((MapChangeListener<String, V>) change -> {
+            if (change.wasAdded())
+                persistence.write(getEntryKey(change.getKey()), change.getValueAdded());
+            else if (change.wasRemoved())
+                persistence.remove(getEntryKey(change.getKey()));
+        });
+    }
+
+    /**
+     * Writes the entry again after its value got changed.
+     */
+    public void persist(String key) {
+        V value = map.get(key);
+        if (value != null)
+            persistence.write(getEntryKey(key), value);
+        else
+            log.warn("Cannot persist " + key + " as it is not contained in " + mapKey);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private String getEntryKey(String key) {
+        return mapKey + "." + key;
+    }
+}
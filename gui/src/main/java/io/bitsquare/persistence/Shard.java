@@ -0,0 +1,661 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One storage file of {@link Persistence} with its own locks and flush schedule.
+ * <p>
+ * The root map is kept as {@link Snapshot} in the storage file. Writes only append the changed key to a
+ * {@link Journal} which gets replayed on top of the snapshot at {@link #init()}. Once the journal grows larger than
+ * the snapshot we compact it by writing a new snapshot, so the write costs are proportional to the changed value and
+ * not to the whole store.
+ * <p>
+ * At {@link #init()} only the index of the snapshot is read. A value gets deserialized at the first {@link #read}
+ * of its key, so the startup costs do not grow with data which is not needed yet.
+ * <p>
+ * With a flush interval > 0 writes only update the root map and mark the key as dirty. A background thread flushes
+ * the dirty keys at the latest after the flush interval, so a burst of writes to the same key costs only one
+ * serialization and one sync to disk.
+ * <p>
+ * Reading an already deserialized value does not take any lock. Writes of the same key are serialized by a striped
+ * per-key lock, only the append to the journal itself is done under a common lock. So a slow write of a large value
+ * does neither block readers nor writers of other keys.
+ * <p>
+ * The snapshot carries the schema version of its data. If it is older than the current version, the registered
+ * {@link Migrations} upgrade all values in one pass at {@link #init()}. Values which cannot be read or migrated are
+ * dropped one by one instead of resetting the whole store.
+ */
+class Shard {
+    private static final Logger log = LoggerFactory.getLogger(Shard.class);
+
+    // We don't compact small journals even if the snapshot is smaller
+    private static final long MIN_COMPACTION_SIZE = 256 * 1024;
+    private static final int KEY_LOCK_STRIPES = 64;
+
+    // Marks a removed key in the root map, so it shadows an older value in the journal or snapshot.
+    // ConcurrentHashMap does not support null values, so a write of null is handled as remove as well.
+    private static final Serializable REMOVED = new Serializable() {
+    };
+
+    // Deserialized values
+    private final Map<String, Serializable> rootMap = new ConcurrentHashMap<>();
+    // Values replayed from the journal which have not been deserialized yet
+    private final Map<String, byte[]> journalValues = new ConcurrentHashMap<>();
+    // Values in the snapshot file which have not been deserialized yet. Never modified, only replaced together with
+    // the snapshot file under the write lock of snapshotLock.
+    private volatile Map<String, Snapshot.Location> snapshotIndex = new HashMap<>();
+
+    private final File dir;
+    private final String prefix;
+    private final File storageFile;
+    private final long flushInterval;
+    private final Codec codec;
+    private final Migrations migrations;
+    private final ScheduledExecutorService flushExecutor;
+
+    // Lock order: flushLock, key lock, journalLock, snapshotLock
+    private final ReentrantLock flushLock = Threading.lock("StorageFlush");
+    private final Striped<Lock> keyLocks = Striped.lock(KEY_LOCK_STRIPES);
+    private final ReentrantLock journalLock = Threading.lock("StorageJournal");
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    @GuardedBy("journalLock")
+    private final Journal journal;
+    private final Snapshot snapshot;
+
+    private final Set<String> dirtyKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    private volatile boolean initialized;
+    // Schema version of the data on disk, read at init
+    @GuardedBy("journalLock")
+    private int storedSchemaVersion;
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param mapped whether the snapshot gets read from a memory mapped file, see {@link MappedSnapshot}
+     */
+    Shard(File dir, String prefix, long flushInterval, boolean mapped, Codec codec, Migrations migrations) {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.flushInterval = flushInterval;
+        this.codec = codec;
+        this.migrations = migrations;
+        this.storageFile = new File(dir, prefix + ".ser");
+        this.journal = new Journal(new File(dir, prefix + ".journal"));
+        this.snapshot = mapped ? new MappedSnapshot(storageFile) : new Snapshot(storageFile);
+
+        if (flushInterval > 0)
+            flushExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("Persistence flusher " + prefix).setDaemon(true).build());
+        else
+            flushExecutor = null;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Package scope API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    void init() {
+        if (initialized)
+            return;
+
+        journalLock.lock();
+        try {
+            if (initialized)
+                return;
+
+            boolean snapshotRequired = !readSnapshot();
+            replayJournal();
+            // Readers must not see the data before it is migrated
+            if (storedSchemaVersion < migrations.getCurrentVersion())
+                snapshotRequired = !migrate();
+            else if (storedSchemaVersion > migrations.getCurrentVersion())
+                log.warn("Data has the schema version " + storedSchemaVersion + " which is newer than the " +
+                        "supported version " + migrations.getCurrentVersion() + ". Was it written by a newer version?");
+            initialized = true;
+
+            if (snapshotRequired || isCompactionRequired())
+                compact();
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Writes all pending changes to disk. Returns when they are durable, so it can be used as barrier.
+     */
+    void flush() {
+        flushLock.lock();
+        try {
+            flushScheduled.set(false);
+            for (String key : new ArrayList<>(dirtyKeys)) {
+                dirtyKeys.remove(key);
+                writeToJournal(key);
+            }
+
+            compactIfRequired();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Flushes all pending changes and stops the background flushing. Writes after close are done synchronously.
+     */
+    void close() {
+        closed = true;
+        if (flushExecutor != null)
+            flushExecutor.shutdown();
+
+        flush();
+
+        journalLock.lock();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Closing journal failed. " + e);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    void write(String key, Serializable value) {
+        // Objects might get written before the app calls init (e.g. from constructors of eager singletons)
+        init();
+
+        if (flushExecutor == null || closed) {
+            writeThrough(key, value);
+        }
+        else {
+            rootMap.put(key, value != null ? value : REMOVED);
+            journalValues.remove(key);
+            dirtyKeys.add(key);
+
+            // We don't postpone an already scheduled flush, so a change is on disk at the latest after the
+            // flush interval even if the key gets written continuously.
+            if (flushScheduled.compareAndSet(false, true))
+                flushExecutor.schedule(this::flush, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    // read from local rootMap, if the value was not accessed yet we deserialize it from the journal or snapshot
+    Serializable read(String key) {
+        init();
+
+        Serializable value = rootMap.get(key);
+        if (value == null && (journalValues.containsKey(key) || snapshotIndex.containsKey(key)))
+            value = load(key);
+
+        return value == REMOVED ? null : value;
+    }
+
+    boolean contains(String key) {
+        init();
+
+        Serializable value = rootMap.get(key);
+        if (value != null)
+            return value != REMOVED;
+        return journalValues.containsKey(key) || snapshotIndex.containsKey(key);
+    }
+
+    Set<String> getKeys() {
+        init();
+
+        final Set<String> keys = new HashSet<>(snapshotIndex.keySet());
+        keys.addAll(journalValues.keySet());
+        rootMap.forEach((key, value) -> {
+            if (value == REMOVED)
+                keys.remove(key);
+            else
+                keys.add(key);
+        });
+        return keys;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+
+    // Returns false if there is no usable snapshot in the new format
+    @GuardedBy("journalLock")
+    private boolean readSnapshot() {
+        // Nothing stored yet, or only journal records written by this version
+        storedSchemaVersion = migrations.getCurrentVersion();
+        if (!snapshot.exists()) {
+            log.trace("File not found is ok for the first execute.");
+            return false;
+        }
+
+        try {
+            if (snapshot.isLegacyFormat()) {
+                log.info("Snapshot is in legacy format, we read it completely and convert it.");
+                storedSchemaVersion = 0;
+                final Map<String, Serializable> map = readRootMap();
+                if (map != null)
+                    map.forEach((key, value) -> rootMap.put(key, value != null ? value : REMOVED));
+                else
+                    backupUnreadableSnapshot();
+                return false;
+            }
+
+            storedSchemaVersion = snapshot.readSchemaVersion();
+            snapshotIndex = snapshot.readIndex();
+            return true;
+        } catch (IOException e) {
+            log.error("Could not read snapshot. " + e);
+            // We start with the journal only, but keep the file for a manual recovery
+            backupUnreadableSnapshot();
+            storedSchemaVersion = migrations.getCurrentVersion();
+            return false;
+        }
+    }
+
+    @GuardedBy("journalLock")
+    private void backupUnreadableSnapshot() {
+        File backupFile = new File(dir, prefix + ".ser.backup");
+        try {
+            Files.copy(storageFile.toPath(), backupFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            log.warn("Unreadable snapshot got copied to " + backupFile);
+        } catch (IOException e) {
+            log.error("Could not copy unreadable snapshot to " + backupFile + ". " + e);
+        }
+    }
+
+    @GuardedBy("journalLock")
+    private void replayJournal() {
+        try {
+            journal.replay(new Journal.Listener() {
+                @Override
+                public void onPut(String key, byte[] value) {
+                    // The journal record is newer than a value we might have got from a legacy snapshot
+                    rootMap.remove(key);
+                    journalValues.put(key, value);
+                }
+
+                @Override
+                public void onRemove(String key) {
+                    rootMap.put(key, REMOVED);
+                    journalValues.remove(key);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Replay of journal failed. " + e);
+        }
+    }
+
+    // Upgrades all values to the current schema version in one pass and writes them as new snapshot. The values are
+    // streamed one by one into the snapshot, only values which cannot be read, migrated or encoded get dropped.
+    // Returns false if the new snapshot could not be written, the old data stays untouched then.
+    @GuardedBy("journalLock")
+    private boolean migrate() {
+        final int fromVersion = storedSchemaVersion;
+        final int toVersion = migrations.getCurrentVersion();
+        log.info("Migrating data from schema version " + fromVersion + " to " + toVersion);
+        final long startTime = System.currentTimeMillis();
+
+        final Set<String> keys = new HashSet<>(rootMap.keySet());
+        keys.addAll(journalValues.keySet());
+        keys.addAll(snapshotIndex.keySet());
+
+        int migrated = 0;
+        int removed = 0;
+        int unreadable = 0;
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile("temp_" + prefix, null, dir);
+            final Map<String, Snapshot.Location> newIndex;
+            try (Snapshot.Writer writer = Snapshot.newWriter(tempFile, toVersion)) {
+                for (String key : keys) {
+                    Serializable value = rootMap.get(key);
+                    if (value == REMOVED)
+                        continue;
+
+                    byte[] serialized;
+                    try {
+                        if (value == null) {
+                            byte[] bytes = journalValues.get(key);
+                            value = deserialize(bytes != null ? bytes : snapshot.read(snapshotIndex.get(key)));
+                        }
+                        value = migrations.migrate(key, value, fromVersion);
+                        serialized = value != null ? serialize(value) : null;
+                    } catch (Exception e) {
+                        // The old bytes belong to the old schema version, we cannot keep them in the new snapshot
+                        log.warn("Could not migrate object with key = " + key + ", we drop it. " + e);
+                        unreadable++;
+                        continue;
+                    }
+
+                    // Only a failing write of the snapshot itself aborts the migration
+                    if (serialized != null) {
+                        writer.put(key, serialized);
+                        migrated++;
+                    }
+                    else {
+                        removed++;
+                    }
+                }
+                newIndex = writer.finish();
+            }
+
+            snapshotLock.writeLock().lock();
+            try {
+                writeTempFileToFile(tempFile, storageFile);
+                snapshot.onReplaced();
+                snapshotIndex = newIndex;
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+
+            // Everything is in the new snapshot now, values get deserialized again at their first read
+            rootMap.clear();
+            journalValues.clear();
+            journal.reset();
+            storedSchemaVersion = toVersion;
+
+            log.info("Migration to schema version " + toVersion + " took " +
+                    (System.currentTimeMillis() - startTime) + " ms. " + migrated + " objects migrated, " +
+                    removed + " removed by migrators, " + unreadable + " unreadable objects dropped.");
+            return true;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            log.error("Migration to schema version " + toVersion + " failed. " + e);
+            return false;
+        } finally {
+            if (tempFile != null && tempFile.exists()) {
+                log.warn("Temp file still exists after failed migration.");
+                if (!tempFile.delete()) log.error("Cannot delete temp file.");
+            }
+        }
+    }
+
+    // Deserializes a value at its first access. Only readers of the same key stripe wait for each other.
+    private Serializable load(String key) {
+        final Lock keyLock = keyLocks.get(key);
+        keyLock.lock();
+        try {
+            Serializable value = rootMap.get(key);
+            if (value != null)
+                return value;
+
+            byte[] bytes = journalValues.get(key);
+            if (bytes == null) {
+                snapshotLock.readLock().lock();
+                try {
+                    Snapshot.Location location = snapshotIndex.get(key);
+                    if (location == null)
+                        return null;
+                    bytes = snapshot.read(location);
+                } finally {
+                    snapshotLock.readLock().unlock();
+                }
+            }
+
+            value = deserialize(bytes);
+            rootMap.put(key, value);
+            journalValues.remove(key);
+            return value;
+        } catch (ClassNotFoundException | IOException e) {
+            log.warn("Could not read object with key = " + key + ". " + e);
+            return null;
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    private void writeThrough(String key, Serializable value) {
+        final Lock keyLock = keyLocks.get(key);
+        keyLock.lock();
+        try {
+            rootMap.put(key, value != null ? value : REMOVED);
+            journalValues.remove(key);
+            writeToJournal(key);
+        } finally {
+            keyLock.unlock();
+        }
+
+        compactIfRequired();
+    }
+
+    // Serializes the current value of the key and appends it. The key lock keeps the records of a key in the same
+    // order as the writes, the expensive serialization is done before we acquire the journal lock.
+    private void writeToJournal(String key) {
+        final Lock keyLock = keyLocks.get(key);
+        keyLock.lock();
+        try {
+            Serializable value = rootMap.get(key);
+            // null if the tombstone got already dropped by a compaction
+            byte[] bytes = value == null || value == REMOVED ? null : serialize(value);
+
+            journalLock.lock();
+            try {
+                if (bytes == null)
+                    journal.appendRemove(key);
+                else
+                    journal.append(key, bytes);
+            } catch (IOException e) {
+                log.error("Append to journal failed, we write the whole root map instead. " + e);
+                compact();
+            } finally {
+                journalLock.unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            // The value might have been changed by another thread while we serialized it (e.g. a
+            // ConcurrentModificationException), we try again at the next flush.
+            log.warn("Serializing " + key + " failed, we retry at the next flush. " + e);
+            dirtyKeys.add(key);
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    private void compactIfRequired() {
+        journalLock.lock();
+        try {
+            if (isCompactionRequired())
+                compact();
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    @GuardedBy("journalLock")
+    private boolean isCompactionRequired() {
+        return journal.getSize() > Math.max(MIN_COMPACTION_SIZE, storageFile.length());
+    }
+
+    // Writes the root map as new snapshot. Only if that succeeded the journal is dropped, a crash in between just
+    // replays the same records again. Values written while we compact are appended to the journal after the reset.
+    @GuardedBy("journalLock")
+    private void compact() {
+        final Map<String, Serializable> values = new HashMap<>(rootMap);
+        final Map<String, byte[]> serializedValues = new HashMap<>(journalValues);
+        final Map<String, Snapshot.Location> locations = snapshotIndex;
+
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile("temp_" + prefix, null, dir);
+            final Map<String, Snapshot.Location> newIndex;
+            try (Snapshot.Writer writer = Snapshot.newWriter(tempFile, migrations.getCurrentVersion())) {
+                for (Map.Entry<String, Serializable> entry : values.entrySet()) {
+                    if (entry.getValue() == REMOVED)
+                        continue;
+
+                    byte[] serialized;
+                    try {
+                        serialized = serialize(entry.getValue());
+                    } catch (IOException | RuntimeException e) {
+                        // One value we cannot encode must not fail every compaction, we keep its stored bytes
+                        serialized = serializedValues.get(entry.getKey());
+                        if (serialized == null && locations.containsKey(entry.getKey()))
+                            serialized = snapshot.read(locations.get(entry.getKey()));
+
+                        log.warn("Could not serialize object with key = " + entry.getKey() + ", " +
+                                (serialized != null ? "we keep its stored bytes. " : "we drop it. ") + e);
+                        if (serialized == null)
+                            continue;
+                    }
+                    writer.put(entry.getKey(), serialized);
+                }
+
+                // Values not accessed so far are copied without deserializing them
+                for (Map.Entry<String, byte[]> entry : serializedValues.entrySet()) {
+                    if (!values.containsKey(entry.getKey()))
+                        writer.put(entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry<String, Snapshot.Location> entry : locations.entrySet()) {
+                    if (!values.containsKey(entry.getKey()) && !serializedValues.containsKey(entry.getKey()))
+                        writer.put(entry.getKey(), snapshot.read(entry.getValue()));
+                }
+                newIndex = writer.finish();
+            }
+
+            snapshotLock.writeLock().lock();
+            try {
+                // Readers use the locations of the current file, so we swap the file and the index together
+                writeTempFileToFile(tempFile, storageFile);
+                snapshot.onReplaced();
+                snapshotIndex = newIndex;
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+
+            // Only drop what we have written, a concurrent write might have replaced it in the meantime
+            serializedValues.forEach(journalValues::remove);
+            values.forEach((key, value) -> {
+                if (value == REMOVED)
+                    rootMap.remove(key, REMOVED);
+            });
+
+            journal.reset();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            log.error("Writing snapshot failed. " + e);
+        } finally {
+            if (tempFile != null && tempFile.exists()) {
+                log.warn("Temp file still exists after failed save.");
+                if (!tempFile.delete()) log.error("Cannot delete temp file.");
+            }
+        }
+    }
+
+    private byte[] serialize(Serializable serializable) throws IOException {
+        return codec.encode(serializable);
+    }
+
+    private Serializable deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        return codec.decode(bytes);
+    }
+
+    private Map<String, Serializable> readRootMap() {
+        try {
+            final Object object = readObjectFromFile(storageFile);
+            if (object == null) {
+                log.error("readRootMap returned null object.");
+                return null;
+            }
+            else {
+                if (object instanceof Map) {
+                    return (Map<String, Serializable>) object;
+                }
+                else {
+                    log.error("Object is not type of Map<String, Serializable>");
+                    return null;
+                }
+            }
+
+        } catch (FileNotFoundException e) {
+
+            log.trace("File not found is ok for the first execute.");
+            return null;
+        } catch (ClassNotFoundException | IOException e2) {
+            log.error("Could not read rootMap. " + e2);
+
+            // The legacy format is one Java serialization stream, so a single incompatible class makes the whole map
+            // unreadable. The caller keeps a backup of the file. Data in the new format is migrated per key.
+            return null;
+        }
+    }
+
+    private Object readObjectFromFile(File file) throws IOException, ClassNotFoundException {
+        try (final FileInputStream fileInputStream = new FileInputStream(file);
+             final ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream)) {
+            return objectInputStream.readObject();
+        }
+    }
+
+    private void writeTempFileToFile(File tempFile, File file) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            final File canonical = file.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete()) {
+                throw new IOException("Failed to delete canonical file for replacement with save");
+            }
+            if (!tempFile.renameTo(canonical)) {
+                throw new IOException("Failed to rename " + tempFile + " to " + canonical);
+            }
+        }
+        else if (!tempFile.renameTo(file)) {
+            throw new IOException("Failed to rename " + tempFile + " to " + file);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Snapshot file of the root map with an index of all keys, so the values can be read and deserialized one by one
+ * at their first access instead of all at startup.
+ * <p>
+ * Layout: magic, schema version, all records, index (count, then key, offset, length and checksum per record),
+ * offset of the index. Like in the {@link Journal} every record is framed by its length and CRC32 checksum and holds
+ * the key and the value. A damaged record only makes its own key unreadable, and a damaged index (e.g. a torn write)
+ * gets rebuilt by scanning the records instead of dropping the whole snapshot.
+ * <p>
+ * Older versions stored the whole root map with Java serialization, such files are reported as legacy format.
+ * <p>
+ * Values are read with a new file handle per read, see {@link MappedSnapshot} for reads from a memory mapped file.
+ */
+class Snapshot {
+    private static final Logger log = LoggerFactory.getLogger(Snapshot.class);
+
+    private static final int MAGIC = 0x42535352;
+    // magic (int) + schema version (int)
+    private static final int HEADER_SIZE = 8;
+    // payload length (int) + checksum (int)
+    private static final int RECORD_HEADER_SIZE = 8;
+    // Java serialization streams start with 0xACED
+    private static final short LEGACY_MAGIC = (short) 0xACED;
+
+    static class Location {
+        // Payload of the record (key and value)
+        final long offset;
+        final int length;
+        final int checksum;
+
+        Location(long offset, int length, int checksum) {
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+
+    protected final File file;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    Snapshot(File file) {
+        this.file = file;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Package scope API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    boolean exists() {
+        return file.exists() && file.length() > 0;
+    }
+
+    boolean isLegacyFormat() throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            return randomAccessFile.length() >= 2 && randomAccessFile.readShort() == LEGACY_MAGIC;
+        }
+    }
+
+    int readSchemaVersion() throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            readMagic(randomAccessFile);
+            return randomAccessFile.readInt();
+        }
+    }
+
+    /**
+     * Reads only the index, the values stay on disk. If the index is damaged, it gets rebuilt from the records up to
+     * the first damaged one.
+     */
+    Map<String, Location> readIndex() throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            readMagic(randomAccessFile);
+        }
+
+        try {
+            return readIndexEntries();
+        } catch (IOException e) {
+            log.warn("Index of snapshot " + file + " is damaged, we rebuild it from the records. " + e);
+            return scanRecords();
+        }
+    }
+
+    /**
+     * @throws IOException if the record is damaged
+     */
+    byte[] read(Location location) throws IOException {
+        byte[] payload = readBytes(location.offset, location.length);
+        if (checksum(payload) != location.checksum)
+            throw new IOException("Record at " + location.offset + " of snapshot " + file + " is damaged.");
+        DataInputStream payloadStream = new DataInputStream(new ByteArrayInputStream(payload));
+        payloadStream.readUTF();
+        return Arrays.copyOfRange(payload, payload.length - payloadStream.available(), payload.length);
+    }
+
+    /**
+     * Called under the write lock of the owner after the file got replaced by a new snapshot.
+     */
+    void onReplaced() {
+    }
+
+    /**
+     * Streams a new snapshot into the given file. The caller is responsible for replacing the snapshot file with it.
+     *
+     * @param schemaVersion version of the format of the values which get written
+     */
+    static Writer newWriter(File file, int schemaVersion) throws IOException {
+        return new Writer(file, schemaVersion);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Protected methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    protected byte[] readBytes(long offset, int length) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[length];
+            randomAccessFile.seek(offset);
+            randomAccessFile.readFully(bytes);
+            return bytes;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void readMagic(RandomAccessFile randomAccessFile) throws IOException {
+        int magic = randomAccessFile.length() < HEADER_SIZE ? 0 : randomAccessFile.readInt();
+        if (magic != MAGIC)
+            throw new IOException("Snapshot " + file + " has an unknown format.");
+    }
+
+    private Map<String, Location> readIndexEntries() throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            long length = randomAccessFile.length();
+            if (length < HEADER_SIZE + 8)
+                throw new IOException("Snapshot " + file + " is truncated.");
+
+            randomAccessFile.seek(length - 8);
+            long indexOffset = randomAccessFile.readLong();
+            if (indexOffset < HEADER_SIZE || indexOffset > length - 8)
+                throw new IOException("Snapshot " + file + " has an invalid index offset.");
+
+            byte[] index = new byte[(int) (length - 8 - indexOffset)];
+            randomAccessFile.seek(indexOffset);
+            randomAccessFile.readFully(index);
+
+            DataInputStream indexStream = new DataInputStream(new ByteArrayInputStream(index));
+            int count = indexStream.readInt();
+            Map<String, Location> locations = new HashMap<>(Math.max(16, Math.min(count, 1 << 20) * 2));
+            for (int i = 0; i < count; i++) {
+                String key = indexStream.readUTF();
+                long offset = indexStream.readLong();
+                int payloadLength = indexStream.readInt();
+                int checksum = indexStream.readInt();
+                if (offset < HEADER_SIZE || payloadLength < 0 || offset + payloadLength > indexOffset)
+                    throw new IOException("Snapshot " + file + " has an invalid index entry for key " + key);
+                locations.put(key, new Location(offset, payloadLength, checksum));
+            }
+            return locations;
+        }
+    }
+
+    // Rebuilds the index from all records in front of the first damaged one
+    private Map<String, Location> scanRecords() throws IOException {
+        final Map<String, Location> locations = new HashMap<>();
+        final long fileLength = file.length();
+        long position = HEADER_SIZE;
+        try (DataInputStream inputStream =
+                     new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            inputStream.readFully(new byte[HEADER_SIZE]);
+            while (position + RECORD_HEADER_SIZE <= fileLength) {
+                int length = inputStream.readInt();
+                int checksum = inputStream.readInt();
+                if (length < 0 || position + RECORD_HEADER_SIZE + length > fileLength)
+                    break;
+
+                byte[] payload = new byte[length];
+                inputStream.readFully(payload);
+                if (checksum(payload) != checksum)
+                    break;
+
+                String key = new DataInputStream(new ByteArrayInputStream(payload)).readUTF();
+                locations.put(key, new Location(position + RECORD_HEADER_SIZE, length, checksum));
+                position += RECORD_HEADER_SIZE + length;
+            }
+        } catch (EOFException e) {
+            log.debug("Scan of snapshot " + file + " reached a torn record.");
+        }
+        log.warn("Recovered " + locations.size() + " records of snapshot " + file + ", skipped " +
+                (fileLength - position) + " bytes.");
+        return locations;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Writer
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    static class Writer implements Closeable {
+        private final FileOutputStream fileOutputStream;
+        private final DataOutputStream outputStream;
+        private final Map<String, Location> index = new HashMap<>();
+        private long position;
+
+        private Writer(File file, int schemaVersion) throws IOException {
+            fileOutputStream = new FileOutputStream(file);
+            outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(schemaVersion);
+            position = HEADER_SIZE;
+        }
+
+        void put(String key, byte[] value) throws IOException {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(value.length + key.length() + 2);
+            DataOutputStream payloadStream = new DataOutputStream(byteArrayOutputStream);
+            payloadStream.writeUTF(key);
+            payloadStream.write(value);
+            byte[] payload = byteArrayOutputStream.toByteArray();
+            int checksum = checksum(payload);
+
+            outputStream.writeInt(payload.length);
+            outputStream.writeInt(checksum);
+            outputStream.write(payload);
+            index.put(key, new Location(position + RECORD_HEADER_SIZE, payload.length, checksum));
+            position += RECORD_HEADER_SIZE + payload.length;
+        }
+
+        /**
+         * Writes the index and forces the file to disk.
+         *
+         * @return the locations of the values in the written file
+         */
+        Map<String, Location> finish() throws IOException {
+            long indexOffset = position;
+            outputStream.writeInt(index.size());
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                outputStream.writeUTF(entry.getKey());
+                outputStream.writeLong(entry.getValue().offset);
+                outputStream.writeInt(entry.getValue().length);
+                outputStream.writeInt(entry.getValue().checksum);
+            }
+            outputStream.writeLong(indexOffset);
+
+            // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
+            // to not write through to physical media for at least a few seconds, but this is the best we can do.
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+            return index;
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputStream.close();
+        }
+    }
+}
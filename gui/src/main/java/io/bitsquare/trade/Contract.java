@@ -63,6 +63,27 @@ public class Contract implements Serializable {
         this.takerMessagePublicKeyAsString = DSAKeyUtil.getHexStringFromPublicKey(takerMessagePublicKey);
     }
 
+    // Used when restoring a persisted contract
+    public Contract(Offer offer,
+                    Coin tradeAmount,
+                    String takeOfferFeeTxID,
+                    String offererAccountID,
+                    String takerAccountID,
+                    BankAccount offererBankAccount,
+                    BankAccount takerBankAccount,
+                    String offererMessagePublicKeyAsString,
+                    String takerMessagePublicKeyAsString) {
+        this.offer = offer;
+        this.tradeAmount = tradeAmount;
+        this.takeOfferFeeTxID = takeOfferFeeTxID;
+        this.offererAccountID = offererAccountID;
+        this.takerAccountID = takerAccountID;
+        this.offererBankAccount = offererBankAccount;
+        this.takerBankAccount = takerBankAccount;
+        this.offererMessagePublicKeyAsString = offererMessagePublicKeyAsString;
+        this.takerMessagePublicKeyAsString = takerMessagePublicKeyAsString;
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Getters
@@ -26,6 +26,7 @@ import org.bitcoinj.utils.Fiat;
 import java.io.Serializable;
 
 import java.util.Date;
+import java.util.concurrent.Executor;
 
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
@@ -57,9 +58,10 @@ public class Trade implements Serializable {
     private Transaction depositTx;
     private Transaction payoutTx;
 
-    private Coin tradeAmount;
-    private State state;
-    private Throwable fault;
+    // Changed by the trade protocol on the executor of the trade and read by the UI
+    private volatile Coin tradeAmount;
+    private volatile State state;
+    private volatile Throwable fault;
 
     // For changing values we use properties to get binding support in the UI (table)
     // When serialized those transient properties are not instantiated, so we instantiate them in the getters at first
@@ -68,6 +70,9 @@ public class Trade implements Serializable {
     transient private ObjectProperty<Fiat> _tradeVolume;
     transient private ObjectProperty<State> _state;
     transient private ObjectProperty<Throwable> _fault;
+    // The properties are bound to the UI, so they are updated on the UI thread. Without executor they are updated
+    // immediately.
+    transient private Executor propertyExecutor;
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -75,8 +80,13 @@ public class Trade implements Serializable {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     public Trade(Offer offer) {
+        this(offer, new Date());
+    }
+
+    // Used when restoring a persisted trade
+    public Trade(Offer offer, Date date) {
         this.offer = offer;
-        date = new Date();
+        this.date = date;
 
         state = State.OPEN;
     }
@@ -100,8 +110,10 @@ public class Trade implements Serializable {
 
     public void setTradeAmount(Coin tradeAmount) {
         this.tradeAmount = tradeAmount;
-        tradeAmountProperty().set(tradeAmount);
-        tradeVolumeProperty().set(getTradeVolume());
+        updateProperties(() -> {
+            tradeAmountProperty().set(this.tradeAmount);
+            tradeVolumeProperty().set(getTradeVolume());
+        });
     }
 
     public Contract getContract() {
@@ -124,14 +136,19 @@ public class Trade implements Serializable {
         this.payoutTx = tx;
     }
 
+    // The properties get the latest value, so they end up consistent with the fields if changes overlap
     public void setState(State state) {
         this.state = state;
-        stateProperty().set(state);
+        updateProperties(() -> stateProperty().set(this.state));
     }
 
     public void setFault(Throwable fault) {
         this.fault = fault;
-        faultProperty().set(fault);
+        updateProperties(() -> faultProperty().set(this.fault));
+    }
+
+    public void setPropertyExecutor(Executor propertyExecutor) {
+        this.propertyExecutor = propertyExecutor;
     }
 
 
@@ -214,4 +231,16 @@ public class Trade implements Serializable {
             _fault = new SimpleObjectProperty<>(fault);
         return _fault;
     }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void updateProperties(Runnable update) {
+        if (propertyExecutor != null)
+            propertyExecutor.execute(update);
+        else
+            update.run();
+    }
 }
@@ -0,0 +1,382 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.trade;
+
+import io.bitsquare.persistence.Codec;
+import io.bitsquare.persistence.Persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+
+import org.jetbrains.annotations.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only archive of closed trades. The trades are kept compressed on disk and only a small index (trade id,
+ * date and file position) is held in memory, so the heap and the startup costs stay flat with a growing trade
+ * history. The trades are read in pages, newest first.
+ * <p>
+ * Every record is framed by its length and a CRC32 checksum like the records of the persistence journal, an
+ * incomplete record at the tail (e.g. the app got killed while appending) is cut off at startup.
+ */
+public class TradeArchive {
+    private static final Logger log = LoggerFactory.getLogger(TradeArchive.class);
+
+    // payload length (int) + checksum (int)
+    private static final int HEADER_SIZE = 8;
+
+    private static class Entry {
+        final String tradeId;
+        final long date;
+        // Position of the payload
+        final long offset;
+        final int length;
+        final int checksum;
+
+        Entry(String tradeId, long date, long offset, int length, int checksum) {
+            this.tradeId = tradeId;
+            this.date = date;
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+
+    private static final Comparator<Entry> BY_DATE = (o1, o2) -> Long.compare(o1.date, o2.date);
+
+    private final File file;
+    private final Codec codec;
+
+    // Sorted by date, oldest first
+    @GuardedBy("this")
+    private final List<Entry> entries = new ArrayList<>();
+    @GuardedBy("this")
+    private final Map<String, Entry> entriesByTradeId = new HashMap<>();
+    @GuardedBy("this")
+    private RandomAccessFile randomAccessFile;
+    private final ReadOnlyIntegerWrapper size = new ReadOnlyIntegerWrapper();
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Inject
+    public TradeArchive(@Named(Persistence.DIR_KEY) File dir, @Named(Persistence.PREFIX_KEY) String prefix,
+                        Codec codec) {
+        this.file = new File(dir, prefix + "_closedTrades.archive");
+        this.codec = codec;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Public API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Appends the trade and forces it to disk. A trade which is already archived is not added again.
+     *
+     * @return true if the trade is archived, the caller must keep its copy of the trade otherwise
+     */
+    public synchronized boolean add(Trade trade) {
+        if (!tryOpen())
+            return false;
+        if (entriesByTradeId.containsKey(trade.getId())) {
+            log.warn("Trade " + trade.getId() + " is already archived.");
+            return true;
+        }
+
+        long offset = -1;
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            DataOutputStream payloadStream = new DataOutputStream(byteArrayOutputStream);
+            payloadStream.writeUTF(trade.getId());
+            payloadStream.writeLong(trade.getDate().getTime());
+            payloadStream.write(compress(codec.encode(trade)));
+            byte[] payload = byteArrayOutputStream.toByteArray();
+
+            ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+            record.putInt(payload.length);
+            record.putInt(checksum(payload));
+            record.put(payload);
+
+            offset = randomAccessFile.length();
+            randomAccessFile.seek(offset);
+            randomAccessFile.write(record.array());
+            randomAccessFile.getFD().sync();
+
+            addEntry(new Entry(trade.getId(), trade.getDate().getTime(), offset + HEADER_SIZE, payload.length,
+                    checksum(payload)));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Archiving trade " + trade.getId() + " failed. " + e);
+            // Later records must not be appended behind a partly written one
+            if (offset >= 0) {
+                try {
+                    randomAccessFile.setLength(offset);
+                } catch (IOException e2) {
+                    log.error("Truncating trade archive " + file + " failed, we reopen it. " + e2);
+                    close();
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param fromIndex index of the first trade, the newest trade has the index 0
+     * @param count     max. number of trades to read
+     * @return the trades, newest first. Trades which cannot be read are skipped.
+     */
+    public synchronized List<Trade> getTrades(int fromIndex, int count) {
+        if (!tryOpen())
+            return new ArrayList<>();
+        final List<Trade> trades = new ArrayList<>(Math.max(0, Math.min(count, entries.size() - fromIndex)));
+        for (int i = entries.size() - 1 - fromIndex; i >= 0 && trades.size() < count; i--) {
+            Trade trade = read(entries.get(i));
+            if (trade != null)
+                trades.add(trade);
+        }
+        return trades;
+    }
+
+    /**
+     * @return the trades closed within the given period (start inclusive, end exclusive), newest first
+     */
+    public synchronized List<Trade> getTrades(Date from, Date to) {
+        if (!tryOpen())
+            return new ArrayList<>();
+        int index = Collections.binarySearch(entries, new Entry(null, to.getTime(), 0, 0, 0), BY_DATE);
+        // The first entry at or after toDate
+        index = index < 0 ? -index - 1 : firstIndexOfDate(index);
+
+        final List<Trade> trades = new ArrayList<>();
+        for (int i = index - 1; i >= 0 && entries.get(i).date >= from.getTime(); i--) {
+            Trade trade = read(entries.get(i));
+            if (trade != null)
+                trades.add(trade);
+        }
+        return trades;
+    }
+
+    @Nullable
+    public synchronized Trade getTrade(String tradeId) {
+        if (!tryOpen())
+            return null;
+        Entry entry = entriesByTradeId.get(tradeId);
+        return entry != null ? read(entry) : null;
+    }
+
+    public synchronized boolean contains(String tradeId) {
+        tryOpen();
+        return entriesByTradeId.containsKey(tradeId);
+    }
+
+    /**
+     * Number of archived trades. Only changed by {@link #add(Trade)}, so listeners are called on its thread.
+     */
+    public synchronized ReadOnlyIntegerProperty sizeProperty() {
+        tryOpen();
+        return size.getReadOnlyProperty();
+    }
+
+    public synchronized int size() {
+        tryOpen();
+        return entries.size();
+    }
+
+    public synchronized void close() {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                log.error("Closing trade archive failed. " + e);
+            }
+            randomAccessFile = null;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private methods
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // A failed open is tried again at the next access
+    @GuardedBy("this")
+    private boolean tryOpen() {
+        try {
+            open();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Opening trade archive " + file + " failed. " + e);
+            return false;
+        }
+    }
+
+    // Builds the index from the record headers, the compressed trades are skipped. The archive is only open if the
+    // whole index got read.
+    @GuardedBy("this")
+    private void open() throws IOException {
+        if (randomAccessFile != null)
+            return;
+
+        entries.clear();
+        entriesByTradeId.clear();
+        RandomAccessFile archiveFile = new RandomAccessFile(file, "rw");
+        try {
+            final long fileLength = archiveFile.length();
+            long position = 0;
+            while (position + HEADER_SIZE <= fileLength) {
+                archiveFile.seek(position);
+                int length = archiveFile.readInt();
+                int checksum = archiveFile.readInt();
+                if (length < 0 || position + HEADER_SIZE + length > fileLength)
+                    break;
+
+                String tradeId = archiveFile.readUTF();
+                long date = archiveFile.readLong();
+                entries.add(new Entry(tradeId, date, position + HEADER_SIZE, length, checksum));
+                position += HEADER_SIZE + length;
+            }
+
+            if (position < fileLength) {
+                log.warn("Trade archive " + file + " has an incomplete tail of " + (fileLength - position) +
+                        " bytes. We truncate it.");
+                archiveFile.setLength(position);
+            }
+        } catch (IOException e) {
+            entries.clear();
+            archiveFile.close();
+            throw e;
+        }
+
+        // Trades are usually archived in the order of their dates, but not necessarily
+        Collections.sort(entries, BY_DATE);
+        entries.forEach(entry -> entriesByTradeId.put(entry.tradeId, entry));
+        size.set(entries.size());
+        randomAccessFile = archiveFile;
+    }
+
+    @GuardedBy("this")
+    private void addEntry(Entry entry) {
+        int index = Collections.binarySearch(entries, entry, BY_DATE);
+        entries.add(index < 0 ? -index - 1 : index + 1, entry);
+        entriesByTradeId.put(entry.tradeId, entry);
+        size.set(entries.size());
+    }
+
+    @GuardedBy("this")
+    private int firstIndexOfDate(int index) {
+        while (index > 0 && entries.get(index - 1).date == entries.get(index).date)
+            index--;
+        return index;
+    }
+
+    @GuardedBy("this")
+    @Nullable
+    private Trade read(Entry entry) {
+        try {
+            byte[] payload = new byte[entry.length];
+            randomAccessFile.seek(entry.offset);
+            randomAccessFile.readFully(payload);
+            if (checksum(payload) != entry.checksum)
+                throw new IOException("Checksum mismatch");
+
+            DataInputStream payloadStream = new DataInputStream(new ByteArrayInputStream(payload));
+            payloadStream.readUTF();
+            payloadStream.readLong();
+            byte[] compressed = new byte[payloadStream.available()];
+            payloadStream.readFully(compressed);
+
+            return (Trade) codec.decode(decompress(compressed));
+        } catch (IOException | ClassNotFoundException | DataFormatException | ClassCastException e) {
+            log.warn("Could not read archived trade " + entry.tradeId + ". " + e);
+            return null;
+        }
+    }
+
+    private static byte[] compress(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished())
+                outputStream.write(buffer, 0, deflater.deflate(buffer));
+            return outputStream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] bytes) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length * 3);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("Compressed data is incomplete.");
+                outputStream.write(buffer, 0, length);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+}
@@ -23,6 +23,8 @@ import io.bitsquare.btc.BlockChainService;
 import io.bitsquare.btc.WalletService;
 import io.bitsquare.crypto.SignatureService;
 import io.bitsquare.msg.Message;
+import io.bitsquare.msg.MessageDispatcher;
+import io.bitsquare.msg.MessagePriority;
 import io.bitsquare.msg.MessageService;
 import io.bitsquare.msg.listeners.OutgoingMessageListener;
 import io.bitsquare.network.Peer;
@@ -30,6 +32,7 @@ import io.bitsquare.offer.Direction;
 import io.bitsquare.offer.Offer;
 import io.bitsquare.offer.RemoteOfferBook;
 import io.bitsquare.persistence.Persistence;
+import io.bitsquare.persistence.PersistentMap;
 import io.bitsquare.trade.handlers.TransactionResultHandler;
 import io.bitsquare.trade.protocol.placeoffer.PlaceOfferProtocol;
 import io.bitsquare.trade.protocol.trade.TradeMessage;
@@ -56,11 +59,13 @@ import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.utils.Fiat;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
+import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
@@ -73,6 +78,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * The domain for the trading
+ * <p>
+ * The trade protocols run on the executor of their trade (see {@link MessageDispatcher}), which gets the incoming
+ * messages of the trade as well. The offers, the pending trades and the trade properties are bound to the UI, so
+ * they are only changed on the UI thread.
  * TODO: Too messy, need to be improved a lot....
  */
 public class TradeManager {
@@ -80,20 +89,22 @@ public class TradeManager {
 
     private final User user;
     private final AccountSettings accountSettings;
-    private final Persistence persistence;
     private final MessageService messageService;
     private final BlockChainService blockChainService;
     private final WalletService walletService;
     private final SignatureService signatureService;
     private final RemoteOfferBook remoteOfferBook;
+    private final MessageDispatcher messageDispatcher;
 
     //TODO store TakerAsSellerProtocol in trade
-    private final Map<String, SellerTakesOfferProtocol> takerAsSellerProtocolMap = new HashMap<>();
-    private final Map<String, BuyerAcceptsOfferProtocol> offererAsBuyerProtocolMap = new HashMap<>();
+    private final Map<String, SellerTakesOfferProtocol> takerAsSellerProtocolMap = new ConcurrentHashMap<>();
+    private final Map<String, BuyerAcceptsOfferProtocol> offererAsBuyerProtocolMap = new ConcurrentHashMap<>();
 
     private final ObservableMap<String, Offer> offers = FXCollections.observableHashMap();
     private final ObservableMap<String, Trade> pendingTrades = FXCollections.observableHashMap();
-    private final ObservableMap<String, Trade> closedTrades = FXCollections.observableHashMap();
+    private final TradeArchive tradeArchive;
+    // Offers are only changed by adding or removing entries, pending trades change in place
+    private final PersistentMap<Trade> pendingTradesPersistence;
 
     // the latest pending trade
     private Trade currentPendingTrade;
@@ -108,29 +119,32 @@ public class TradeManager {
     public TradeManager(User user, AccountSettings accountSettings, Persistence persistence,
                         MessageService messageService, BlockChainService blockChainService,
                         WalletService walletService, SignatureService signatureService,
-                        RemoteOfferBook remoteOfferBook) {
+                        RemoteOfferBook remoteOfferBook, TradeArchive tradeArchive,
+                        MessageDispatcher messageDispatcher) {
         this.user = user;
         this.accountSettings = accountSettings;
-        this.persistence = persistence;
         this.messageService = messageService;
         this.blockChainService = blockChainService;
         this.walletService = walletService;
         this.signatureService = signatureService;
         this.remoteOfferBook = remoteOfferBook;
-
-        Object offersObject = persistence.read(this, "offers");
-        if (offersObject instanceof Map) {
-            offers.putAll((Map<String, Offer>) offersObject);
-        }
-
-        Object pendingTradesObject = persistence.read(this, "pendingTrades");
-        if (pendingTradesObject instanceof Map) {
-            pendingTrades.putAll((Map<String, Trade>) pendingTradesObject);
-        }
-
-        Object closedTradesObject = persistence.read(this, "closedTrades");
-        if (closedTradesObject instanceof Map) {
-            closedTrades.putAll((Map<String, Trade>) closedTradesObject);
+        this.tradeArchive = tradeArchive;
+        this.messageDispatcher = messageDispatcher;
+
+        new PersistentMap<>(persistence, this, "offers", offers).load();
+        pendingTradesPersistence = new PersistentMap<>(persistence, this, "pendingTrades", pendingTrades);
+        pendingTradesPersistence.load();
+        pendingTrades.values().forEach(trade -> trade.setPropertyExecutor(TradeManager::runInUserThread));
+
+        // Earlier versions kept the closed trades in memory
+        ObservableMap<String, Trade> closedTrades = FXCollections.observableHashMap();
+        new PersistentMap<>(persistence, this, "closedTrades", closedTrades).load();
+        if (!closedTrades.isEmpty()) {
+            log.info("Moving " + closedTrades.size() + " closed trades to the trade archive.");
+            // Only archived trades are removed, the others are moved again at the next start
+            new ArrayList<>(closedTrades.values()).stream()
+                    .filter(tradeArchive::add)
+                    .forEach(trade -> closedTrades.remove(trade.getId()));
         }
 
         messageService.addIncomingMessageListener(this::onIncomingTradeMessage);
@@ -190,7 +204,6 @@ public class TradeManager {
 
     private void saveOffer(Offer offer) {
         offers.put(offer.getId(), offer);
-        persistOffers();
     }
 
     public void requestRemoveOffer(Offer offer, ResultHandler resultHandler, FaultHandler faultHandler) {
@@ -199,8 +212,6 @@ public class TradeManager {
         else
             log.error("offers does not contain the offer with the ID " + offer.getId());
 
-        persistOffers();
-
         remoteOfferBook.removeOffer(offer, resultHandler, faultHandler);
     }
 
@@ -214,21 +225,26 @@ public class TradeManager {
             log.error("trades contains already an trade with the ID " + offer.getId());
 
         Trade trade = new Trade(offer);
+        trade.setPropertyExecutor(TradeManager::runInUserThread);
         pendingTrades.put(offer.getId(), trade);
-        persistPendingTrades();
 
         return trade;
     }
 
-    public void closeTrade(Trade trade) {
+    /**
+     * @return false if the trade could not be archived, it stays in the pending trades then
+     */
+    public boolean closeTrade(Trade trade) {
         if (!pendingTrades.containsKey(trade.getId()))
             log.error("trades does not contain the trade with the ID " + trade.getId());
 
+        // If we get interrupted in between, the trade is rather stored twice than lost
+        if (!tradeArchive.add(trade)) {
+            log.error("Trade " + trade.getId() + " could not be archived, we keep it in the pending trades.");
+            return false;
+        }
         pendingTrades.remove(trade.getId());
-        persistPendingTrades();
-
-        closedTrades.put(trade.getId(), trade);
-        persistClosedTrades();
+        return true;
     }
 
 
@@ -255,17 +271,17 @@ public class TradeManager {
                         @Override
                         public void onOfferAccepted(Offer offer) {
                             trade.setState(Trade.State.OFFERER_ACCEPTED);
-                            persistPendingTrades();
-                            requestRemoveOffer(offer,
+                            persistPendingTrade(trade.getId());
+                            runInUserThread(() -> requestRemoveOffer(offer,
                                     () -> log.debug("remove was successful"),
-                                    (message, throwable) -> log.error(message));
+                                    (message, throwable) -> log.error(message)));
                         }
 
                         @Override
                         public void onDepositTxPublished(Transaction depositTx) {
                             trade.setDepositTx(depositTx);
                             trade.setState(Trade.State.DEPOSIT_PUBLISHED);
-                            persistPendingTrades();
+                            persistPendingTrade(trade.getId());
                             log.trace("trading onDepositTxPublishedMessage " + depositTx.getHashAsString());
                         }
 
@@ -273,7 +289,7 @@ public class TradeManager {
                         public void onDepositTxConfirmedInBlockchain() {
                             log.trace("trading onDepositTxConfirmedInBlockchain");
                             trade.setState(Trade.State.DEPOSIT_CONFIRMED);
-                            persistPendingTrades();
+                            persistPendingTrade(trade.getId());
                         }
 
                         @Override
@@ -291,7 +307,7 @@ public class TradeManager {
                             log.error("Error while executing trade process at state: " + state + " / " + throwable);
                             trade.setFault(throwable);
                             trade.setState(Trade.State.FAILED);
-                            persistPendingTrades();
+                            persistPendingTrade(trade.getId());
                         }
 
                         // probably not needed
@@ -305,7 +321,8 @@ public class TradeManager {
                         public void onWaitingForUserInteraction(BuyerAcceptsOfferProtocol.State state) {
                             log.debug("Waiting for UI activity at state " + state);
                         }
-                    });
+                    },
+                    messageDispatcher.getExecutor(trade.getId()));
 
             if (!offererAsBuyerProtocolMap.containsKey(trade.getId())) {
                 offererAsBuyerProtocolMap.put(trade.getId(), buyerAcceptsOfferProtocol);
@@ -316,7 +333,7 @@ public class TradeManager {
                 log.trace("offererAsBuyerProtocol not stored as offer is already pending.");
             }
 
-            buyerAcceptsOfferProtocol.start();
+            messageDispatcher.execute(trade.getId(), buyerAcceptsOfferProtocol::start);
         }
         else {
             log.warn("Incoming offer take request does not match with any saved offer. We ignore that request.");
@@ -332,26 +349,26 @@ public class TradeManager {
             @Override
             public void onTakeOfferRequestAccepted(Trade trade) {
                 trade.setState(Trade.State.OFFERER_ACCEPTED);
-                persistPendingTrades();
+                persistPendingTrade(trade.getId());
             }
 
             @Override
             public void onTakeOfferRequestRejected(Trade trade) {
                 trade.setState(Trade.State.OFFERER_REJECTED);
-                persistPendingTrades();
+                persistPendingTrade(trade.getId());
             }
 
             @Override
             public void onDepositTxPublished(Transaction depositTx) {
                 trade.setDepositTx(depositTx);
                 trade.setState(Trade.State.DEPOSIT_PUBLISHED);
-                persistPendingTrades();
+                persistPendingTrade(trade.getId());
             }
 
             @Override
             public void onBankTransferInited(String tradeId) {
                 trade.setState(Trade.State.PAYMENT_STARTED);
-                persistPendingTrades();
+                persistPendingTrade(trade.getId());
             }
 
             @Override
@@ -377,9 +394,9 @@ public class TradeManager {
 
         SellerTakesOfferProtocol sellerTakesOfferProtocol = new SellerTakesOfferProtocol(
                 trade, listener, messageService, walletService, blockChainService, signatureService,
-                user);
+                user, messageDispatcher.getExecutor(trade.getId()));
         takerAsSellerProtocolMap.put(trade.getId(), sellerTakesOfferProtocol);
-        sellerTakesOfferProtocol.start();
+        messageDispatcher.execute(trade.getId(), sellerTakesOfferProtocol::start);
 
         return trade;
     }
@@ -388,10 +405,11 @@ public class TradeManager {
     // If the user has shut down the app we lose the offererAsBuyerProtocolMap
     // Also we don't support yet offline messaging (mail box)
     public void fiatPaymentStarted(String tradeId) {
-        if (offererAsBuyerProtocolMap.get(tradeId) != null) {
-            offererAsBuyerProtocolMap.get(tradeId).onUIEventBankTransferInited();
+        BuyerAcceptsOfferProtocol buyerAcceptsOfferProtocol = offererAsBuyerProtocolMap.get(tradeId);
+        if (buyerAcceptsOfferProtocol != null) {
+            messageDispatcher.execute(tradeId, buyerAcceptsOfferProtocol::onUIEventBankTransferInited);
             pendingTrades.get(tradeId).setState(Trade.State.PAYMENT_STARTED);
-            persistPendingTrades();
+            persistPendingTrade(tradeId);
         }
         else {
             featureNotImplementedWarning.set("Sorry, you cannot continue. You have restarted the application in the " +
@@ -401,17 +419,18 @@ public class TradeManager {
     }
 
     public void fiatPaymentReceived(String tradeId) {
-        takerAsSellerProtocolMap.get(tradeId).onUIEventFiatReceived();
+        messageDispatcher.execute(tradeId, takerAsSellerProtocolMap.get(tradeId)::onUIEventFiatReceived);
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Process incoming tradeMessages
     ///////////////////////////////////////////////////////////////////////////////////////////
 
-    // Routes the incoming messages to the responsible protocol
+    // Routes the incoming messages to the responsible protocol. Called on the executor of the trade.
     private void onIncomingTradeMessage(Message message, Peer sender) {
+        // Other messages (e.g. offer book changes) are handled by their own listeners
         if (!(message instanceof TradeMessage))
-            throw new IllegalArgumentException("message must be of type TradeMessage");
+            return;
         TradeMessage tradeMessage = (TradeMessage) message;
 
         log.trace("onIncomingTradeMessage instance " + tradeMessage.getClass().getSimpleName());
@@ -422,23 +441,11 @@ public class TradeManager {
             if (tradeMessage instanceof RequestIsOfferAvailableMessage) {
                 // TODO Does not fit in any of the 2 protocols, but should not be here as well...
                 // Lets keep it until we refactor the trade process
-                boolean isOfferOpen = getTrade(tradeId) == null;
-                RespondToIsOfferAvailableMessage replyMessage =
-                        new RespondToIsOfferAvailableMessage(tradeId, isOfferOpen);
-                messageService.sendMessage(sender, replyMessage, new OutgoingMessageListener() {
-                    @Override
-                    public void onResult() {
-                        log.trace("RespondToTakeOfferRequestMessage successfully arrived at peer");
-                    }
-
-                    @Override
-                    public void onFailed() {
-                        log.error("AcceptTakeOfferRequestMessage  did not arrive at peer");
-                    }
-                });
+                runInUserThread(() -> respondToIsOfferAvailable(tradeId, sender));
             }
             else if (tradeMessage instanceof RequestTakeOfferMessage) {
-                createOffererAsBuyerProtocol(tradeId, sender);
+                // Creates the trade, the protocol gets started on the executor of the trade
+                runInUserThread(() -> createOffererAsBuyerProtocol(tradeId, sender));
             }
             else if (tradeMessage instanceof RespondToTakeOfferRequestMessage) {
                 takerAsSellerProtocolMap.get(tradeId).onRespondToTakeOfferRequestMessage(
@@ -457,7 +464,7 @@ public class TradeManager {
                         (RequestOffererPublishDepositTxMessage) tradeMessage);
             }
             else if (tradeMessage instanceof DepositTxPublishedMessage) {
-                persistPendingTrades();
+                persistPendingTrade(tradeId);
                 takerAsSellerProtocolMap.get(tradeId).onDepositTxPublishedMessage((DepositTxPublishedMessage)
                         tradeMessage);
             }
@@ -512,8 +519,8 @@ public class TradeManager {
         return pendingTrades;
     }
 
-    public ObservableMap<String, Trade> getClosedTrades() {
-        return closedTrades;
+    public TradeArchive getTradeArchive() {
+        return tradeArchive;
     }
 
     public Trade getCurrentPendingTrade() {
@@ -532,16 +539,32 @@ public class TradeManager {
     // Private
     ///////////////////////////////////////////////////////////////////////////////////////////
 
-    private void persistOffers() {
-        persistence.write(this, "offers", (Map<String, Offer>) new HashMap<>(offers));
+    private void respondToIsOfferAvailable(String tradeId, Peer sender) {
+        boolean isOfferOpen = getTrade(tradeId) == null;
+        RespondToIsOfferAvailableMessage replyMessage = new RespondToIsOfferAvailableMessage(tradeId, isOfferOpen);
+        messageService.sendMessage(sender, replyMessage, MessagePriority.LOW, new OutgoingMessageListener() {
+            @Override
+            public void onResult() {
+                log.trace("RespondToTakeOfferRequestMessage successfully arrived at peer");
+            }
+
+            @Override
+            public void onFailed() {
+                log.error("AcceptTakeOfferRequestMessage  did not arrive at peer");
+            }
+        });
     }
 
-    private void persistPendingTrades() {
-        persistence.write(this, "pendingTrades", (Map<String, Trade>) new HashMap<>(pendingTrades));
+    // Reads the trade from the pending trades, which are only accessed from the UI thread
+    private void persistPendingTrade(String tradeId) {
+        runInUserThread(() -> pendingTradesPersistence.persist(tradeId));
     }
 
-    private void persistClosedTrades() {
-        persistence.write(this, "closedTrades", (Map<String, Trade>) new HashMap<>(closedTrades));
+    private static void runInUserThread(Runnable runnable) {
+        if (Platform.isFxApplicationThread())
+            runnable.run();
+        else
+            Platform.runLater(runnable);
     }
 
 
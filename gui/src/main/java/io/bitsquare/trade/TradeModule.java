@@ -19,6 +19,8 @@ package io.bitsquare.trade;
 
 import io.bitsquare.BitsquareModule;
 
+import com.google.inject.Injector;
+
 import org.springframework.core.env.Environment;
 
 public class TradeModule extends BitsquareModule {
@@ -29,6 +31,12 @@ public class TradeModule extends BitsquareModule {
 
     @Override
     protected void configure() {
+        bind(TradeArchive.class).asEagerSingleton();
         bind(TradeManager.class).asEagerSingleton();
     }
+
+    @Override
+    protected void doClose(Injector injector) {
+        injector.getInstance(TradeArchive.class).close();
+    }
 }
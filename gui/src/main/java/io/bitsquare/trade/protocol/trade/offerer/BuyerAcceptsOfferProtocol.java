@@ -49,6 +49,8 @@ import org.bitcoinj.core.Utils;
 
 import java.security.PublicKey;
 
+import java.util.concurrent.Executor;
+
 import org.jetbrains.annotations.NotNull;
 
 import org.slf4j.Logger;
@@ -101,6 +103,9 @@ public class BuyerAcceptsOfferProtocol {
     private final BlockChainService blockChainService;
     private final SignatureService signatureService;
     private final BuyerAcceptsOfferProtocolListener listener;
+    // The tasks report their results on the threads of the wallet or the network, we continue on the executor of
+    // the trade so the steps of the protocol never run concurrently
+    private final Executor executor;
 
     // derived
     private final String tradeId;
@@ -144,10 +149,12 @@ public class BuyerAcceptsOfferProtocol {
                                      BlockChainService blockChainService,
                                      SignatureService signatureService,
                                      User user,
-                                     BuyerAcceptsOfferProtocolListener listener) {
+                                     BuyerAcceptsOfferProtocolListener listener,
+                                     Executor executor) {
         this.trade = trade;
         this.peer = peer;
         this.listener = listener;
+        this.executor = executor;
         this.messageService = messageService;
         this.walletService = walletService;
         this.blockChainService = blockChainService;
@@ -175,8 +182,9 @@ public class BuyerAcceptsOfferProtocol {
     public void start() {
         log.debug("start called " + step++);
         state = State.HandleTakeOfferRequest;
-        HandleTakeOfferRequest.run(this::onResultHandleTakeOfferRequest, this::onFault, peer, messageService,
-                trade.getState(), tradeId);
+        HandleTakeOfferRequest.run(takeOfferRequestAccepted ->
+                        executor.execute(() -> onResultHandleTakeOfferRequest(takeOfferRequestAccepted)),
+                this::onFault, peer, messageService, trade.getState(), tradeId);
     }
 
     public void onResultHandleTakeOfferRequest(boolean takeOfferRequestAccepted) {
@@ -216,8 +224,8 @@ public class BuyerAcceptsOfferProtocol {
 
         // next task
         state = State.VerifyTakeOfferFeePayment;
-        VerifyTakeOfferFeePayment.run(this::onResultVerifyTakeOfferFeePayment, this::onFault, walletService,
-                this.takeOfferFeeTxId);
+        VerifyTakeOfferFeePayment.run(() -> executor.execute(this::onResultVerifyTakeOfferFeePayment), this::onFault,
+                walletService, this.takeOfferFeeTxId);
     }
 
     public void onResultVerifyTakeOfferFeePayment() {
@@ -225,8 +233,10 @@ public class BuyerAcceptsOfferProtocol {
 
         Coin offererInputAmount = trade.getSecurityDeposit().add(FeePolicy.TX_FEE);
         state = State.CreateDepositTx;
-        CreateDepositTx.run(this::onResultCreateDepositTx, this::onFault, walletService, tradeId, offererInputAmount,
-                takerPubKey, arbitratorPubKey);
+        CreateDepositTx.run((offererPubKey, preparedOffererDepositTxAsHex, offererTxOutIndex) ->
+                        executor.execute(() -> onResultCreateDepositTx(offererPubKey, preparedOffererDepositTxAsHex,
+                                offererTxOutIndex)),
+                this::onFault, walletService, tradeId, offererInputAmount, takerPubKey, arbitratorPubKey);
     }
 
     public void onResultCreateDepositTx(String offererPubKey, String preparedOffererDepositTxAsHex,
@@ -236,7 +246,7 @@ public class BuyerAcceptsOfferProtocol {
         this.offererTxOutIndex = offererTxOutIndex;
 
         state = State.RequestTakerDepositPayment;
-        RequestTakerDepositPayment.run(this::onResultRequestTakerDepositPayment,
+        RequestTakerDepositPayment.run(() -> executor.execute(this::onResultRequestTakerDepositPayment),
                 this::onFault,
                 peer,
                 messageService,
@@ -289,8 +299,8 @@ public class BuyerAcceptsOfferProtocol {
 
         // next task
         state = State.VerifyTakerAccount;
-        VerifyTakerAccount.run(this::onResultVerifyTakerAccount, this::onFault, blockChainService,
-                this.peersAccountId, this.peersBankAccount);
+        VerifyTakerAccount.run(() -> executor.execute(this::onResultVerifyTakerAccount), this::onFault,
+                blockChainService, this.peersAccountId, this.peersBankAccount);
     }
 
     public void onResultVerifyTakerAccount() {
@@ -298,7 +308,8 @@ public class BuyerAcceptsOfferProtocol {
 
         Coin tradeAmount = trade.getTradeAmount();
         state = State.VerifyAndSignContract;
-        VerifyAndSignContract.run(this::onResultVerifyAndSignContract,
+        VerifyAndSignContract.run((contract, contractAsJson, signature) ->
+                        executor.execute(() -> onResultVerifyAndSignContract(contract, contractAsJson, signature)),
                 this::onFault,
                 signatureService,
                 accountId,
@@ -321,7 +332,8 @@ public class BuyerAcceptsOfferProtocol {
         trade.setContractAsJson(contractAsJson);
         trade.setContractTakerSignature(signature);
         state = State.SignAndPublishDepositTx;
-        SignAndPublishDepositTx.run(this::onResultSignAndPublishDepositTx,
+        SignAndPublishDepositTx.run(depositTransaction ->
+                        executor.execute(() -> onResultSignAndPublishDepositTx(depositTransaction)),
                 this::onFault,
                 walletService,
                 preparedOffererDepositTxAsHex,
@@ -338,15 +350,16 @@ public class BuyerAcceptsOfferProtocol {
         listener.onDepositTxPublished(depositTransaction);
 
         state = State.SendDepositTxIdToTaker;
-        SendDepositTxIdToTaker.run(this::onResultSendDepositTxIdToTaker, this::onFault, peer, messageService,
-                tradeId, depositTransaction);
+        SendDepositTxIdToTaker.run(() -> executor.execute(this::onResultSendDepositTxIdToTaker), this::onFault, peer,
+                messageService, tradeId, depositTransaction);
     }
 
     public void onResultSendDepositTxIdToTaker() {
         log.debug("onResultSendDepositTxIdToTaker called " + step++);
 
         state = State.SetupListenerForBlockChainConfirmation;
-        SetupListenerForBlockChainConfirmation.run(this::onResultSetupListenerForBlockChainConfirmation,
+        SetupListenerForBlockChainConfirmation.run(
+                () -> executor.execute(this::onResultSetupListenerForBlockChainConfirmation),
                 trade.getDepositTx(), listener);
     }
 
@@ -378,7 +391,7 @@ public class BuyerAcceptsOfferProtocol {
         Coin tradeAmount = trade.getTradeAmount();
         Coin securityDeposit = trade.getSecurityDeposit();
         state = State.SendSignedPayoutTx;
-        SendSignedPayoutTx.run(this::onResultSendSignedPayoutTx,
+        SendSignedPayoutTx.run(() -> executor.execute(this::onResultSendSignedPayoutTx),
                 this::onFault,
                 peer,
                 messageService,
@@ -434,7 +447,7 @@ public class BuyerAcceptsOfferProtocol {
 
     // generic fault handler
     private void onFault(Throwable throwable) {
-        listener.onFault(throwable, state);
+        executor.execute(() -> listener.onFault(throwable, state));
     }
 
 }
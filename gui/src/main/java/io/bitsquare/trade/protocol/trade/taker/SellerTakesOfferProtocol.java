@@ -48,6 +48,8 @@ import org.bitcoinj.core.Transaction;
 
 import java.security.PublicKey;
 
+import java.util.concurrent.Executor;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -90,6 +92,9 @@ public class SellerTakesOfferProtocol {
     private final WalletService walletService;
     private final BlockChainService blockChainService;
     private final SignatureService signatureService;
+    // The tasks report their results on the threads of the wallet or the network, we continue on the executor of
+    // the trade so the steps of the protocol never run concurrently
+    private final Executor executor;
 
     // derived
     private final Offer offer;
@@ -137,13 +142,15 @@ public class SellerTakesOfferProtocol {
                                     WalletService walletService,
                                     BlockChainService blockChainService,
                                     SignatureService signatureService,
-                                    User user) {
+                                    User user,
+                                    Executor executor) {
         this.trade = trade;
         this.listener = listener;
         this.messageService = messageService;
         this.walletService = walletService;
         this.blockChainService = blockChainService;
         this.signatureService = signatureService;
+        this.executor = executor;
 
         offer = trade.getOffer();
         tradeId = trade.getId();
@@ -167,7 +174,8 @@ public class SellerTakesOfferProtocol {
     public void start() {
         log.debug("start called " + step++);
         state = State.GetPeerAddress;
-        GetPeerAddress.run(this::onResultGetPeerAddress, this::onFault, messageService, peersMessagePublicKey);
+        GetPeerAddress.run(peer -> executor.execute(() -> onResultGetPeerAddress(peer)), this::onFault,
+                messageService, peersMessagePublicKey);
     }
 
     public void onResultGetPeerAddress(Peer peer) {
@@ -175,7 +183,8 @@ public class SellerTakesOfferProtocol {
         this.peer = peer;
 
         state = State.RequestTakeOffer;
-        RequestTakeOffer.run(this::onResultRequestTakeOffer, this::onFault, peer, messageService, tradeId);
+        RequestTakeOffer.run(() -> executor.execute(this::onResultRequestTakeOffer), this::onFault, peer,
+                messageService, tradeId);
     }
 
     public void onResultRequestTakeOffer() {
@@ -197,7 +206,8 @@ public class SellerTakesOfferProtocol {
         if (message.isTakeOfferRequestAccepted()) {
             state = State.PayTakeOfferFee;
             listener.onTakeOfferRequestAccepted(trade);
-            PayTakeOfferFee.run(this::onResultPayTakeOfferFee, this::onFault, walletService, tradeId);
+            PayTakeOfferFee.run(takeOfferFeeTxId -> executor.execute(() -> onResultPayTakeOfferFee(takeOfferFeeTxId)),
+                    this::onFault, walletService, tradeId);
         }
         else {
             listener.onTakeOfferRequestRejected(trade);
@@ -210,8 +220,8 @@ public class SellerTakesOfferProtocol {
         trade.setTakeOfferFeeTxID(takeOfferFeeTxId);
 
         state = State.SendTakeOfferFeePayedTxId;
-        SendTakeOfferFeePayedTxId.run(this::onResultSendTakeOfferFeePayedTxId, this::onFault, peer,
-                messageService, tradeId, takeOfferFeeTxId, tradeAmount, pubKeyForThatTrade);
+        SendTakeOfferFeePayedTxId.run(() -> executor.execute(this::onResultSendTakeOfferFeePayedTxId), this::onFault,
+                peer, messageService, tradeId, takeOfferFeeTxId, tradeAmount, pubKeyForThatTrade);
     }
 
     public void onResultSendTakeOfferFeePayedTxId() {
@@ -247,15 +257,16 @@ public class SellerTakesOfferProtocol {
 
         // next task
         state = State.VerifyOffererAccount;
-        VerifyOffererAccount.run(this::onResultVerifyOffererAccount, this::onFault, blockChainService, peersAccountId,
-                peersBankAccount);
+        VerifyOffererAccount.run(() -> executor.execute(this::onResultVerifyOffererAccount), this::onFault,
+                blockChainService, peersAccountId, peersBankAccount);
     }
 
     public void onResultVerifyOffererAccount() {
         log.debug("onResultVerifyOffererAccount called " + step++);
         String takeOfferFeeTxId = trade.getTakeOfferFeeTxId();
         state = State.CreateAndSignContract;
-        CreateAndSignContract.run(this::onResultCreateAndSignContract,
+        CreateAndSignContract.run((contract, contractAsJson, signature) ->
+                        executor.execute(() -> onResultCreateAndSignContract(contract, contractAsJson, signature)),
                 this::onFault,
                 signatureService,
                 offer,
@@ -278,7 +289,8 @@ public class SellerTakesOfferProtocol {
         trade.setContractTakerSignature(signature);
 
         state = State.PayDeposit;
-        PayDeposit.run(this::onResultPayDeposit, this::onFault, walletService, securityDeposit, tradeAmount, tradeId,
+        PayDeposit.run(signedTakerDepositTx -> executor.execute(() -> onResultPayDeposit(signedTakerDepositTx)),
+                this::onFault, walletService, securityDeposit, tradeAmount, tradeId,
                 pubKeyForThatTrade, arbitratorPubKey, peersPubKey, preparedPeersDepositTxAsHex);
     }
 
@@ -288,7 +300,7 @@ public class SellerTakesOfferProtocol {
         String takerSignature = trade.getTakerSignature();
 
         state = State.SendSignedTakerDepositTxAsHex;
-        SendSignedTakerDepositTxAsHex.run(this::onResultSendSignedTakerDepositTxAsHex,
+        SendSignedTakerDepositTxAsHex.run(() -> executor.execute(this::onResultSendSignedTakerDepositTxAsHex),
                 this::onFault,
                 peer,
                 messageService,
@@ -368,7 +380,8 @@ public class SellerTakesOfferProtocol {
         checkState(state == State.onBankTransferInitedMessage);
 
         state = State.SignAndPublishPayoutTx;
-        SignAndPublishPayoutTx.run(this::onResultSignAndPublishPayoutTx,
+        SignAndPublishPayoutTx.run((transaction, payoutTxAsHex) ->
+                        executor.execute(() -> onResultSignAndPublishPayoutTx(transaction, payoutTxAsHex)),
                 this::onFault,
                 walletService,
                 tradeId,
@@ -385,7 +398,8 @@ public class SellerTakesOfferProtocol {
         listener.onPayoutTxPublished(trade, transaction);
 
         state = State.SendPayoutTxToOfferer;
-        SendPayoutTxToOfferer.run(this::onResultSendPayoutTxToOfferer, this::onFault, peer, messageService,
+        SendPayoutTxToOfferer.run(() -> executor.execute(this::onResultSendPayoutTxToOfferer), this::onFault, peer,
+                messageService,
                 tradeId, payoutTxAsHex);
     }
 
@@ -409,7 +423,7 @@ public class SellerTakesOfferProtocol {
 
     // generic fault handler
     private void onFault(Throwable throwable) {
-        listener.onFault(throwable, state);
+        executor.execute(() -> listener.onFault(throwable, state));
     }
 
 }
@@ -117,6 +117,11 @@ public class User implements Serializable {
         currentBankAccount.set(bankAccount);
     }
 
+    // Used when restoring a persisted user
+    public void setMessageKeyPair(KeyPair messageKeyPair) {
+        this.messageKeyPair = messageKeyPair;
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Getters
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -179,12 +184,12 @@ public class User implements Serializable {
     }
 
     // Used for serialisation (ObservableList cannot be serialized) -> serialisation will change anyway so that is
-    // only temporary
-    List<BankAccount> getSerializedBankAccounts() {
+    // only temporary. A user restored by Java serialization has only these fields, the observables are null.
+    public List<BankAccount> getSerializedBankAccounts() {
         return _bankAccounts;
     }
 
-    BankAccount getSerializedCurrentBankAccount() {
+    public BankAccount getSerializedCurrentBankAccount() {
         return _currentBankAccount;
     }
 
@@ -0,0 +1,153 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.msg;
+
+import io.bitsquare.bank.BankAccount;
+import io.bitsquare.bank.BankAccountType;
+import io.bitsquare.crypto.SignatureService;
+import io.bitsquare.locale.CountryUtil;
+import io.bitsquare.persistence.JavaSerializationCodec;
+import io.bitsquare.trade.protocol.trade.TradeMessage;
+import io.bitsquare.trade.protocol.trade.offerer.messages.BankTransferInitedMessage;
+import io.bitsquare.trade.protocol.trade.offerer.messages.DepositTxPublishedMessage;
+import io.bitsquare.trade.protocol.trade.offerer.messages.RequestTakerDepositPaymentMessage;
+import io.bitsquare.trade.protocol.trade.offerer.messages.RespondToIsOfferAvailableMessage;
+import io.bitsquare.trade.protocol.trade.offerer.messages.RespondToTakeOfferRequestMessage;
+import io.bitsquare.trade.protocol.trade.taker.messages.PayoutTxPublishedMessage;
+import io.bitsquare.trade.protocol.trade.taker.messages.RequestIsOfferAvailableMessage;
+import io.bitsquare.trade.protocol.trade.taker.messages.RequestOffererPublishDepositTxMessage;
+import io.bitsquare.trade.protocol.trade.taker.messages.RequestTakeOfferMessage;
+import io.bitsquare.trade.protocol.trade.taker.messages.TakeOfferFeePayedMessage;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import java.io.Serializable;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+
+import java.util.Currency;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageCodecTest {
+
+    private static final String TRADE_ID = "a8f7c9d2-3b41-4e6f-9c1a-2d5e8f7b6a90";
+
+    private final MessageCodec codec = new MessageCodec();
+    private final Random random = new Random(42);
+
+    @Test
+    public void testSimpleMessages() throws Exception {
+        assertRoundTrip(new RequestIsOfferAvailableMessage(TRADE_ID));
+        assertRoundTrip(new RespondToIsOfferAvailableMessage(TRADE_ID, true));
+        assertRoundTrip(new RequestTakeOfferMessage(TRADE_ID));
+        assertRoundTrip(new RespondToTakeOfferRequestMessage(TRADE_ID, false));
+        assertRoundTrip(new DepositTxPublishedMessage(TRADE_ID, getHex(400)));
+        assertRoundTrip(new PayoutTxPublishedMessage(TRADE_ID, getHex(300)));
+        assertRoundTrip(new TakeOfferFeePayedMessage(TRADE_ID, getHex(32), Coin.COIN, getHex(33)));
+    }
+
+    @Test
+    public void testRequestTakerDepositPaymentMessage() throws Exception {
+        RequestTakerDepositPaymentMessage message = new RequestTakerDepositPaymentMessage(TRADE_ID,
+                getBankAccount(), "accountId", getHex(33), getHex(500), 1);
+        assertSmaller(message, assertRoundTrip(message));
+        assertRoundTrip(new RequestTakerDepositPaymentMessage(TRADE_ID, null, null, null, null, 0));
+    }
+
+    @Test
+    public void testRequestOffererPublishDepositTxMessage() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("DSA");
+        keyPairGenerator.initialize(1024);
+        PublicKey messagePublicKey = keyPairGenerator.generateKeyPair().getPublic();
+        String contractSignature = new SignatureService().signMessage(new ECKey(), "{contract}");
+
+        RequestOffererPublishDepositTxMessage message = new RequestOffererPublishDepositTxMessage(TRADE_ID,
+                getBankAccount(), "accountId", messagePublicKey, getHex(600), getHex(70), getHex(40), "{contract}",
+                contractSignature, "mkoGdaJBT7k5Q3Vb9ZGJzBHU9vjc7Mh6x2", 0, 1);
+        assertSmaller(message, assertRoundTrip(message));
+
+        // Values not in the expected form are kept as they are
+        assertRoundTrip(new RequestOffererPublishDepositTxMessage(TRADE_ID, null, null, null, "ABCD", "xyz", null,
+                null, "not base64!", null, -1, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testBankTransferInitedMessage() throws Exception {
+        ECKey.ECDSASignature signature = new ECKey().sign(Sha256Hash.create(new byte[]{1, 2, 3}));
+        BankTransferInitedMessage message = new BankTransferInitedMessage(TRADE_ID, getHex(500),
+                signature.r.toString(), signature.s.toString(), Coin.CENT, Coin.COIN.subtract(Coin.CENT),
+                "mkoGdaJBT7k5Q3Vb9ZGJzBHU9vjc7Mh6x2");
+        assertSmaller(message, assertRoundTrip(message));
+
+        assertRoundTrip(new BankTransferInitedMessage(TRADE_ID, null, "0123", "-5", null, Coin.ZERO, null));
+        assertRoundTrip(new BankTransferInitedMessage(TRADE_ID, null, "0", "1" + Long.MAX_VALUE + Long.MAX_VALUE +
+                Long.MAX_VALUE + Long.MAX_VALUE, null, null, null));
+    }
+
+    private byte[] assertRoundTrip(TradeMessage message) throws Exception {
+        byte[] encoded = codec.encode((Serializable) message);
+        Object decoded = codec.decode(encoded);
+        assertEquals(message.getClass(), decoded.getClass());
+        assertSameFields(message, decoded);
+        return encoded;
+    }
+
+    private void assertSmaller(TradeMessage message, byte[] encoded) throws Exception {
+        int javaSerializedLength = new JavaSerializationCodec().encode((Serializable) message).length;
+        assertTrue(message.getClass().getSimpleName() + ": " + encoded.length + " bytes instead of " +
+                javaSerializedLength, encoded.length * 2 < javaSerializedLength);
+    }
+
+    private static void assertSameFields(Object expected, Object actual) throws IllegalAccessException {
+        for (Field field : expected.getClass().getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()))
+                continue;
+
+            field.setAccessible(true);
+            Object expectedValue = field.get(expected);
+            Object actualValue = field.get(actual);
+            // BankAccount.equals compares only the bank name
+            if (expectedValue instanceof BankAccount)
+                assertSameFields(expectedValue, actualValue);
+            else
+                assertEquals(field.getName(), expectedValue, actualValue);
+        }
+    }
+
+    private String getHex(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return Utils.HEX.encode(bytes);
+    }
+
+    private static BankAccount getBankAccount() {
+        return new BankAccount(BankAccountType.SEPA, Currency.getInstance("EUR"), CountryUtil.getDefaultCountry(),
+                "Bank", "Account holder", "DE89370400440532013000", "COBADEFFXXX");
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.msg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageDispatcherTest {
+    private MessageDispatcher messageDispatcher;
+
+    @Before
+    public void setup() {
+        messageDispatcher = new MessageDispatcher(4);
+    }
+
+    @After
+    public void tearDown() {
+        messageDispatcher.shutDown();
+    }
+
+    @Test
+    public void testTasksOfOneKeyRunInOrder() throws InterruptedException {
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int index = i;
+            messageDispatcher.execute("trade", () -> {
+                if (running.incrementAndGet() > 1)
+                    overlaps.incrementAndGet();
+                handled.add(index);
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, (int) handled.get(i));
+    }
+
+    @Test
+    public void testKeysRunInParallel() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch otherTradeHandled = new CountDownLatch(1);
+        messageDispatcher.execute("trade1", () -> {
+            try {
+                blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        });
+        messageDispatcher.execute("trade2", otherTradeHandled::countDown);
+
+        assertTrue("a slow trade does not block the others", otherTradeHandled.await(5, TimeUnit.SECONDS));
+        blocked.countDown();
+    }
+
+    @Test
+    public void testFailedTaskIsMeasuredAndNextTaskRuns() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        messageDispatcher.execute("trade", () -> {
+            throw new IllegalStateException("test");
+        });
+        messageDispatcher.getExecutor("trade").execute(done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messageDispatcher.getHandlingTime().getCount() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, messageDispatcher.getQueueWait().getCount());
+        assertEquals(2, messageDispatcher.getHandlingTime().getCount());
+        assertTrue(messageDispatcher.getHandlingTime().getMaxMillis() >= 0);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.msg;
+
+import io.bitsquare.msg.listeners.OutgoingMessageListener;
+import io.bitsquare.network.Peer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutboundMessageQueueTest {
+
+    private final Peer peer = new Peer() {
+    };
+
+    private final List<String> sentIds = new ArrayList<>();
+    private final List<Message> sentMessages = new ArrayList<>();
+    private final List<OutgoingMessageListener> pendingListeners = new ArrayList<>();
+    private volatile int failures;
+    private OutboundMessageQueue queue;
+
+    @Before
+    public void setup() {
+        // Completes the sends immediately with failures first, or keeps them pending if failures is negative
+        queue = new OutboundMessageQueue((peer, messageId, message, listener) -> {
+            synchronized (this) {
+                sentIds.add(messageId);
+                sentMessages.add(message);
+            }
+            if (failures < 0)
+                pendingListeners.add(listener);
+            else if (failures > 0) {
+                failures--;
+                listener.onFailed();
+            }
+            else
+                listener.onResult();
+        }, 1);
+    }
+
+    @After
+    public void tearDown() {
+        queue.shutDown();
+    }
+
+    @Test
+    public void testFailedMessageIsSentAgainWithSameId() throws InterruptedException {
+        failures = 2;
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger results = new AtomicInteger();
+        queue.send(peer, new TestMessage("trade"), MessagePriority.HIGH, getListener(latch, results, null));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, results.get());
+        synchronized (this) {
+            assertEquals(3, sentIds.size());
+            assertEquals(sentIds.get(0), sentIds.get(2));
+        }
+        assertEquals(2, queue.getRetries());
+        assertEquals(0, queue.getInFlightMessages());
+    }
+
+    @Test
+    public void testMessageFailsAfterMaxAttempts() throws InterruptedException {
+        failures = Integer.MAX_VALUE;
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger failed = new AtomicInteger();
+        queue.send(peer, new TestMessage("trade"), MessagePriority.HIGH, getListener(latch, null, failed));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, failed.get());
+        assertEquals(OutboundMessageQueue.MAX_ATTEMPTS, sentIds.size());
+        assertEquals(1, queue.getFailedMessages());
+    }
+
+    @Test
+    public void testHighPriorityMessagesGoFirst() {
+        failures = -1;
+        queue.send(peer, new TestMessage("inFlight"), MessagePriority.HIGH, getListener(null, null, null));
+        queue.send(peer, new TestMessage("ping"), MessagePriority.LOW, getListener(null, null, null));
+        queue.send(peer, new TestMessage("trade1"), MessagePriority.HIGH, getListener(null, null, null));
+        queue.send(peer, new TestMessage("trade2"), MessagePriority.HIGH, getListener(null, null, null));
+        assertEquals(3, queue.getQueuedMessages());
+        assertEquals(1, queue.getInFlightMessages());
+
+        failures = 0;
+        pendingListeners.get(0).onResult();
+        assertEquals("trade1", ((TestMessage) sentMessages.get(1)).name);
+        assertEquals("trade2", ((TestMessage) sentMessages.get(2)).name);
+        assertEquals("ping", ((TestMessage) sentMessages.get(3)).name);
+        assertEquals(0, queue.getQueuedMessages());
+    }
+
+    @Test
+    public void testLaterMessagesWaitForTheRetry() throws InterruptedException {
+        failures = 1;
+        CountDownLatch latch = new CountDownLatch(2);
+        queue.send(peer, new TestMessage("trade1"), MessagePriority.HIGH, getListener(latch, null, null));
+        queue.send(peer, new TestMessage("trade2"), MessagePriority.HIGH, getListener(latch, null, null));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        synchronized (this) {
+            assertEquals(3, sentMessages.size());
+            assertEquals("trade1", ((TestMessage) sentMessages.get(0)).name);
+            assertEquals("trade1", ((TestMessage) sentMessages.get(1)).name);
+            assertEquals("trade2", ((TestMessage) sentMessages.get(2)).name);
+        }
+    }
+
+    private OutgoingMessageListener getListener(CountDownLatch latch, AtomicInteger results, AtomicInteger failed) {
+        return new OutgoingMessageListener() {
+            @Override
+            public void onResult() {
+                if (results != null)
+                    results.incrementAndGet();
+                if (latch != null)
+                    latch.countDown();
+            }
+
+            @Override
+            public void onFailed() {
+                if (failed != null)
+                    failed.incrementAndGet();
+                if (latch != null)
+                    latch.countDown();
+            }
+        };
+    }
+
+    private static class TestMessage implements Message {
+        final String name;
+
+        TestMessage(String name) {
+            this.name = name;
+        }
+    }
+}
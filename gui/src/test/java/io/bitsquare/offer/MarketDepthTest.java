@@ -0,0 +1,139 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.offer;
+
+import io.bitsquare.bank.BankAccountType;
+import io.bitsquare.locale.CountryUtil;
+
+import org.bitcoinj.core.Coin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MarketDepthTest {
+
+    private MarketDepth marketDepth;
+
+    @Before
+    public void setup() {
+        marketDepth = new MarketDepth();
+    }
+
+    @Test
+    public void testPriceLevels() {
+        marketDepth.onOfferAdded(getOffer("sell410", Direction.SELL, 410_0000, "EUR", Coin.COIN));
+        marketDepth.onOfferAdded(getOffer("sell400a", Direction.SELL, 400_0000, "EUR", Coin.COIN));
+        marketDepth.onOfferAdded(getOffer("sell400b", Direction.SELL, 400_0000, "EUR", Coin.CENT));
+        marketDepth.onOfferAdded(getOffer("buy380", Direction.BUY, 380_0000, "EUR", Coin.COIN));
+        marketDepth.onOfferAdded(getOffer("buy390", Direction.BUY, 390_0000, "EUR", Coin.CENT));
+        marketDepth.onOfferAdded(getOffer("sellUsd", Direction.SELL, 500_0000, "USD", Coin.COIN));
+
+        List<MarketDepth.PriceLevel> sellLevels = marketDepth.getPriceLevels("EUR", Direction.SELL);
+        assertEquals(2, sellLevels.size());
+        assertEquals(400_0000, sellLevels.get(0).getPrice().value);
+        assertEquals(Coin.COIN.add(Coin.CENT), sellLevels.get(0).getAmount());
+        assertEquals(Coin.COIN.multiply(2).add(Coin.CENT), sellLevels.get(1).getCumulativeAmount());
+
+        List<MarketDepth.PriceLevel> buyLevels = marketDepth.getPriceLevels("EUR", Direction.BUY);
+        assertEquals(390_0000, buyLevels.get(0).getPrice().value);
+        assertEquals(Coin.COIN.add(Coin.CENT), buyLevels.get(1).getCumulativeAmount());
+
+        assertEquals(10_0000, marketDepth.getSpread("EUR").value);
+        assertEquals(395_0000, marketDepth.getMidPrice("EUR").value);
+        assertNull(marketDepth.getSpread("USD"));
+        assertTrue(marketDepth.getPriceLevels("CHF", Direction.SELL).isEmpty());
+    }
+
+    @Test
+    public void testLevelsFollowRemovedAndReceivedOffers() {
+        Offer sell400 = getOffer("sell400", Direction.SELL, 400_0000, "EUR", Coin.COIN);
+        marketDepth.onOfferAdded(sell400);
+        marketDepth.onOfferAdded(sell400);
+        marketDepth.onOfferAdded(getOffer("sell410", Direction.SELL, 410_0000, "EUR", Coin.COIN));
+        assertEquals(Coin.COIN, marketDepth.getPriceLevels("EUR", Direction.SELL).get(0).getAmount());
+
+        marketDepth.onOfferRemoved(sell400);
+        assertEquals(410_0000, marketDepth.getBestPrice("EUR", Direction.SELL).value);
+
+        marketDepth.onOffersReceived("EUR", null, new ArrayList<>(Arrays.asList(
+                getOffer("sell420", Direction.SELL, 420_0000, "EUR", Coin.CENT),
+                getOffer("buy390", Direction.BUY, 390_0000, "EUR", Coin.CENT))));
+        List<MarketDepth.PriceLevel> sellLevels = marketDepth.getPriceLevels("EUR", Direction.SELL);
+        assertEquals(1, sellLevels.size());
+        assertEquals(420_0000, sellLevels.get(0).getPrice().value);
+        assertEquals(390_0000, marketDepth.getBestPrice("EUR", Direction.BUY).value);
+
+        marketDepth.onOffersReceived("EUR", null, new ArrayList<>());
+        assertNull(marketDepth.getBestPrice("EUR", Direction.SELL));
+        assertNull(marketDepth.getMidPrice("EUR"));
+    }
+
+    @Test
+    public void testReceivedOffersOnlyReplaceTheirCurrency() {
+        marketDepth.onOffersReceived("EUR", null, new ArrayList<>(Arrays.asList(
+                getOffer("sellEur", Direction.SELL, 400_0000, "EUR", Coin.COIN))));
+        marketDepth.onCachedOffersReceived("USD", null, new ArrayList<>(Arrays.asList(
+                getOffer("sellUsd", Direction.SELL, 500_0000, "USD", Coin.COIN))));
+        assertTrue(marketDepth.isStale("USD"));
+        assertFalse(marketDepth.isStale("EUR"));
+
+        marketDepth.onOffersReceived("USD", null, new ArrayList<>());
+        assertNull(marketDepth.getBestPrice("USD", Direction.SELL));
+        assertFalse(marketDepth.isStale("USD"));
+        assertEquals(400_0000, marketDepth.getBestPrice("EUR", Direction.SELL).value);
+        assertEquals(Coin.COIN, marketDepth.getPriceLevels("EUR", Direction.SELL).get(0).getCumulativeAmount());
+    }
+
+    @Test
+    public void testReceivedOffersOnlyReplaceTheirDirection() {
+        marketDepth.onOffersReceived("EUR", null, new ArrayList<>(Arrays.asList(
+                getOffer("sell400", Direction.SELL, 400_0000, "EUR", Coin.COIN),
+                getOffer("buy390", Direction.BUY, 390_0000, "EUR", Coin.COIN))));
+
+        marketDepth.onOffersReceived("EUR", Direction.SELL, new ArrayList<>(Arrays.asList(
+                getOffer("sell410", Direction.SELL, 410_0000, "EUR", Coin.COIN))));
+        assertEquals(410_0000, marketDepth.getBestPrice("EUR", Direction.SELL).value);
+        assertEquals(1, marketDepth.getPriceLevels("EUR", Direction.SELL).size());
+        assertEquals(390_0000, marketDepth.getBestPrice("EUR", Direction.BUY).value);
+    }
+
+    private Offer getOffer(String id, Direction direction, long price, String currencyCode, Coin amount) {
+        return new Offer(id,
+                null,
+                direction,
+                price,
+                amount,
+                Coin.CENT,
+                BankAccountType.SEPA,
+                Currency.getInstance(currencyCode),
+                CountryUtil.getDefaultCountry(),
+                "bankAccountUID",
+                new ArrayList<>(),
+                Coin.CENT,
+                CountryUtil.getAllEuroCountries(),
+                new ArrayList<>(Arrays.asList(Locale.GERMAN)));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.offer;
+
+import io.bitsquare.account.AccountSettings;
+import io.bitsquare.arbitrator.Arbitrator;
+import io.bitsquare.bank.BankAccount;
+import io.bitsquare.bank.BankAccountType;
+import io.bitsquare.locale.Country;
+import io.bitsquare.locale.CountryUtil;
+import io.bitsquare.user.User;
+
+import org.bitcoinj.core.Coin;
+
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MatchingEngineTest {
+
+    private final Arbitrator arbitratorA = getArbitrator("A");
+    private final Arbitrator arbitratorB = getArbitrator("B");
+
+    private OrderBook orderBook;
+    private AccountSettings accountSettings;
+    private User user;
+    private MatchingEngine matchingEngine;
+
+    @Before
+    public void setup() {
+        orderBook = new OrderBook();
+        accountSettings = new AccountSettings();
+        user = new User();
+        matchingEngine = new MatchingEngine(accountSettings, user);
+    }
+
+    @Test
+    public void testFillsAtBestPrices() {
+        orderBook.add(getOffer("sell420", Direction.SELL, 420_0000, Coin.COIN, Coin.CENT, arbitratorA));
+        orderBook.add(getOffer("sell400", Direction.SELL, 400_0000, Coin.COIN, Coin.CENT, arbitratorA));
+        orderBook.add(getOffer("sell410", Direction.SELL, 410_0000, Coin.COIN, Coin.CENT, arbitratorA));
+        orderBook.add(getOffer("buy390", Direction.BUY, 390_0000, Coin.COIN, Coin.CENT, arbitratorA));
+
+        Match match = matchingEngine.match(orderBook, "EUR", Direction.BUY, Coin.valueOf(15_000_0000), 0);
+        assertEquals("sell400,sell410", getIds(match.getFills()));
+        assertEquals(Coin.valueOf(5_000_0000), match.getFills().get(1).getAmount());
+        assertTrue(match.isComplete());
+        assertEquals(403_3333, match.getAveragePrice().value);
+
+        match = matchingEngine.match(orderBook, "EUR", Direction.SELL, Coin.COIN, 0);
+        assertEquals("buy390", getIds(match.getFills()));
+
+        match = matchingEngine.match(orderBook, "EUR", Direction.BUY, Coin.valueOf(5 * Coin.COIN.value), 410_0000);
+        assertEquals("sell400,sell410", getIds(match.getFills()));
+        assertFalse(match.isComplete());
+        assertEquals(Coin.valueOf(2 * Coin.COIN.value), match.getFilledAmount());
+    }
+
+    @Test
+    public void testMinAmountIsRespected() {
+        orderBook.add(getOffer("sell400", Direction.SELL, 400_0000, Coin.COIN, Coin.COIN, arbitratorA));
+        orderBook.add(getOffer("sell410", Direction.SELL, 410_0000, Coin.COIN, Coin.CENT, arbitratorA));
+
+        Match match = matchingEngine.match(orderBook, "EUR", Direction.BUY, Coin.valueOf(5_000_0000), 0);
+        assertEquals("sell410", getIds(match.getFills()));
+        assertTrue(match.isComplete());
+
+        assertNull(matchingEngine.match(orderBook, "USD", Direction.BUY, Coin.COIN, 0).getAveragePrice());
+    }
+
+    @Test
+    public void testAccountSettingsAreRespected() {
+        orderBook.add(getOffer("sell400", Direction.SELL, 400_0000, Coin.COIN, Coin.CENT, arbitratorB));
+        orderBook.add(getOffer("sell410", Direction.SELL, 410_0000, Coin.COIN, Coin.CENT, arbitratorA));
+        accountSettings.addAcceptedArbitrator(arbitratorA);
+
+        Match match = matchingEngine.match(orderBook, "EUR", Direction.BUY, Coin.COIN, 0);
+        assertEquals("sell410", getIds(match.getFills()));
+
+        accountSettings.addAcceptedLanguageLocale(Locale.FRENCH);
+        assertEquals("", getIds(matchingEngine.match(orderBook, "EUR", Direction.BUY, Coin.COIN, 0).getFills()));
+
+        accountSettings.addAcceptedLanguageLocale(Locale.GERMAN);
+        accountSettings.addAcceptedCountry(CountryUtil.getDefaultCountry());
+        assertEquals("sell410", getIds(matchingEngine.match(orderBook, "EUR", Direction.BUY, Coin.COIN, 0)
+                .getFills()));
+    }
+
+    @Test
+    public void testCountryOfTakerMustBeAccepted() {
+        orderBook.add(getOffer("sell400", Direction.SELL, 400_0000, Coin.COIN, Coin.CENT, arbitratorA));
+        user.setCurrentBankAccount(getBankAccount(CountryUtil.getCountryByCode("DE")));
+        assertEquals("sell400", getIds(matchingEngine.match(orderBook, "EUR", Direction.BUY, Coin.COIN, 0)
+                .getFills()));
+
+        // The offer accepts the euro countries only
+        user.setCurrentBankAccount(getBankAccount(CountryUtil.getCountryByCode("US")));
+        assertEquals("", getIds(matchingEngine.match(orderBook, "EUR", Direction.BUY, Coin.COIN, 0).getFills()));
+    }
+
+    private BankAccount getBankAccount(Country country) {
+        return new BankAccount(BankAccountType.SEPA, Currency.getInstance("EUR"), country, "bank", "holder", "iban",
+                "bic");
+    }
+
+    private Offer getOffer(String id, Direction direction, long price, Coin amount, Coin minAmount,
+                           Arbitrator arbitrator) {
+        return new Offer(id,
+                null,
+                direction,
+                price,
+                amount,
+                minAmount,
+                BankAccountType.SEPA,
+                Currency.getInstance("EUR"),
+                CountryUtil.getDefaultCountry(),
+                "bankAccountUID",
+                Arrays.asList(arbitrator),
+                Coin.CENT,
+                CountryUtil.getAllEuroCountries(),
+                Arrays.asList(Locale.GERMAN));
+    }
+
+    private Arbitrator getArbitrator(String name) {
+        return new Arbitrator(null, null, name, Arbitrator.ID_TYPE.REAL_LIFE_ID, Arrays.asList(Locale.GERMAN), null,
+                Coin.CENT, null, null, null, null);
+    }
+
+    private String getIds(List<Match.Fill> fills) {
+        return String.join(",", fills.stream().map(fill -> fill.getOffer().getId()).toArray(String[]::new));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.offer;
+
+import io.bitsquare.bank.BankAccountType;
+import io.bitsquare.locale.CountryUtil;
+
+import org.bitcoinj.core.Coin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OrderBookTest {
+
+    private OrderBook orderBook;
+
+    @Before
+    public void setup() {
+        orderBook = new OrderBook();
+        orderBook.add(getOffer("sell500", Direction.SELL, 500_0000, "EUR", Coin.COIN, Coin.CENT));
+        orderBook.add(getOffer("sell400", Direction.SELL, 400_0000, "EUR", Coin.CENT, Coin.CENT));
+        orderBook.add(getOffer("sell450", Direction.SELL, 450_0000, "EUR", Coin.COIN, Coin.COIN));
+        orderBook.add(getOffer("sell400b", Direction.SELL, 400_0000, "EUR", Coin.COIN, Coin.CENT));
+        orderBook.add(getOffer("buy390", Direction.BUY, 390_0000, "EUR", Coin.COIN, Coin.CENT));
+        orderBook.add(getOffer("buy380", Direction.BUY, 380_0000, "EUR", Coin.COIN, Coin.CENT));
+        orderBook.add(getOffer("sellUsd", Direction.SELL, 300_0000, "USD", Coin.COIN, Coin.CENT));
+    }
+
+    @Test
+    public void testOffersAreSortedBestPriceFirst() {
+        assertEquals("sell400,sell400b,sell450,sell500", getIds(orderBook.getOffers("EUR", Direction.SELL, 0, null)));
+        assertEquals("buy390,buy380", getIds(orderBook.getOffers("EUR", Direction.BUY, 0, null)));
+        assertEquals("sellUsd", getIds(orderBook.getOffers("USD", Direction.SELL, 0, null)));
+        assertEquals("", getIds(orderBook.getOffers("CHF", Direction.SELL, 0, null)));
+    }
+
+    @Test
+    public void testRangeQuery() {
+        Coin amount = Coin.valueOf(Coin.COIN.value / 2);
+        List<Offer> offers = orderBook.getOffers("EUR", Direction.SELL, 450_0000, amount);
+        assertEquals("sell400b", getIds(offers));
+        assertEquals("buy390", getIds(orderBook.getOffers("EUR", Direction.BUY, 385_0000, amount)));
+
+        for (Offer offer : offers)
+            assertTrue(OrderBook.matches(offer, 450_0000, amount));
+        assertFalse(OrderBook.matches(orderBook.getOffer("sell450"), 450_0000, amount));
+        assertFalse(OrderBook.matches(orderBook.getOffer("sell500"), 450_0000, amount));
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        assertEquals(7, orderBook.size());
+        assertNotNull(orderBook.remove("sell400"));
+        assertNull(orderBook.remove("sell400"));
+        assertNotNull(orderBook.remove("sell400b"));
+        assertEquals("sell450,sell500", getIds(orderBook.getOffers("EUR", Direction.SELL, 0, null)));
+
+        // An offer with a known id replaces the old one
+        orderBook.add(getOffer("sell500", Direction.SELL, 350_0000, "EUR", Coin.COIN, Coin.CENT));
+        assertEquals("sell500,sell450", getIds(orderBook.getOffers("EUR", Direction.SELL, 0, null)));
+        assertEquals(5, orderBook.size());
+
+        orderBook.clear();
+        assertEquals(0, orderBook.size());
+        assertFalse(orderBook.contains("sell500"));
+    }
+
+    private Offer getOffer(String id, Direction direction, long price, String currencyCode, Coin amount,
+                           Coin minAmount) {
+        return new Offer(id,
+                null,
+                direction,
+                price,
+                amount,
+                minAmount,
+                BankAccountType.SEPA,
+                Currency.getInstance(currencyCode),
+                CountryUtil.getDefaultCountry(),
+                "bankAccountUID",
+                new ArrayList<>(),
+                Coin.CENT,
+                CountryUtil.getAllEuroCountries(),
+                new ArrayList<>(Arrays.asList(Locale.GERMAN)));
+    }
+
+    private String getIds(List<Offer> offers) {
+        return String.join(",", offers.stream().map(Offer::getId).toArray(String[]::new));
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import io.bitsquare.arbitrator.Arbitrator;
+import io.bitsquare.arbitrator.Reputation;
+import io.bitsquare.bank.BankAccount;
+import io.bitsquare.bank.BankAccountType;
+import io.bitsquare.btc.AddressEntry;
+import io.bitsquare.locale.CountryUtil;
+import io.bitsquare.offer.Direction;
+import io.bitsquare.offer.Offer;
+import io.bitsquare.trade.Contract;
+import io.bitsquare.trade.Trade;
+import io.bitsquare.user.User;
+import io.bitsquare.util.DSAKeyUtil;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.params.RegTestParams;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import java.security.KeyPair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DomainCodecTest {
+    private static final NetworkParameters params = RegTestParams.get();
+
+    private DomainCodec codec;
+    private KeyPair keyPair;
+
+    @Before
+    public void setup() {
+        codec = new DomainCodec();
+        keyPair = DSAKeyUtil.generateKeyPair();
+    }
+
+    @Test
+    public void testOffer() throws Exception {
+        Offer offer = getOffer("offerId");
+        Offer decoded = roundTrip(offer);
+
+        assertEquals(offer.toString(), decoded.toString());
+        assertEquals(offer.getCreationDate(), decoded.getCreationDate());
+        assertEquals(offer.getMessagePublicKey(), decoded.getMessagePublicKey());
+        assertEquals(offer.getPrice(), decoded.getPrice());
+        assertEquals(offer.getAcceptedCountries(), decoded.getAcceptedCountries());
+        assertEquals(offer.getBankAccountCountry().getName(), decoded.getBankAccountCountry().getName());
+        assertEquals(offer.getBankAccountCountry().getRegion(), decoded.getBankAccountCountry().getRegion());
+        assertEquals(offer.getArbitrators().get(0).getPubKeyAsHex(), decoded.getArbitrators().get(0).getPubKeyAsHex());
+    }
+
+    @Test
+    public void testTrade() throws Exception {
+        Offer offer = getOffer("tradeId");
+        Trade trade = new Trade(offer);
+        trade.setTradeAmount(Coin.CENT);
+        trade.setTakeOfferFeeTxID("takeOfferFeeTxID");
+        trade.setContract(getContract(offer));
+        trade.setContractAsJson("{\"offer\":\"tradeId\"}");
+        trade.setContractTakerSignature("signature");
+        trade.setDepositTx(getTransaction());
+        trade.setState(Trade.State.DEPOSIT_PUBLISHED);
+        trade.setFault(new Exception("fault"));
+
+        Trade decoded = roundTrip(trade);
+        assertEquals(trade.getId(), decoded.getId());
+        assertEquals(trade.getDate(), decoded.getDate());
+        assertEquals(trade.getTradeAmount(), decoded.getTradeAmount());
+        assertEquals(trade.getTradeVolume(), decoded.tradeVolumeProperty().get());
+        assertEquals(trade.getTakeOfferFeeTxId(), decoded.getTakeOfferFeeTxId());
+        assertEquals(trade.getContract().toString(), decoded.getContract().toString());
+        assertEquals(trade.getContractAsJson(), decoded.getContractAsJson());
+        assertEquals(trade.getTakerSignature(), decoded.getTakerSignature());
+        assertEquals(trade.getDepositTx(), decoded.getDepositTx());
+        assertArrayEquals(trade.getDepositTx().bitcoinSerialize(), decoded.getDepositTx().bitcoinSerialize());
+        assertNull(decoded.getPayoutTx());
+        assertEquals(Trade.State.DEPOSIT_PUBLISHED, decoded.stateProperty().get());
+        assertEquals("fault", decoded.getFault().getMessage());
+    }
+
+    @Test
+    public void testContract() throws Exception {
+        Contract contract = getContract(getOffer("contractId"));
+        Contract decoded = roundTrip(contract);
+        assertEquals(contract.toString(), decoded.toString());
+        assertEquals(contract.getOffererMessagePublicKey(), decoded.getOffererMessagePublicKey());
+    }
+
+    @Test
+    public void testBankAccount() throws Exception {
+        BankAccount bankAccount = getBankAccount("bank");
+        assertEquals(bankAccount.toString(), roundTrip(bankAccount).toString());
+    }
+
+    @Test
+    public void testArbitrator() throws Exception {
+        Arbitrator arbitrator = getArbitrator();
+        Arbitrator decoded = roundTrip(arbitrator);
+        assertEquals(arbitrator, decoded);
+        assertEquals(arbitrator.getPubKeyAsHex(), decoded.getPubKeyAsHex());
+        assertEquals(arbitrator.getMessagePubKeyAsHex(), decoded.getMessagePubKeyAsHex());
+        assertEquals(arbitrator.getLanguages(), decoded.getLanguages());
+        assertEquals(arbitrator.getFee(), decoded.getFee());
+        assertEquals(arbitrator.getArbitrationMethods(), decoded.getArbitrationMethods());
+        assertEquals(arbitrator.getIdVerifications(), decoded.getIdVerifications());
+        assertEquals(arbitrator.getDescription(), decoded.getDescription());
+        assertNotNull(decoded.getReputation());
+
+        Arbitrator empty = roundTrip(new Arbitrator());
+        assertNull(empty.getId());
+        assertNull(empty.getLanguages());
+    }
+
+    @Test
+    public void testUser() throws Exception {
+        User user = new User();
+        user.setMessageKeyPair(keyPair);
+        user.setAccountID("accountId");
+        user.setBankAccount(getBankAccount("bank1"));
+        user.setBankAccount(getBankAccount("bank2"));
+        user.setCurrentBankAccount(user.getBankAccount("bank1"));
+
+        User decoded = roundTrip(user);
+        assertEquals(user.getAccountId(), decoded.getAccountId());
+        assertEquals(user.getMessagePublicKey(), decoded.getMessagePublicKey());
+        assertEquals(user.getMessageKeyPair().getPrivate(), decoded.getMessageKeyPair().getPrivate());
+        assertEquals(user.getBankAccounts(), decoded.getBankAccounts());
+        assertEquals("bank1", decoded.getCurrentBankAccount().get().getUid());
+
+        // The user singleton applies the persisted data from the serialized fields
+        User applied = new User();
+        applied.applyPersistedUser(decoded);
+        assertEquals(2, applied.getBankAccounts().size());
+        assertEquals("bank1", applied.getCurrentBankAccount().get().getUid());
+    }
+
+    @Test
+    public void testJavaDeserializedUser() throws Exception {
+        User user = new User();
+        user.setMessageKeyPair(keyPair);
+        user.setAccountID("accountId");
+        user.setBankAccount(getBankAccount("bank1"));
+        user.setBankAccount(getBankAccount("bank2"));
+        user.setCurrentBankAccount(user.getBankAccount("bank2"));
+
+        // A legacy snapshot restores the user by Java serialization, which leaves the observables null
+        JavaSerializationCodec javaCodec = new JavaSerializationCodec();
+        User restored = (User) javaCodec.decode(javaCodec.encode(user));
+        assertNull(restored.getBankAccounts());
+
+        User decoded = roundTrip(restored);
+        assertEquals("accountId", decoded.getAccountId());
+        assertEquals(user.getMessagePublicKey(), decoded.getMessagePublicKey());
+        assertEquals(user.getBankAccounts(), decoded.getBankAccounts());
+        assertEquals("bank2", decoded.getCurrentBankAccount().get().getUid());
+    }
+
+    @Test
+    public void testAddressEntry() throws Exception {
+        DeterministicKey key = HDKeyDerivation.createMasterPrivateKey(new byte[32]);
+        AddressEntry addressEntry = new AddressEntry(key, params, AddressEntry.AddressContext.TRADE, "offerId");
+
+        AddressEntry decoded = roundTrip(addressEntry);
+        assertNull(decoded.getKey());
+        assertArrayEquals(addressEntry.getPubKeyHash(), decoded.getPubKeyHash());
+        assertEquals(AddressEntry.AddressContext.TRADE, decoded.getAddressContext());
+        assertEquals("offerId", decoded.getOfferId());
+
+        decoded.setDeterministicKey(key);
+        assertEquals(addressEntry.getAddressString(), decoded.getAddressString());
+    }
+
+    @Test
+    public void testCollectionsAndFallback() throws Exception {
+        HashMap<String, Serializable> map = new HashMap<>();
+        map.put("offer", getOffer("offerId"));
+        map.put("number", 42L);
+        ArrayList<Object> list = new ArrayList<>(Arrays.asList("a", 1, true, null, new Date(1234)));
+        HashMap<String, Serializable> decoded = roundTrip(map);
+        assertEquals("offerId", ((Offer) decoded.get("offer")).getId());
+        assertEquals(42L, decoded.get("number"));
+        assertEquals(list, roundTrip(list));
+    }
+
+    @Test
+    public void testJavaSerializedDataIsReadable() throws Exception {
+        Offer offer = getOffer("offerId");
+        byte[] javaSerialized = new JavaSerializationCodec().encode(offer);
+        assertEquals(offer.getId(), ((Offer) codec.decode(javaSerialized)).getId());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptDataIsRejected() throws Exception {
+        byte[] bytes = codec.encode(getOffer("offerId"));
+        codec.decode(Arrays.copyOf(bytes, bytes.length / 2));
+    }
+
+    @Test
+    public void testEncodingIsSmallerThanJavaSerialization() throws Exception {
+        HashMap<String, Trade> trades = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            Offer offer = getOffer("id" + i);
+            Trade trade = new Trade(offer);
+            trade.setTradeAmount(Coin.CENT);
+            trade.setContract(getContract(offer));
+            trade.setDepositTx(getTransaction());
+            trades.put(offer.getId(), trade);
+        }
+
+        byte[] binary = codec.encode(trades);
+        byte[] java = new JavaSerializationCodec().encode(trades);
+        assertTrue("binary encoding of " + binary.length + " bytes is not smaller than Java serialization of " +
+                java.length + " bytes", binary.length < java.length);
+        assertEquals(trades.size(), ((HashMap<?, ?>) codec.decode(binary)).size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Serializable> T roundTrip(T value) throws Exception {
+        return (T) codec.decode(codec.encode(value));
+    }
+
+    private Offer getOffer(String id) {
+        return new Offer(id,
+                keyPair.getPublic(),
+                Direction.BUY,
+                500_0000,
+                Coin.COIN,
+                Coin.CENT,
+                BankAccountType.SEPA,
+                Currency.getInstance("EUR"),
+                CountryUtil.getDefaultCountry(),
+                "bankAccountUID",
+                Arrays.asList(getArbitrator()),
+                Coin.CENT,
+                CountryUtil.getAllEuroCountries(),
+                Arrays.asList(Locale.GERMAN, Locale.US));
+    }
+
+    private Arbitrator getArbitrator() {
+        return new Arbitrator(DSAKeyUtil.getHexStringFromPublicKey(keyPair.getPublic()),
+                DSAKeyUtil.getHexStringFromPublicKey(keyPair.getPublic()),
+                "Manfred Karrer",
+                Arbitrator.ID_TYPE.REAL_LIFE_ID,
+                Arrays.asList(Locale.GERMANY),
+                new Reputation(),
+                Coin.parseCoin("0.1"),
+                Arrays.asList(Arbitrator.METHOD.TLS_NOTARY),
+                Arrays.asList(Arbitrator.ID_VERIFICATION.PASSPORT),
+                "https://bitsquare.io",
+                "Bla bla...");
+    }
+
+    private BankAccount getBankAccount(String nameOfBank) {
+        return new BankAccount(BankAccountType.SEPA, Currency.getInstance("EUR"), CountryUtil.getDefaultCountry(),
+                nameOfBank, "Holder", "DE89370400440532013000", "COBADEFFXXX");
+    }
+
+    private Contract getContract(Offer offer) {
+        return new Contract(offer, Coin.CENT, "takeOfferFeeTxID", "offererAccountID", "takerAccountID",
+                getBankAccount("offererBank"), getBankAccount("takerBank"), keyPair.getPublic(), keyPair.getPublic());
+    }
+
+    private Transaction getTransaction() {
+        Transaction transaction = new Transaction(params);
+        transaction.addOutput(Coin.CENT, new ECKey().toAddress(params));
+        return transaction;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stress test proving that readers and writers of other keys do not wait for a slow write.
+ * The slow write blocks in the serialization of its value until the test releases it.
+ */
+public class PersistenceConcurrencyTest {
+    private static final String PREFIX = "test";
+    private static final int READERS = 8;
+    private static final int READS_PER_READER = 20000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File dir;
+    private ExecutorService executor;
+
+    @Before
+    public void setup() throws IOException {
+        dir = temporaryFolder.newFolder();
+        executor = Executors.newCachedThreadPool();
+        BlockingValue.reset();
+    }
+
+    @After
+    public void tearDown() {
+        BlockingValue.release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testReadersDoNotBlockBehindSlowSynchronousWriter() throws Exception {
+        Persistence persistence = new Persistence(dir, PREFIX);
+        runWithSlowWriter(persistence, () -> persistence.write("slowKey", new BlockingValue()));
+    }
+
+    @Test
+    public void testReadersDoNotBlockBehindSlowFlush() throws Exception {
+        Persistence persistence = new Persistence(dir, PREFIX, 60 * 1000);
+        persistence.write("slowKey", new BlockingValue());
+        runWithSlowWriter(persistence, persistence::flush);
+    }
+
+    private void runWithSlowWriter(Persistence persistence, Runnable slowWrite) throws Exception {
+        persistence.init();
+        persistence.write("user", "userValue");
+        for (int i = 0; i < 100; i++)
+            persistence.write("closedTrade" + i, "trade" + i);
+
+        Future<?> slowWriter = executor.submit(slowWrite);
+        assertTrue("slow write started", BlockingValue.entered.await(10, TimeUnit.SECONDS));
+
+        AtomicInteger successfulReads = new AtomicInteger();
+        List<Future<?>> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            readers.add(executor.submit(() -> {
+                for (int j = 0; j < READS_PER_READER; j++) {
+                    if ("userValue".equals(persistence.read("user")) &&
+                            ("trade" + (j % 100)).equals(persistence.read("closedTrade" + (j % 100))))
+                        successfulReads.incrementAndGet();
+                }
+            }));
+        }
+        Future<?> otherWriter = executor.submit(() -> {
+            for (int i = 0; i < 100; i++)
+                persistence.write("otherKey", "otherValue" + i);
+        });
+
+        for (Future<?> reader : readers)
+            reader.get(10, TimeUnit.SECONDS);
+        otherWriter.get(10, TimeUnit.SECONDS);
+
+        assertFalse("slow write is still blocked", slowWriter.isDone());
+        assertEquals(READERS * READS_PER_READER, successfulReads.get());
+        assertEquals("otherValue99", persistence.read("otherKey"));
+
+        BlockingValue.release.countDown();
+        slowWriter.get(10, TimeUnit.SECONDS);
+        persistence.close();
+
+        Persistence reopened = new Persistence(dir, PREFIX);
+        assertTrue(reopened.read("slowKey") instanceof BlockingValue);
+        assertEquals("otherValue99", reopened.read("otherKey"));
+        assertEquals("trade42", reopened.read("closedTrade42"));
+    }
+
+    private static class BlockingValue implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        static CountDownLatch entered;
+        static CountDownLatch release;
+
+        static void reset() {
+            entered = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+        }
+
+        private void writeObject(ObjectOutputStream outputStream) throws IOException {
+            entered.countDown();
+            try {
+                release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            outputStream.defaultWriteObject();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class PersistenceTest {
+    private static final String PREFIX = "test";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = temporaryFolder.newFolder();
+    }
+
+    @Test
+    public void testWritesAreReplayedFromJournal() {
+        Persistence persistence = new Persistence(dir, PREFIX);
+        persistence.init();
+        for (int i = 0; i < 100; i++)
+            persistence.write("key" + (i % 5), "value" + i);
+
+        File journalFile = new File(dir, PREFIX + ".journal");
+        assertTrue("journal contains the writes", journalFile.length() > 0);
+
+        Persistence reopened = new Persistence(dir, PREFIX);
+        reopened.init();
+        assertEquals("value99", reopened.read("key4"));
+        assertEquals("value95", reopened.read("key0"));
+    }
+
+    @Test
+    public void testTornJournalTailIsSkipped() throws IOException {
+        Persistence persistence = new Persistence(dir, PREFIX);
+        persistence.init();
+        persistence.write("key", "value");
+
+        File journalFile = new File(dir, PREFIX + ".journal");
+        long validLength = journalFile.length();
+        try (FileOutputStream outputStream = new FileOutputStream(journalFile, true)) {
+            // header of a record which never got completely written
+            outputStream.write(new byte[]{0, 0, 1, 0, 3});
+        }
+
+        Persistence reopened = new Persistence(dir, PREFIX);
+        reopened.init();
+        assertEquals("value", reopened.read("key"));
+        assertEquals(validLength, journalFile.length());
+
+        reopened.write("key", "newValue");
+        Persistence reopenedAgain = new Persistence(dir, PREFIX);
+        assertEquals("newValue", reopenedAgain.read("key"));
+    }
+
+    @Test
+    public void testWriteBehindCoalescesWrites() {
+        Persistence persistence = new Persistence(dir, PREFIX, 60 * 1000);
+        persistence.init();
+        File journalFile = new File(dir, PREFIX + ".journal");
+
+        for (int i = 0; i < 100; i++)
+            persistence.write("key", "value" + i);
+        assertEquals("value99", persistence.read("key"));
+        assertEquals("nothing flushed before the flush interval", 0, journalFile.length());
+
+        persistence.flush();
+        long lengthAfterFirstFlush = journalFile.length();
+        assertTrue(lengthAfterFirstFlush > 0);
+
+        persistence.flush();
+        assertEquals("no dirty keys left", lengthAfterFirstFlush, journalFile.length());
+
+        persistence.write("key", "lastValue");
+        persistence.close();
+        assertEquals("lastValue", new Persistence(dir, PREFIX).read("key"));
+    }
+
+    @Test
+    public void testWriteBehindFlushesWithinInterval() throws InterruptedException {
+        Persistence persistence = new Persistence(dir, PREFIX, 50);
+        persistence.init();
+        persistence.write("key", "value");
+
+        File journalFile = new File(dir, PREFIX + ".journal");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (journalFile.length() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals("value", new Persistence(dir, PREFIX).read("key"));
+        persistence.close();
+    }
+
+    @Test
+    public void testValuesAreDeserializedAtFirstRead() {
+        Persistence persistence = new Persistence(dir, PREFIX);
+        persistence.init();
+        // large enough to trigger the compaction of the journal into the snapshot
+        persistence.write("counted", new DeserializationCounter());
+        persistence.write("large", new byte[300 * 1024]);
+        assertEquals("journal compacted", 0, new File(dir, PREFIX + ".journal").length());
+
+        DeserializationCounter.count = 0;
+        Persistence reopened = new Persistence(dir, PREFIX);
+        reopened.init();
+        assertEquals(0, DeserializationCounter.count);
+
+        assertNotNull(reopened.read("counted"));
+        assertNotNull(reopened.read("counted"));
+        assertEquals(1, DeserializationCounter.count);
+        assertEquals(300 * 1024, ((byte[]) reopened.read("large")).length);
+    }
+
+    @Test
+    public void testLegacySnapshotIsConverted() throws IOException {
+        HashMap<String, Serializable> rootMap = new HashMap<>();
+        rootMap.put("key", "value");
+        try (ObjectOutputStream outputStream =
+                     new ObjectOutputStream(new FileOutputStream(new File(dir, PREFIX + ".ser")))) {
+            outputStream.writeObject(rootMap);
+        }
+
+        Persistence persistence = new Persistence(dir, PREFIX);
+        assertEquals("value", persistence.read("key"));
+
+        Persistence reopened = new Persistence(dir, PREFIX);
+        assertEquals("value", reopened.read("key"));
+    }
+
+    @Test
+    public void testReadBeforeInit() {
+        Persistence persistence = new Persistence(dir, PREFIX);
+        persistence.write("key", "value");
+
+        Persistence reopened = new Persistence(dir, PREFIX);
+        assertEquals("value", reopened.read("key"));
+        assertNull(reopened.read("unknownKey"));
+    }
+
+    @Test
+    public void testMigratorsUpgradeOldSchema() {
+        Persistence persistence = new Persistence(dir, PREFIX, 0, Persistence.DEFAULT_BACKEND, new DomainCodec(),
+                new Migrations(1));
+        persistence.write("trade", "trade");
+        persistence.write("obsolete", "obsolete");
+        persistence.write("unreadable", new UnreadableValue());
+        persistence.close();
+
+        Migrations migrations = new Migrations(2);
+        AtomicInteger migrated = new AtomicInteger();
+        migrations.register(1, (key, value) -> {
+            migrated.incrementAndGet();
+            return "obsolete".equals(key) ? null : value + "V2";
+        });
+
+        UnreadableValue.failOnRead = true;
+        try {
+            Persistence migratedPersistence = new Persistence(dir, PREFIX, 0, Persistence.DEFAULT_BACKEND,
+                    new DomainCodec(), migrations);
+            migratedPersistence.init();
+            assertEquals(2, migrated.get());
+            assertEquals("tradeV2", migratedPersistence.read("trade"));
+            assertNull(migratedPersistence.read("obsolete"));
+            assertNull(migratedPersistence.read("unreadable"));
+        } finally {
+            UnreadableValue.failOnRead = false;
+        }
+
+        // Already migrated data is not migrated again
+        Persistence reopened = new Persistence(dir, PREFIX, 0, Persistence.DEFAULT_BACKEND, new DomainCodec(),
+                migrations);
+        assertEquals("tradeV2", reopened.read("trade"));
+        assertEquals(2, migrated.get());
+    }
+
+    @Test
+    public void testUnencodableValueDoesNotAbortMigration() {
+        Persistence persistence = new Persistence(dir, PREFIX, 0, Persistence.DEFAULT_BACKEND, new DomainCodec(),
+                new Migrations(1));
+        persistence.write("trade", "trade");
+        persistence.write("unencodable", "unencodable");
+        persistence.close();
+
+        Migrations migrations = new Migrations(2);
+        AtomicInteger migrated = new AtomicInteger();
+        migrations.register(1, (key, value) -> {
+            migrated.incrementAndGet();
+            return "unencodable".equals(key) ? new UnwritableValue() : value + "V2";
+        });
+
+        Persistence migratedPersistence = new Persistence(dir, PREFIX, 0, Persistence.DEFAULT_BACKEND,
+                new DomainCodec(), migrations);
+        migratedPersistence.init();
+        assertEquals(2, migrated.get());
+        assertEquals("tradeV2", migratedPersistence.read("trade"));
+        assertNull(migratedPersistence.read("unencodable"));
+
+        // The migration has been stored, so it does not run again
+        Persistence reopened = new Persistence(dir, PREFIX, 0, Persistence.DEFAULT_BACKEND, new DomainCodec(),
+                migrations);
+        assertEquals("tradeV2", reopened.read("trade"));
+        assertEquals(2, migrated.get());
+    }
+
+    @Test
+    public void testUnreadableSnapshotIsKeptAsBackup() throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(new File(dir, PREFIX + ".ser"))) {
+            outputStream.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        }
+
+        Persistence persistence = new Persistence(dir, PREFIX);
+        assertNull(persistence.read("key"));
+        persistence.write("key", "value");
+
+        assertEquals(16, new File(dir, PREFIX + ".ser.backup").length());
+        assertEquals("value", new Persistence(dir, PREFIX).read("key"));
+    }
+
+    @Test
+    public void testKeysAreRoutedToShards() {
+        Persistence persistence = new Persistence(dir, PREFIX);
+        persistence.write("io.bitsquare.trade.TradeManager.closedTrades", "closedTrades");
+        persistence.write("io.bitsquare.trade.TradeManager.offers", "offers");
+        persistence.write("io.bitsquare.btc.WalletService.addressEntryList", "addressEntryList");
+        persistence.write("io.bitsquare.user.User", "user");
+
+        File tradesJournal = new File(dir, PREFIX + "_trades.journal");
+        File settingsJournal = new File(dir, PREFIX + "_settings.journal");
+        long tradesJournalLength = tradesJournal.length();
+        assertTrue(tradesJournalLength > 0);
+        assertTrue(new File(dir, PREFIX + "_offers.journal").length() > 0);
+        assertTrue(new File(dir, PREFIX + "_wallet.journal").length() > 0);
+        assertTrue(new File(dir, PREFIX + ".journal").length() > 0);
+        assertEquals(0, settingsJournal.length());
+
+        persistence.write("io.bitsquare.settings.Preferences.useEffects", true);
+        assertTrue(settingsJournal.length() > 0);
+        assertEquals("writing a preference does not touch the trades", tradesJournalLength, tradesJournal.length());
+
+        Persistence reopened = new Persistence(dir, PREFIX);
+        assertEquals("closedTrades", reopened.read("io.bitsquare.trade.TradeManager.closedTrades"));
+        assertEquals("offers", reopened.read("io.bitsquare.trade.TradeManager.offers"));
+        assertEquals(true, reopened.read("io.bitsquare.settings.Preferences.useEffects"));
+        assertEquals("user", reopened.read("io.bitsquare.user.User"));
+    }
+
+    @Test
+    public void testKeysAreMovedFromMainShard() {
+        // Earlier versions stored all keys in one file
+        Shard singleFile = new Shard(dir, PREFIX, 0, false, new DomainCodec(), new Migrations());
+        singleFile.write("io.bitsquare.trade.TradeManager.closedTrades", "closedTrades");
+        singleFile.write("io.bitsquare.user.User", "user");
+        singleFile.close();
+
+        Persistence persistence = new Persistence(dir, PREFIX);
+        assertEquals("closedTrades", persistence.read("io.bitsquare.trade.TradeManager.closedTrades"));
+        assertEquals("user", persistence.read("io.bitsquare.user.User"));
+        persistence.close();
+
+        Shard mainShard = new Shard(dir, PREFIX, 0, false, new DomainCodec(), new Migrations());
+        assertFalse(mainShard.contains("io.bitsquare.trade.TradeManager.closedTrades"));
+        assertTrue(mainShard.contains("io.bitsquare.user.User"));
+        assertEquals("closedTrades",
+                new Persistence(dir, PREFIX).read("io.bitsquare.trade.TradeManager.closedTrades"));
+    }
+
+    private static class UnreadableValue implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static boolean failOnRead;
+
+        private void readObject(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
+            if (failOnRead)
+                throw new InvalidClassException(UnreadableValue.class.getName(), "incompatible");
+            inputStream.defaultReadObject();
+        }
+    }
+
+    private static class UnwritableValue implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private void writeObject(ObjectOutputStream outputStream) throws IOException {
+            throw new NotSerializableException(UnwritableValue.class.getName());
+        }
+    }
+
+    private static class DeserializationCounter implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static int count;
+
+        private void readObject(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
+            inputStream.defaultReadObject();
+            count++;
+        }
+    }
+}
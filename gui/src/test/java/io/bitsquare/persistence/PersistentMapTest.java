@@ -0,0 +1,111 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class PersistentMapTest {
+    private static final String PREFIX = "test";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = temporaryFolder.newFolder();
+    }
+
+    @Test
+    public void testChangesArePersistedPerEntry() {
+        Persistence persistence = new Persistence(dir, PREFIX);
+        ObservableMap<String, String> map = FXCollections.observableHashMap();
+        new PersistentMap<>(persistence, this, "trades", map).load();
+
+        map.put("1", "trade1");
+        map.put("2", "trade2");
+        map.put("3", "trade3");
+        map.remove("2");
+        map.put("3", "trade3Changed");
+
+        String entryKeyPrefix = getClass().getName() + ".trades.";
+        assertEquals("trade1", persistence.read(entryKeyPrefix + "1"));
+        assertEquals(2, persistence.getKeys(entryKeyPrefix).size());
+
+        Persistence reopened = new Persistence(dir, PREFIX);
+        ObservableMap<String, String> loaded = FXCollections.observableHashMap();
+        new PersistentMap<>(reopened, this, "trades", loaded).load();
+        assertEquals(2, loaded.size());
+        assertEquals("trade1", loaded.get("1"));
+        assertEquals("trade3Changed", loaded.get("3"));
+    }
+
+    @Test
+    public void testChangedValueIsPersisted() {
+        Persistence persistence = new Persistence(dir, PREFIX);
+        ObservableMap<String, HashMap<String, String>> map = FXCollections.observableHashMap();
+        PersistentMap<HashMap<String, String>> persistentMap = new PersistentMap<>(persistence, this, "trades", map);
+        persistentMap.load();
+
+        map.put("1", new HashMap<>());
+        map.get("1").put("state", "DEPOSIT_PUBLISHED");
+        persistentMap.persist("1");
+
+        Persistence reopened = new Persistence(dir, PREFIX);
+        ObservableMap<String, HashMap<String, String>> loaded = FXCollections.observableHashMap();
+        new PersistentMap<>(reopened, this, "trades", loaded).load();
+        assertEquals("DEPOSIT_PUBLISHED", loaded.get("1").get("state"));
+    }
+
+    @Test
+    public void testWholeMapOfEarlierVersionIsSplit() {
+        Persistence persistence = new Persistence(dir, PREFIX);
+        HashMap<String, String> legacyMap = new HashMap<>();
+        legacyMap.put("1", "trade1");
+        legacyMap.put("2", "trade2");
+        persistence.write(this, "trades", (Map<String, String>) legacyMap);
+
+        ObservableMap<String, String> map = FXCollections.observableHashMap();
+        new PersistentMap<>(persistence, this, "trades", map).load();
+        assertEquals(2, map.size());
+        assertEquals("trade2", map.get("2"));
+        assertFalse(persistence.getKeys(getClass().getName()).contains(getClass().getName() + ".trades"));
+
+        map.remove("1");
+        Persistence reopened = new Persistence(dir, PREFIX);
+        ObservableMap<String, String> loaded = FXCollections.observableHashMap();
+        new PersistentMap<>(reopened, this, "trades", loaded).load();
+        assertEquals(1, loaded.size());
+        assertEquals("trade2", loaded.get("2"));
+    }
+}
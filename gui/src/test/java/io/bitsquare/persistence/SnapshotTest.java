@@ -0,0 +1,168 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.persistence;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class SnapshotTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        dir = temporaryFolder.newFolder();
+        file = new File(dir, "test.ser");
+    }
+
+    @Test
+    public void testDamagedIndexIsRebuiltFromRecords() throws IOException {
+        writeSnapshot(file, 3);
+        Map<String, Snapshot.Location> index = new Snapshot(file).readIndex();
+        long indexOffset = index.get("key2").offset + index.get("key2").length;
+
+        // The index got lost and the last record is torn
+        truncate(file, indexOffset - 2);
+
+        for (Snapshot snapshot : new Snapshot[]{new Snapshot(file), new MappedSnapshot(file)}) {
+            Map<String, Snapshot.Location> recovered = snapshot.readIndex();
+            assertEquals(2, recovered.size());
+            assertEquals("value0", read(snapshot, recovered, "key0"));
+            assertEquals("value1", read(snapshot, recovered, "key1"));
+        }
+    }
+
+    @Test
+    public void testDamagedRecordOnlyAffectsItsKey() throws IOException {
+        writeSnapshot(file, 3);
+        Snapshot.Location location = new Snapshot(file).readIndex().get("key1");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(location.offset + location.length - 1);
+            randomAccessFile.write('X');
+        }
+
+        for (Snapshot snapshot : new Snapshot[]{new Snapshot(file), new MappedSnapshot(file)}) {
+            Map<String, Snapshot.Location> index = snapshot.readIndex();
+            assertEquals("value0", read(snapshot, index, "key0"));
+            assertEquals("value2", read(snapshot, index, "key2"));
+            try {
+                snapshot.read(index.get("key1"));
+                fail("damaged record must not be returned");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownFormatIsRejected() throws IOException {
+        try (DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(file))) {
+            outputStream.writeInt(0x42535153);
+            outputStream.writeInt(1);
+        }
+
+        try {
+            new Snapshot(file).readSchemaVersion();
+            fail("snapshot with an unknown magic must not be read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMappedSnapshotReadsReplacedFile() throws IOException {
+        writeSnapshot(file, 1);
+        MappedSnapshot snapshot = new MappedSnapshot(file);
+        assertEquals("value0", read(snapshot, snapshot.readIndex(), "key0"));
+
+        File newFile = new File(dir, "new.ser");
+        try (Snapshot.Writer writer = Snapshot.newWriter(newFile, 1)) {
+            writer.put("key0", "newValue".getBytes(StandardCharsets.UTF_8));
+            writer.finish();
+        }
+        assertTrue(newFile.renameTo(file));
+        snapshot.onReplaced();
+
+        assertEquals("newValue", read(snapshot, snapshot.readIndex(), "key0"));
+    }
+
+    @Test
+    public void testMappedBackend() {
+        Persistence persistence = new Persistence(dir, "test", 0, Persistence.MAPPED_BACKEND, new DomainCodec(),
+                new Migrations());
+        persistence.init();
+        for (int i = 0; i < 100; i++)
+            persistence.write("key" + i, "value" + i);
+        persistence.close();
+
+        Persistence reopened = new Persistence(dir, "test", 0, Persistence.MAPPED_BACKEND, new DomainCodec(),
+                new Migrations());
+        assertEquals("value42", reopened.read("key42"));
+        assertEquals("value99", reopened.read("key99"));
+    }
+
+    @Test
+    public void testMappedReadsMatchFileReads() throws IOException {
+        writeSnapshot(file, 2000);
+        Snapshot snapshot = new Snapshot(file);
+        MappedSnapshot mappedSnapshot = new MappedSnapshot(file);
+        Map<String, Snapshot.Location> index = snapshot.readIndex();
+        assertEquals(2000, index.size());
+        for (Map.Entry<String, Snapshot.Location> entry : index.entrySet()) {
+            assertArrayEquals(snapshot.read(entry.getValue()), mappedSnapshot.read(entry.getValue()));
+            assertEquals("value" + entry.getKey().substring(3), read(mappedSnapshot, index, entry.getKey()));
+        }
+    }
+
+    private void writeSnapshot(File file, int records) throws IOException {
+        File tempFile = File.createTempFile("temp_", null, dir);
+        try (Snapshot.Writer writer = Snapshot.newWriter(tempFile, 1)) {
+            for (int i = 0; i < records; i++)
+                writer.put("key" + i, ("value" + i).getBytes(StandardCharsets.UTF_8));
+            writer.finish();
+        }
+        assertTrue(tempFile.renameTo(file));
+    }
+
+    private String read(Snapshot snapshot, Map<String, Snapshot.Location> index, String key) throws IOException {
+        return new String(snapshot.read(index.get(key)), StandardCharsets.UTF_8);
+    }
+
+    private void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(length);
+        }
+    }
+}
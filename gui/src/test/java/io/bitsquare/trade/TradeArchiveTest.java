@@ -0,0 +1,154 @@
+/*
+ * This file is part of Bitsquare.
+ *
+ * Bitsquare is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Bitsquare is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Bitsquare. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.bitsquare.trade;
+
+import io.bitsquare.bank.BankAccountType;
+import io.bitsquare.locale.CountryUtil;
+import io.bitsquare.offer.Direction;
+import io.bitsquare.offer.Offer;
+import io.bitsquare.persistence.DomainCodec;
+import io.bitsquare.util.DSAKeyUtil;
+
+import org.bitcoinj.core.Coin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.security.KeyPair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class TradeArchiveTest {
+    private static final String PREFIX = "test";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File dir;
+    private KeyPair keyPair;
+
+    @Before
+    public void setup() throws IOException {
+        dir = temporaryFolder.newFolder();
+        keyPair = DSAKeyUtil.generateKeyPair();
+    }
+
+    @Test
+    public void testTradesArePagedNewestFirst() {
+        TradeArchive archive = new TradeArchive(dir, PREFIX, new DomainCodec());
+        // Not added in the order of their dates
+        for (int i : new int[]{3, 0, 4, 1, 2})
+            archive.add(getTrade("trade" + i, i));
+
+        assertEquals(5, archive.size());
+        assertEquals(5, archive.sizeProperty().get());
+        assertEquals(getIds(archive.getTrades(0, 2)), "trade4,trade3");
+        assertEquals(getIds(archive.getTrades(2, 2)), "trade2,trade1");
+        assertEquals(getIds(archive.getTrades(4, 2)), "trade0");
+        assertTrue(archive.getTrades(6, 2).isEmpty());
+
+        assertEquals(getIds(archive.getTrades(new Date(1000), new Date(3000))), "trade2,trade1");
+        assertEquals(Coin.CENT, archive.getTrade("trade2").getTradeAmount());
+        assertNull(archive.getTrade("unknown"));
+    }
+
+    @Test
+    public void testArchiveIsReopened() throws IOException {
+        TradeArchive archive = new TradeArchive(dir, PREFIX, new DomainCodec());
+        archive.add(getTrade("trade0", 0));
+        archive.add(getTrade("trade1", 1));
+        archive.add(getTrade("trade1", 1));
+        archive.close();
+
+        File file = new File(dir, PREFIX + "_closedTrades.archive");
+        long validLength = file.length();
+        try (FileOutputStream outputStream = new FileOutputStream(file, true)) {
+            // header of a record which never got completely written
+            outputStream.write(new byte[]{0, 0, 1, 0, 3});
+        }
+
+        TradeArchive reopened = new TradeArchive(dir, PREFIX, new DomainCodec());
+        assertEquals(2, reopened.size());
+        assertEquals(validLength, file.length());
+        assertEquals(getIds(reopened.getTrades(0, 10)), "trade1,trade0");
+
+        reopened.add(getTrade("trade2", 2));
+        reopened.close();
+        assertEquals(3, new TradeArchive(dir, PREFIX, new DomainCodec()).size());
+    }
+
+    @Test
+    public void testFailedOpenIsReported() {
+        // The archive file cannot be opened if a directory has its name
+        File file = new File(dir, PREFIX + "_closedTrades.archive");
+        assertTrue(file.mkdir());
+
+        TradeArchive archive = new TradeArchive(dir, PREFIX, new DomainCodec());
+        assertFalse(archive.add(getTrade("trade0", 0)));
+        assertEquals(0, archive.size());
+        assertTrue(archive.getTrades(0, 10).isEmpty());
+        assertNull(archive.getTrade("trade0"));
+
+        // Opening is tried again at the next access
+        assertTrue(file.delete());
+        assertTrue(archive.add(getTrade("trade0", 0)));
+        assertTrue(archive.add(getTrade("trade0", 0)));
+        assertEquals(1, archive.size());
+    }
+
+    private Trade getTrade(String id, int seconds) {
+        Trade trade = new Trade(getOffer(id), new Date(seconds * 1000L));
+        trade.setTradeAmount(Coin.CENT);
+        trade.setState(Trade.State.COMPLETED);
+        return trade;
+    }
+
+    private Offer getOffer(String id) {
+        return new Offer(id,
+                keyPair.getPublic(),
+                Direction.BUY,
+                500_0000,
+                Coin.COIN,
+                Coin.CENT,
+                BankAccountType.SEPA,
+                Currency.getInstance("EUR"),
+                CountryUtil.getDefaultCountry(),
+                "bankAccountUID",
+                new ArrayList<>(),
+                Coin.CENT,
+                CountryUtil.getAllEuroCountries(),
+                new ArrayList<>(Arrays.asList(Locale.GERMAN)));
+    }
+
+    private String getIds(List<Trade> trades) {
+        return String.join(",", trades.stream().map(Trade::getId).toArray(String[]::new));
+    }
+}
@@ -25,7 +25,10 @@ import io.bitsquare.btc.UserAgent;
 import io.bitsquare.btc.WalletService;
 import io.bitsquare.locale.CountryUtil;
 import io.bitsquare.locale.LanguageUtil;
+import io.bitsquare.msg.MessageCodec;
+import io.bitsquare.msg.MessageDispatcher;
 import io.bitsquare.msg.tomp2p.BootstrappedPeerBuilder;
+import io.bitsquare.msg.tomp2p.DataDecoder;
 import io.bitsquare.msg.tomp2p.TomP2PMessageService;
 import io.bitsquare.msg.tomp2p.TomP2PNode;
 import io.bitsquare.network.BootstrapState;
@@ -33,6 +36,7 @@ import io.bitsquare.network.Node;
 import io.bitsquare.offer.Direction;
 import io.bitsquare.offer.Offer;
 import io.bitsquare.offer.RemoteOfferBook;
+import io.bitsquare.offer.tomp2p.OfferShards;
 import io.bitsquare.offer.tomp2p.TomP2POfferBook;
 import io.bitsquare.persistence.Persistence;
 import io.bitsquare.trade.handlers.TransactionResultHandler;
@@ -100,7 +104,9 @@ public class PlaceOfferProtocolTest {
         user.applyPersistedUser(null);
         BootstrappedPeerBuilder bootstrappedPeerBuilder = new BootstrappedPeerBuilder(Node.DEFAULT_PORT, false, bootstrapNode, "<unspecified>");
         TomP2PNode p2pNode = new TomP2PNode(bootstrappedPeerBuilder);
-        messageService = new TomP2PMessageService(user, p2pNode);
+        DataDecoder dataDecoder = new DataDecoder();
+        messageService = new TomP2PMessageService(user, p2pNode, dataDecoder, new MessageCodec(),
+                new MessageDispatcher());
 
         Observable<BootstrapState> messageObservable = messageService.init();
         messageObservable.publish();
@@ -112,7 +118,8 @@ public class PlaceOfferProtocolTest {
                 () -> {
                     log.trace("message completed");
 
-                    remoteOfferBook = new TomP2POfferBook(p2pNode);
+                    remoteOfferBook = new TomP2POfferBook(p2pNode, messageService, persistence, dataDecoder,
+                            new OfferShards());
                     remoteOfferBook.setExecutor(Threading.SAME_THREAD);
                 }
         );
@@ -227,7 +234,7 @@ public class PlaceOfferProtocolTest {
                 }
 
                 @Override
-                public void onOffersReceived(List<Offer> offers) {
+                public void onOffersReceived(String currencyCode, Direction direction, List<Offer> offers) {
                 }
 
                 @Override